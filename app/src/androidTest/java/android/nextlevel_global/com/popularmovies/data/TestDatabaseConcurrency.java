@@ -0,0 +1,224 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the reads of the cached list while the pages are rewritten on another thread,
+ * the same way the grid is read during background refreshes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDatabaseConcurrency {
+
+    private static final String LOG_TAG = TestDatabaseConcurrency.class.getSimpleName();
+
+    /* Name of the test database, so the application database is not touched */
+    private static final String DATABASE_NAME = "concurrency_test.db";
+
+    private static final String CATEGORY = MovieContract.PATH_POPULAR_MOVIES;
+    private static final int PAGES = 5;
+    private static final int MOVIES_PER_PAGE = 20;
+    private static final int READS = 200;
+
+    /* Selection of the list query, as in MoviesProvider */
+    private static final String LIST_SELECTION = MovieContract.CacheEntry.COLUMN_CATEGORY +
+            "=? AND " + MovieContract.CacheEntry.COLUMN_PAGE + "<=?";
+    private static final String[] LIST_SELECTION_ARGS = {CATEGORY, String.valueOf(PAGES)};
+
+    /* Context used to access various parts of the system */
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private MovieDbHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * Creates the test database with the cached pages.
+     */
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new MovieDbHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+
+        for (int page = 1; page <= PAGES; page++) {
+            writePage(page, 0);
+        }
+    }
+
+    /**
+     * Removes the test database.
+     */
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * The database is opened with the write-ahead log.
+     */
+    @Test
+    public void testWriteAheadLogEnabled() {
+        assertEquals("wal", DatabaseUtils.stringForQuery(mDatabase, "PRAGMA journal_mode", null)
+                .toLowerCase());
+    }
+
+    /**
+     * Reader doesn't wait for the open write transaction and sees the last commit.
+     *
+     * @throws Exception when the writer fails
+     */
+    @Test
+    public void testReadDuringWriteTransaction() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch read = new CountDownLatch(1);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.beginTransactionNonExclusive();
+                try {
+                    mDatabase.delete(MovieContract.CacheEntry.TABLE_NAME, null, null);
+                    written.countDown();
+
+                    // Keep the transaction open until the reader is done (or gives up).
+                    read.await(5, TimeUnit.SECONDS);
+                    mDatabase.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+
+        long start = SystemClock.elapsedRealtime();
+        int count = queryList();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        read.countDown();
+        writer.join();
+
+        assertEquals("Reader should see the last commit", PAGES * MOVIES_PER_PAGE, count);
+        assertTrue("Reader waited " + elapsed + "ms for the writer", elapsed < 1000);
+    }
+
+    /**
+     * Benchmark: latency of the list reads while the pages are continuously rewritten.
+     *
+     * @throws Exception when the writer fails
+     */
+    @Test
+    public void testReadLatencyDuringWrites() throws Exception {
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final AtomicInteger writes = new AtomicInteger();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isRunning.get()) {
+                    int page = writes.get() % PAGES + 1;
+                    writePage(page, writes.incrementAndGet());
+                }
+            }
+        });
+        writer.start();
+
+        long[] latencies = new long[READS];
+        for (int i = 0; i < READS; i++) {
+            long start = System.nanoTime();
+            assertEquals(PAGES * MOVIES_PER_PAGE, queryList());
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        isRunning.set(false);
+        writer.join();
+
+        Arrays.sort(latencies);
+        Log.i(LOG_TAG, "List reads during " + writes.get() + " page writes: median " +
+                micros(latencies[READS / 2]) + "us, p95 " + micros(latencies[READS * 95 / 100]) +
+                "us, max " + micros(latencies[READS - 1]) + "us");
+        assertTrue(writes.get() > 0);
+    }
+
+    /**
+     * Reads the cached list, the same way as the list query of the provider.
+     *
+     * @return number of the movies
+     */
+    private int queryList() {
+        Cursor cursor = mHelper.getReadableDatabase().query(MovieContract.CacheEntry.TABLE_NAME,
+                MovieContract.CacheEntry.MOVIE_LIST_PROJECTION, LIST_SELECTION,
+                LIST_SELECTION_ARGS, null, null, MovieContract.CacheEntry.COLUMN_PAGE + ", " +
+                        MovieContract.CacheEntry.COLUMN_RANK);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replaces the page in one transaction, the same way as a page refresh.
+     *
+     * @param page    number
+     * @param version of the titles, so every write changes the page
+     */
+    private void writePage(int page, int version) {
+        String selection = MovieContract.CacheEntry.COLUMN_CATEGORY + "=? AND " +
+                MovieContract.CacheEntry.COLUMN_PAGE + "=?";
+        String[] selectionArgs = {CATEGORY, String.valueOf(page)};
+
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            mDatabase.delete(MovieContract.CacheEntry.TABLE_NAME, selection, selectionArgs);
+
+            for (int rank = 0; rank < MOVIES_PER_PAGE; rank++) {
+                ContentValues value = new ContentValues();
+                value.put(MovieContract.CacheEntry.COLUMN_CATEGORY, CATEGORY);
+                value.put(MovieContract.CacheEntry.COLUMN_PAGE, page);
+                value.put(MovieContract.CacheEntry.COLUMN_RANK, rank);
+                value.put(MovieContract.CacheEntry.COLUMN_MOVIE_ID, page * 100 + rank);
+                value.put(MovieContract.CacheEntry.COLUMN_TITLE, "Movie " + rank + "v" + version);
+                value.put(MovieContract.CacheEntry.COLUMN_POSTER_URL, "/poster" + rank + ".jpg");
+                value.put(MovieContract.CacheEntry.COLUMN_USER_RATING, 7.5);
+                value.put(MovieContract.CacheEntry.COLUMN_FETCHED_AT, System.currentTimeMillis());
+                mDatabase.insert(MovieContract.CacheEntry.TABLE_NAME, null, value);
+            }
+
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * @param nanos time in nanoseconds
+     * @return time in microseconds
+     */
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,253 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
+import android.nextlevel_global.com.popularmovies.utilities.ReplayTransport;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Background refresh of the stale favorites against the recorded themoviedb.org responses.
+ * Every favorite is fetched once, batch after batch, and the refresh which has been stopped
+ * is resumed by the next one with the movies which are still stale.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFavoritesRefresher {
+
+    /* Directory of the recorded responses in the test assets */
+    private static final String FIXTURES_DIRECTORY = "tmdb";
+
+    /* Fixture of the movie details, with the id of the recorded movie */
+    private static final Pattern MOVIE_DETAILS_FIXTURE =
+            Pattern.compile("movie_details_(\\d+)\\.json");
+    private static final String GENERIC_MOVIE_DETAILS_FIXTURE = "movie_details.json";
+    private static final Pattern MOVIE_ID = Pattern.compile("\"id\":\\s*\\d+");
+    private static final Pattern MOVIE_TITLE = Pattern.compile("\"title\":\\s*\"[^\"]*\",");
+
+    /* Stale favorites fill two batches and a part of the third one */
+    private static final int STALE_FAVORITES = FavoritesRefresher.BATCH_SIZE * 2 + 1;
+    private static final int FIRST_MOVIE_ID = 2000;
+    private static final int FRESH_MOVIE_ID = 1000;
+
+    /* Movie of the first batch whose details the provider can't store */
+    private static final String BROKEN_MOVIE_ID = String.valueOf(FIRST_MOVIE_ID + 1);
+
+    /* Context used to access various parts of the system */
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /* Movie ids of the replayed details requests, in their order */
+    private final List<String> mRequestedMovieIds = new ArrayList<>();
+
+    /* Refresh which is stopped after the given number of the requests */
+    private FavoritesRefresher mStoppedRefresher;
+    private int mStopAfterRequests;
+
+    /* Movie whose recorded details come without the title, null if there is none */
+    private volatile String mBrokenMovieId;
+
+    private MovieDbHelper mHelper;
+
+    /**
+     * Stores the stale favorites and a fresh one, and replaces the network with the recorded
+     * responses. Every movie gets the recorded details with its own id.
+     */
+    @Before
+    public void setUp() {
+        mHelper = new MovieDbHelper(mContext);
+        SQLiteDatabase database = mHelper.getWritableDatabase();
+        database.delete(MovieContract.MovieEntry.TABLE_NAME, null, null);
+
+        for (int i = 0; i < STALE_FAVORITES; i++) {
+            insertFavorite(database, FIRST_MOVIE_ID + i, 0);
+        }
+        insertFavorite(database, FRESH_MOVIE_ID, System.currentTimeMillis());
+
+        final ReplayTransport.FixtureSource assets = ReplayTransport.fromAssets(
+                InstrumentationRegistry.getContext().getAssets(), FIXTURES_DIRECTORY);
+        ReplayTransport transport = new ReplayTransport(new ReplayTransport.FixtureSource() {
+            @Override
+            public InputStream open(String name) throws IOException {
+                Matcher matcher = MOVIE_DETAILS_FIXTURE.matcher(name);
+                if (!matcher.matches()) {
+                    return assets.open(name);
+                }
+
+                onMovieRequested(matcher.group(1));
+                InputStream stream = assets.open(GENERIC_MOVIE_DETAILS_FIXTURE);
+                String fixture = Okio.buffer(Okio.source(stream)).readUtf8();
+                stream.close();
+                if (matcher.group(1).equals(mBrokenMovieId)) {
+                    fixture = MOVIE_TITLE.matcher(fixture).replaceFirst("");
+                }
+                return new ByteArrayInputStream(MOVIE_ID.matcher(fixture)
+                        .replaceFirst("\"id\": " + matcher.group(1)).getBytes("UTF-8"));
+            }
+        }, NetworkUtils.getHttpClient(), new Random(42));
+        transport.setLatency(0);
+        transport.setBandwidth(0);
+
+        NetworkUtils.setTransport(transport);
+    }
+
+    /**
+     * Restores the real network and removes the favorites.
+     */
+    @After
+    public void tearDown() {
+        NetworkUtils.setTransport(null);
+        mHelper.getWritableDatabase().delete(MovieContract.MovieEntry.TABLE_NAME, null, null);
+        mHelper.close();
+    }
+
+    /**
+     * Every stale favorite is fetched once, the fresh one is not fetched at all.
+     */
+    @Test
+    public void testRefreshesStaleFavoritesInBatches() {
+        Set<String> stale = getStaleMovieIds();
+        assertTrue("Error: Refresh has not completed",
+                new FavoritesRefresher(mContext).refreshStaleFavorites());
+
+        List<String> requested = getRequestedMovieIds();
+        assertEquals("Error: Favorite fetched more than once",
+                requested.size(), new HashSet<>(requested).size());
+        assertEquals("Error: Other favorites than the stale ones fetched", stale,
+                new HashSet<>(requested));
+        assertEquals(STALE_FAVORITES, requested.size());
+
+        assertTrue("Error: Favorites are still stale", getStaleMovieIds().isEmpty());
+    }
+
+    /**
+     * Stopped refresh leaves the rest of the favorites stale, and the next refresh fetches
+     * only them.
+     */
+    @Test
+    public void testStoppedRefreshIsResumed() {
+        Set<String> stale = getStaleMovieIds();
+
+        // Stopped in the middle of the second batch.
+        FavoritesRefresher refresher = new FavoritesRefresher(mContext);
+        synchronized (mRequestedMovieIds) {
+            mStoppedRefresher = refresher;
+            mStopAfterRequests = FavoritesRefresher.BATCH_SIZE + 2;
+        }
+        assertFalse("Error: Stopped refresh has completed", refresher.refreshStaleFavorites());
+
+        Set<String> staleAfterStop = getStaleMovieIds();
+        assertFalse("Error: Nothing refreshed before the stop", staleAfterStop.equals(stale));
+        assertFalse("Error: Everything refreshed despite the stop", staleAfterStop.isEmpty());
+
+        // Fetches which had been started before the stop may still come, but they are
+        // of the movies which have not been stored.
+        synchronized (mRequestedMovieIds) {
+            mRequestedMovieIds.clear();
+        }
+        assertTrue("Error: Resumed refresh has not completed",
+                new FavoritesRefresher(mContext).refreshStaleFavorites());
+
+        Set<String> requested = new HashSet<>(getRequestedMovieIds());
+        assertTrue("Error: Refreshed favorites fetched again: " + requested,
+                staleAfterStop.containsAll(requested));
+        assertTrue("Error: Favorites are still stale", getStaleMovieIds().isEmpty());
+    }
+
+    /**
+     * Movie which the provider fails to store doesn't stop the refresh. The rest of the
+     * favorites are refreshed and the failed one stays stale for the next refresh.
+     */
+    @Test
+    public void testFailedMovieDoesNotStopRefresh() {
+        Set<String> stale = getStaleMovieIds();
+        mBrokenMovieId = BROKEN_MOVIE_ID;
+
+        assertFalse("Error: Refresh with the failed movie has completed",
+                new FavoritesRefresher(mContext).refreshStaleFavorites());
+
+        assertEquals("Error: Favorites after the failed one have not been fetched", stale,
+                new HashSet<>(getRequestedMovieIds()));
+        assertEquals(Collections.singleton(BROKEN_MOVIE_ID), getStaleMovieIds());
+    }
+
+    /**
+     * Records the request and stops the refresh after the given number of them.
+     *
+     * @param movieId of the request
+     */
+    private void onMovieRequested(String movieId) {
+        synchronized (mRequestedMovieIds) {
+            mRequestedMovieIds.add(movieId);
+            if (mStoppedRefresher != null && mRequestedMovieIds.size() >= mStopAfterRequests) {
+                mStoppedRefresher.stop();
+                mStoppedRefresher = null;
+            }
+        }
+    }
+
+    /**
+     * @return movie ids of the replayed details requests
+     */
+    private List<String> getRequestedMovieIds() {
+        synchronized (mRequestedMovieIds) {
+            return new ArrayList<>(mRequestedMovieIds);
+        }
+    }
+
+    /**
+     * @return movie ids of the favorites which have never been refreshed
+     */
+    private Set<String> getStaleMovieIds() {
+        Set<String> movieIds = new HashSet<>();
+        Cursor cursor = mHelper.getReadableDatabase().query(MovieContract.MovieEntry.TABLE_NAME,
+                new String[]{MovieContract.MovieEntry.COLUMN_MOVIE_ID},
+                MovieContract.MovieEntry.COLUMN_UPDATED_AT + "=0", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                movieIds.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return movieIds;
+    }
+
+    /**
+     * Stores the favorite movie.
+     *
+     * @param database  to write
+     * @param movieId   of the favorite
+     * @param updatedAt refresh time of the favorite, 0 if it has never been refreshed
+     */
+    private static void insertFavorite(SQLiteDatabase database, int movieId, long updatedAt) {
+        ContentValues movie = TestUtilities.createTestMovieContentValues();
+        movie.put(MovieContract.MovieEntry.COLUMN_MOVIE_ID, movieId);
+        movie.put(MovieContract.MovieEntry.COLUMN_UPDATED_AT, updatedAt);
+        database.insert(MovieContract.MovieEntry.TABLE_NAME, null, movie);
+    }
+}
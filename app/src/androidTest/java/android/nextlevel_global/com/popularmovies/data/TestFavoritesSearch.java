@@ -0,0 +1,217 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the full-text search in the favorites. The search index is kept up to date
+ * by the triggers of {@link MovieDbHelper}, so the rows are written straight to the database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFavoritesSearch {
+
+    private static final String LOG_TAG = TestFavoritesSearch.class.getSimpleName();
+
+    /* Name of the test database, so the application database is not touched */
+    private static final String DATABASE_NAME = "search_test.db";
+
+    /* Number of the favorites in the benchmark, far more than anybody saves */
+    private static final int BENCHMARK_FAVORITES = 2000;
+
+    /* Context used to access various parts of the system */
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private MovieDbHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * Creates an empty test database.
+     */
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new MovieDbHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    /**
+     * Removes the test database.
+     */
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Movie with the match in the title comes before the ones with the match in the other text.
+     */
+    @Test
+    public void testTitleMatchRankedFirst() {
+        insertMovie(1, "Return of the Jedi", "Luke meets Vader again. Vader and Vader.");
+        insertMovie(2, "Vader", "A documentary.");
+        insertMovie(3, "The Empire Strikes Back", "Luke learns the ways of the Jedi.");
+
+        Cursor cursor = MoviesProvider.searchFavorites(mDatabase, "vade");
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(2, cursor.getInt(
+                    cursor.getColumnIndex(MovieContract.SearchEntry.COLUMN_MOVIE_ID)));
+            cursor.moveToNext();
+            assertEquals(1, cursor.getInt(
+                    cursor.getColumnIndex(MovieContract.SearchEntry.COLUMN_MOVIE_ID)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Cast and reviews are searchable as soon as they are saved and until they are removed.
+     */
+    @Test
+    public void testCastAndReviewsIndexed() {
+        insertMovie(1891, "The Empire Strikes Back", "The epic saga continues.");
+        insertCast(1891, 2, "Mark Hamill", "Luke Skywalker");
+        insertReview(1891, "Still the best sequel ever made.");
+
+        Cursor cursor = MoviesProvider.searchFavorites(mDatabase, "Hamill");
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            String snippet = cursor.getString(
+                    cursor.getColumnIndex(MovieContract.SearchEntry.COLUMN_SNIPPET));
+            assertTrue("No match in snippet: " + snippet, snippet.contains(
+                    MovieContract.SearchEntry.SNIPPET_MATCH_START + "Hamill" +
+                            MovieContract.SearchEntry.SNIPPET_MATCH_END));
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(1, count(MoviesProvider.searchFavorites(mDatabase, "best sequel")));
+
+        mDatabase.delete(MovieContract.CastEntry.TABLE_NAME, null, null);
+        MovieDbHelper.rebuildSearchDocument(mDatabase, "1891");
+        assertEquals(0, count(MoviesProvider.searchFavorites(mDatabase, "Hamill")));
+
+        mDatabase.delete(MovieContract.MovieEntry.TABLE_NAME, null, null);
+        assertEquals(0, count(MoviesProvider.searchFavorites(mDatabase, "empire")));
+    }
+
+    /**
+     * Text without letters and digits finds nothing, instead of failing the FTS query.
+     */
+    @Test
+    public void testQueryWithoutWords() {
+        insertMovie(1, "Return of the Jedi", "Luke meets Vader again.");
+
+        assertEquals(0, count(MoviesProvider.searchFavorites(mDatabase, null)));
+        assertEquals(0, count(MoviesProvider.searchFavorites(mDatabase, " \"*-")));
+        assertEquals(1, count(MoviesProvider.searchFavorites(mDatabase, "\"jedi, luke-")));
+    }
+
+    /**
+     * Upper case query matches the same way in every locale, e.g. the Turkish one, which
+     * lower cases "I" to the dotless "\u0131".
+     */
+    @Test
+    public void testQueryInTurkishLocale() {
+        insertMovie(1, "Inception", "A thief who steals corporate secrets.");
+
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertEquals(1, count(MoviesProvider.searchFavorites(mDatabase, "INCEPTION")));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    /**
+     * Benchmark: search in a large list of favorites, fast enough to search while typing.
+     */
+    @Test
+    public void testSearchLatency() {
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < BENCHMARK_FAVORITES; i++) {
+                insertMovie(i, "Movie " + i, "Overview of the movie number " + i +
+                        (i % 100 == 0 ? " with the droids." : "."));
+                insertCast(i, i, "Actor " + i, "Character " + i);
+                insertReview(i, "Review of the movie number " + i + ".");
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int results = count(MoviesProvider.searchFavorites(mDatabase, "droid"));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(LOG_TAG, "Search in " + BENCHMARK_FAVORITES + " favorites: " + elapsed + "ms");
+        assertEquals(BENCHMARK_FAVORITES / 100, results);
+        assertTrue("Search took " + elapsed + "ms", elapsed < 500);
+    }
+
+    private void insertMovie(int movieId, String title, String overview) {
+        ContentValues values = TestUtilities.createTestMovieContentValues();
+        values.put(MovieContract.MovieEntry.COLUMN_MOVIE_ID, movieId);
+        values.put(MovieContract.MovieEntry.COLUMN_TITLE, title);
+        values.put(MovieContract.MovieEntry.COLUMN_OVERVIEW, overview);
+        mDatabase.insert(MovieContract.MovieEntry.TABLE_NAME, null, values);
+    }
+
+    private void insertCast(int movieId, int personId, String name, String character) {
+        ContentValues person = new ContentValues();
+        person.put(MovieContract.PersonEntry.COLUMN_PERSON_ID, personId);
+        person.put(MovieContract.PersonEntry.COLUMN_NAME, name);
+        person.put(MovieContract.PersonEntry.COLUMN_AVATAR_PATH, "/avatar.jpg");
+        mDatabase.insert(MovieContract.PersonEntry.TABLE_NAME, null, person);
+
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.CastEntry.COLUMN_MOVIE_ID, movieId);
+        values.put(MovieContract.CastEntry.COLUMN_PERSON_ID, personId);
+        values.put(MovieContract.CastEntry.COLUMN_CHARACTER, character);
+        values.put(MovieContract.CastEntry.COLUMN_ORDER, 0);
+        mDatabase.insert(MovieContract.CastEntry.TABLE_NAME, null, values);
+        MovieDbHelper.rebuildSearchDocument(mDatabase, String.valueOf(movieId));
+    }
+
+    private void insertReview(int movieId, String content) {
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.ReviewEntry.COLUMN_MOVIE_ID, movieId);
+        values.put(MovieContract.ReviewEntry.COLUMN_AUTHOR, "Reviewer");
+        values.put(MovieContract.ReviewEntry.COLUMN_CONTENT, content);
+        mDatabase.insert(MovieContract.ReviewEntry.TABLE_NAME, null, values);
+        MovieDbHelper.rebuildSearchDocument(mDatabase, String.valueOf(movieId));
+    }
+
+    /**
+     * @param cursor to count and close
+     * @return number of the rows
+     */
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
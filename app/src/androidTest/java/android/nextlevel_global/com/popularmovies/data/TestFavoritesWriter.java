@@ -0,0 +1,331 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.net.Uri;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Toggles of the favorites written behind the UI. The writer stores the favorites through
+ * a provider which records the writes, so the tests can hold the writer on a write and queue
+ * the toggles behind it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFavoritesWriter {
+
+    /* How long the writes and the notifications are waited for */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /* Movie whose write holds the writer, so the toggles after it are queued */
+    private static final String BLOCKING_MOVIE_ID = "100";
+    private static final String MOVIE_ID = "200";
+    private static final String OTHER_MOVIE_ID = "300";
+
+    private RecordingProvider mProvider;
+    private FavoritesWriter mWriter;
+
+    /* Failed writes reported to the listener, as "movie id:stored state" */
+    private final List<String> mFailedWrites =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch mFailureLatch = new CountDownLatch(1);
+
+    private final FavoritesWriter.Listener mListener = new FavoritesWriter.Listener() {
+        @Override
+        public void onFavoriteWriteFailed(String movieId, boolean isFavorite) {
+            mFailedWrites.add(movieId + ":" + isFavorite);
+            mFailureLatch.countDown();
+        }
+    };
+
+    /**
+     * Creates the writer which stores the favorites through the recording provider.
+     */
+    @Before
+    public void setUp() {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mProvider = new RecordingProvider();
+        mProvider.attachInfo(targetContext, null);
+
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(MovieContract.CONTENT_AUTHORITY, mProvider);
+
+        mWriter = new FavoritesWriter(new ContextWrapper(targetContext) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        });
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mWriter.addListener(mListener);
+            }
+        });
+    }
+
+    /**
+     * Lets the held write go, so the writer doesn't wait after the test.
+     */
+    @After
+    public void tearDown() {
+        mProvider.release();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mWriter.removeListener(mListener);
+            }
+        });
+    }
+
+    /**
+     * Movie added and removed again before it has been written needs no write.
+     *
+     * @throws Exception when the test is interrupted
+     */
+    @Test
+    public void testAddAndRemoveWritesNothing() throws Exception {
+        holdWriter();
+
+        mWriter.setFavorite(createMovie(MOVIE_ID), true);
+        mWriter.setFavorite(createMovie(MOVIE_ID), false);
+        assertNull("Error: Toggled back movie has a pending state",
+                mWriter.getPendingFavorite(MOVIE_ID));
+
+        mProvider.release();
+        mProvider.awaitWrites(1);
+
+        // Writes are applied in order, nothing can come after the blocking one.
+        mWriter.setFavorite(createMovie(OTHER_MOVIE_ID), true);
+        assertEquals(Arrays.asList("add " + BLOCKING_MOVIE_ID, "add " + OTHER_MOVIE_ID),
+                mProvider.awaitWrites(2));
+        assertTrue("Error: Write has failed", mFailedWrites.isEmpty());
+    }
+
+    /**
+     * Movie added, removed and added again is written once, as the favorite.
+     *
+     * @throws Exception when the test is interrupted
+     */
+    @Test
+    public void testAddRemoveAndAddWritesOnce() throws Exception {
+        holdWriter();
+
+        mWriter.setFavorite(createMovie(MOVIE_ID), true);
+        mWriter.setFavorite(createMovie(MOVIE_ID), false);
+        mWriter.setFavorite(createMovie(MOVIE_ID), true);
+        assertEquals(Boolean.TRUE, mWriter.getPendingFavorite(MOVIE_ID));
+
+        mProvider.release();
+        mProvider.awaitWrites(2);
+
+        mWriter.setFavorite(createMovie(OTHER_MOVIE_ID), true);
+        assertEquals(Arrays.asList("add " + BLOCKING_MOVIE_ID, "add " + MOVIE_ID,
+                "add " + OTHER_MOVIE_ID), mProvider.awaitWrites(3));
+        assertNull(mWriter.getPendingFavorite(MOVIE_ID));
+        assertTrue("Error: Write has failed", mFailedWrites.isEmpty());
+    }
+
+    /**
+     * Toggle queued behind the failed write of the same movie expected that write to be
+     * stored, so it is dropped and the listener is told the stored state. Toggles of the
+     * other movies are still written.
+     *
+     * @throws Exception when the test is interrupted
+     */
+    @Test
+    public void testFailedWriteDropsQueuedToggle() throws Exception {
+        mProvider.setFailingMovieId(MOVIE_ID);
+        mProvider.holdWrite(MOVIE_ID);
+        mWriter.setFavorite(createMovie(MOVIE_ID), true);
+        mProvider.awaitHeldWrite();
+
+        // Added movie is removed while its write is in flight.
+        mWriter.setFavorite(createMovie(MOVIE_ID), false);
+        mWriter.setFavorite(createMovie(OTHER_MOVIE_ID), true);
+        assertEquals(Boolean.FALSE, mWriter.getPendingFavorite(MOVIE_ID));
+
+        mProvider.release();
+        assertTrue("Error: Failed write has not been reported",
+                mFailureLatch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertEquals(Collections.singletonList("add " + OTHER_MOVIE_ID),
+                mProvider.awaitWrites(1));
+        assertEquals(Collections.singletonList(MOVIE_ID + ":false"), mFailedWrites);
+        assertNull("Error: Dropped toggle has a pending state",
+                mWriter.getPendingFavorite(MOVIE_ID));
+    }
+
+    /**
+     * Starts the write which is held until the provider is released, so the next toggles
+     * are queued behind it.
+     *
+     * @throws Exception when the test is interrupted
+     */
+    private void holdWriter() throws Exception {
+        mProvider.holdWrite(BLOCKING_MOVIE_ID);
+        mWriter.setFavorite(createMovie(BLOCKING_MOVIE_ID), true);
+        mProvider.awaitHeldWrite();
+    }
+
+    /**
+     * @param movieId of the movie
+     * @return movie without its cast, reviews and trailers
+     */
+    private static Movie createMovie(String movieId) {
+        Movie movie = new Movie();
+        movie.setId(movieId);
+        movie.setTitle("Movie " + movieId);
+        return movie;
+    }
+
+    /**
+     * Provider which records the favorite writes, as "add movie id" or "remove movie id".
+     * Write of one movie can be held until the provider is released, and the writes of
+     * one movie can fail.
+     */
+    private static class RecordingProvider extends ContentProvider {
+
+        private final List<String> mWrites = new ArrayList<>();
+
+        private final CountDownLatch mHeldLatch = new CountDownLatch(1);
+        private final CountDownLatch mReleaseLatch = new CountDownLatch(1);
+        private volatile String mHeldMovieId;
+        private volatile String mFailingMovieId;
+
+        void holdWrite(String movieId) {
+            mHeldMovieId = movieId;
+        }
+
+        void setFailingMovieId(String movieId) {
+            mFailingMovieId = movieId;
+        }
+
+        /**
+         * Waits until the held write has reached the provider.
+         *
+         * @throws InterruptedException when the test is interrupted
+         */
+        void awaitHeldWrite() throws InterruptedException {
+            assertTrue("Error: Write has not reached the provider",
+                    mHeldLatch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Lets the held write go.
+         */
+        void release() {
+            mReleaseLatch.countDown();
+        }
+
+        /**
+         * Waits for the writes.
+         *
+         * @param count of the writes
+         * @return writes in their order
+         * @throws InterruptedException when the test is interrupted
+         */
+        synchronized List<String> awaitWrites(int count) throws InterruptedException {
+            long end = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+            while (mWrites.size() < count) {
+                long left = end - SystemClock.elapsedRealtime();
+                assertTrue("Error: Writes have not been applied: " + mWrites, left > 0);
+                wait(left);
+            }
+            return new ArrayList<>(mWrites);
+        }
+
+        /**
+         * Holds or fails the write and records it.
+         *
+         * @param write   description of the write
+         * @param movieId of the written movie
+         */
+        private void write(String write, String movieId) {
+            if (movieId.equals(mHeldMovieId)) {
+                mHeldLatch.countDown();
+                try {
+                    mReleaseLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (movieId.equals(mFailingMovieId)) {
+                throw new IllegalStateException("Write of " + movieId + " has failed");
+            }
+
+            synchronized (this) {
+                mWrites.add(write);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public Bundle call(String method, String arg, Bundle extras) {
+            ContentValues movie = extras.getParcelable(MovieContract.EXTRA_MOVIE);
+            String movieId = movie.getAsString(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+            write("add " + movieId, movieId);
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            String movieId = uri.getLastPathSegment();
+            write("remove " + movieId, movieId);
+            return 1;
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -103,6 +103,8 @@ public class TestMovieDatabase {
         assertTrue(insertFailed, movieRowId != -1);
 
         // Insert corresponding cast members
+        database.insert(MovieContract.PersonEntry.TABLE_NAME, null,
+                TestUtilities.createTestPersonContentValues());
         ContentValues castValues = TestUtilities.createTestCastContentValues(movieRowId);
         long castRowId = database.insert(MovieContract.CastEntry.TABLE_NAME, null, castValues);
         assertTrue(insertFailed, castRowId != -1);
@@ -139,6 +141,8 @@ public class TestMovieDatabase {
         assertTrue(insertFailed, movieRowId != -1);
 
         // Insert corresponding cast members
+        mDatabase.insert(MovieContract.PersonEntry.TABLE_NAME, null,
+                TestUtilities.createTestPersonContentValues());
         ContentValues castValues = TestUtilities.createTestCastContentValues(movieRowId);
         long castRowId = mDatabase.insert(MovieContract.CastEntry.TABLE_NAME, null, castValues);
         assertTrue(insertFailed, castRowId != -1);
@@ -197,6 +201,8 @@ public class TestMovieDatabase {
         assertTrue(insertFailed, movieRowId != -1);
 
         // Insert corresponding cast members
+        mDatabase.insert(MovieContract.PersonEntry.TABLE_NAME, null,
+                TestUtilities.createTestPersonContentValues());
         ContentValues castValues = TestUtilities.createTestCastContentValues(movieRowId);
         long castRowId = mDatabase.insert(MovieContract.CastEntry.TABLE_NAME, null, castValues);
         assertTrue(insertFailed, castRowId != -1);
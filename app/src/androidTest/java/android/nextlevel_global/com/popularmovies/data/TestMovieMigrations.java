@@ -0,0 +1,287 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Migration tests. They create a database with the schema of version 1 (the first released one),
+ * fill it with favorites and let {@link MovieDbHelper} upgrade it to the current version.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestMovieMigrations {
+
+    /* Names of the test databases, so the application database is not touched */
+    private static final String UPGRADED_DATABASE_NAME = "migration_test_upgraded.db";
+    private static final String FRESH_DATABASE_NAME = "migration_test_fresh.db";
+
+    /* Schema of the version 1, exactly as it has been released */
+    private static final String[] V1_SCHEMA = {
+            "CREATE TABLE favorite_movies (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "movie_id INTEGER NOT NULL,title STRING NOT NULL, overview STRING NOT NULL, " +
+                    "poster_url STRING NOT NULL, backdrop_url STRING NOT NULL, " +
+                    "user_rating REAL NOT NULL, release_date STRING NOT NULL, " +
+                    "runtime INTEGER NOT NULL,  UNIQUE (movie_id) ON CONFLICT REPLACE);",
+            "CREATE TABLE cast (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "movie_id INTEGER NOT NULL, name STRING NOT NULL,character STRING NOT NULL," +
+                    "image_path STRING NOT NULL,FOREIGN KEY (movie_id) REFERENCES " +
+                    "favorite_movies(movie_id) ON DELETE CASCADE);",
+            "CREATE TABLE reviews (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "movie_id INTEGER NOT NULL, author STRING NOT NULL,content STRING NOT NULL," +
+                    "FOREIGN KEY (movie_id) REFERENCES favorite_movies(movie_id) " +
+                    "ON DELETE CASCADE);",
+            "CREATE TABLE trailers (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "movie_id INTEGER NOT NULL, title STRING NOT NULL,video_id STRING NOT NULL," +
+                    "FOREIGN KEY (movie_id) REFERENCES favorite_movies(movie_id) " +
+                    "ON DELETE CASCADE);",
+            "CREATE TABLE api_cache (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "movie_id INTEGER NOT NULL,title STRING NOT NULL, poster_url STRING NOT NULL, " +
+                    "user_rating REAL NOT NULL,  UNIQUE (movie_id) ON CONFLICT REPLACE);"
+    };
+
+    /* Context used to access various parts of the system */
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /**
+     * Removes test databases left by the previous run.
+     */
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(UPGRADED_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    /**
+     * Removes test databases.
+     */
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(UPGRADED_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    /**
+     * Every version above 1 needs exactly one upgrade step.
+     */
+    @Test
+    public void testEveryVersionHasMigration() {
+        createVersion1Database();
+
+        // Missing step would throw ArrayIndexOutOfBoundsException.
+        MovieDbHelper helper = new MovieDbHelper(mContext, UPGRADED_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertEquals(MovieDbHelper.DATABASE_VERSION, db.getVersion());
+        helper.close();
+    }
+
+    /**
+     * Favorites with their cast, reviews and trailers survive the upgrade from version 1.
+     */
+    @Test
+    public void testUpgradeFromVersion1KeepsFavorites() {
+        createVersion1Database();
+
+        MovieDbHelper helper = new MovieDbHelper(mContext, UPGRADED_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        Cursor cursor = db.query(MovieContract.MovieEntry.TABLE_NAME, null, null, null,
+                null, null, null);
+        TestUtilities.validateThenCloseCursor("Favorite movie lost in upgrade",
+                cursor, TestUtilities.createTestMovieContentValues());
+
+        assertEquals("Cast lost in upgrade", 2,
+                DatabaseUtils.queryNumEntries(db, MovieContract.CastEntry.TABLE_NAME));
+        assertEquals("People not moved out of the cast", 2,
+                DatabaseUtils.queryNumEntries(db, MovieContract.PersonEntry.TABLE_NAME));
+        assertEquals("Reviews lost in upgrade", 1,
+                DatabaseUtils.queryNumEntries(db, MovieContract.ReviewEntry.TABLE_NAME));
+        assertEquals("Trailers lost in upgrade", 1,
+                DatabaseUtils.queryNumEntries(db, MovieContract.TrailerEntry.TABLE_NAME));
+
+        // Favorites which have never been refreshed are the first ones for the background refresh.
+        assertEquals("Upgraded favorite should be stale", 1,
+                DatabaseUtils.queryNumEntries(db, MovieContract.MovieEntry.TABLE_NAME,
+                        MovieContract.MovieEntry.COLUMN_UPDATED_AT + "=0", null));
+
+        // Cache is rebuilt from scratch, it only holds a copy of the API data.
+        assertEquals("Cache should be empty after upgrade", 0,
+                DatabaseUtils.queryNumEntries(db, MovieContract.CacheEntry.TABLE_NAME));
+
+        // Search index is filled and kept up to date after the upgrade.
+        assertEquals(1, count(MoviesProvider.searchFavorites(db, "empire")));
+        ContentValues person = new ContentValues();
+        person.put(MovieContract.PersonEntry.COLUMN_PERSON_ID, 3);
+        person.put(MovieContract.PersonEntry.COLUMN_NAME, "Harrison Ford");
+        person.put(MovieContract.PersonEntry.COLUMN_AVATAR_PATH, "/ford.jpg");
+        db.insert(MovieContract.PersonEntry.TABLE_NAME, null, person);
+        ContentValues cast = new ContentValues();
+        cast.put(MovieContract.CastEntry.COLUMN_MOVIE_ID, 1891);
+        cast.put(MovieContract.CastEntry.COLUMN_PERSON_ID, 3);
+        cast.put(MovieContract.CastEntry.COLUMN_CHARACTER, "Han Solo");
+        cast.put(MovieContract.CastEntry.COLUMN_ORDER, 2);
+        db.insert(MovieContract.CastEntry.TABLE_NAME, null, cast);
+        MovieDbHelper.rebuildSearchDocument(db, "1891");
+        assertEquals(1, count(MoviesProvider.searchFavorites(db, "ford")));
+
+        // Foreign keys still work after the upgrade.
+        db.delete(MovieContract.MovieEntry.TABLE_NAME, null, null);
+        assertEquals("Cast not removed with the movie", 0,
+                DatabaseUtils.queryNumEntries(db, MovieContract.CastEntry.TABLE_NAME));
+        assertEquals("People not removed with the cast", 0,
+                DatabaseUtils.queryNumEntries(db, MovieContract.PersonEntry.TABLE_NAME));
+        assertEquals("Search index not updated", 0,
+                count(MoviesProvider.searchFavorites(db, "empire")));
+
+        helper.close();
+    }
+
+    /**
+     * Upgraded database has the same tables, columns and indexes as a freshly created one.
+     */
+    @Test
+    public void testUpgradedSchemaMatchesFreshSchema() {
+        createVersion1Database();
+
+        MovieDbHelper upgradedHelper = new MovieDbHelper(mContext, UPGRADED_DATABASE_NAME);
+        MovieDbHelper freshHelper = new MovieDbHelper(mContext, FRESH_DATABASE_NAME);
+
+        List<String> upgradedSchema = describeSchema(upgradedHelper.getReadableDatabase());
+        List<String> freshSchema = describeSchema(freshHelper.getReadableDatabase());
+
+        assertEquals("Upgraded schema differs from the fresh one", freshSchema, upgradedSchema);
+
+        upgradedHelper.close();
+        freshHelper.close();
+    }
+
+    /**
+     * Creates the version 1 database with a favorite movie and a cached list.
+     */
+    private void createVersion1Database() {
+        File path = mContext.getDatabasePath(UPGRADED_DATABASE_NAME);
+        assertTrue(path.getParentFile().isDirectory() || path.getParentFile().mkdirs());
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        for (String statement : V1_SCHEMA) {
+            db.execSQL(statement);
+        }
+
+        // Version 1 stored the release dates as text.
+        ContentValues movie = TestUtilities.createTestMovieContentValues();
+        movie.put("release_date", "1980-05-17");
+        db.insert("favorite_movies", null, movie);
+
+        for (int i = 0; i < 2; i++) {
+            ContentValues cast = new ContentValues();
+            cast.put("movie_id", 1891);
+            cast.put("name", "Actor " + i);
+            cast.put("character", "Character " + i);
+            cast.put("image_path", "/actor" + i + ".jpg");
+            db.insert("cast", null, cast);
+        }
+
+        ContentValues review = new ContentValues();
+        review.put("movie_id", 1891);
+        review.put("author", "Reviewer");
+        review.put("content", "Great movie.");
+        db.insert("reviews", null, review);
+
+        ContentValues trailer = new ContentValues();
+        trailer.put("movie_id", 1891);
+        trailer.put("title", "Trailer");
+        trailer.put("video_id", "JNwNXF9Y6kY");
+        db.insert("trailers", null, trailer);
+
+        ContentValues cached = new ContentValues();
+        cached.put("movie_id", 1891);
+        cached.put("title", "The Empire Strikes Back");
+        cached.put("poster_url", "/ghd5zOQnDaDW1mxO7R5fXXpZMu.jpg");
+        cached.put("user_rating", 8.1);
+        db.insert("api_cache", null, cached);
+
+        db.setVersion(1);
+        db.close();
+    }
+
+    /**
+     * @param cursor to count and close
+     * @return number of the rows
+     */
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Describes the schema in a comparable form: every column of every table and every index.
+     * SQL text is not compared, because rebuilt tables keep the statement of the renamed table.
+     *
+     * @param db to describe
+     * @return sorted descriptions of the columns and indexes
+     */
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+
+        Cursor objects = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' AND name NOT LIKE 'android_%' " +
+                "ORDER BY type, name", null);
+        try {
+            while (objects.moveToNext()) {
+                String type = objects.getString(0);
+                String name = objects.getString(1);
+
+                if (type.equals("table")) {
+                    Cursor columns = db.rawQuery("PRAGMA table_info('" + name + "')", null);
+                    try {
+                        while (columns.moveToNext()) {
+                            // name, type, notnull, default value, primary key
+                            schema.add(name + "." + columns.getString(1) + " " +
+                                    columns.getString(2) + " notnull=" + columns.getInt(3) +
+                                    " default=" + columns.getString(4) +
+                                    " pk=" + columns.getInt(5));
+                        }
+                    } finally {
+                        columns.close();
+                    }
+                } else if (type.equals("index")) {
+                    Cursor columns = db.rawQuery("PRAGMA index_info('" + name + "')", null);
+                    try {
+                        StringBuilder description = new StringBuilder(
+                                "index " + name + " on " + objects.getString(2) + "(");
+                        while (columns.moveToNext()) {
+                            description.append(columns.getString(2)).append(",");
+                        }
+                        schema.add(description.append(")").toString());
+                    } finally {
+                        columns.close();
+                    }
+                } else {
+                    schema.add(type + " " + name);
+                }
+            }
+        } finally {
+            objects.close();
+        }
+
+        return schema;
+    }
+}
@@ -1,19 +1,25 @@
 package android.nextlevel_global.com.popularmovies.data;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -28,6 +34,9 @@ public class TestMoviesProvider {
     /* Context used to access various parts of the system */
     private final Context mContext = InstrumentationRegistry.getTargetContext();
 
+    /* Direct access to the database of the provider */
+    private MovieDbHelper mHelper;
+
     /**
      * Setup tests.
      */
@@ -35,13 +44,18 @@ public class TestMoviesProvider {
     public void setUp() {
         // Delete all data from movies table
         // We don't use the ContentProvider delete functionality but only SQLite query.
-        MovieDbHelper db = new MovieDbHelper(mContext);
-        SQLiteDatabase database = db.getWritableDatabase();
+        mHelper = new MovieDbHelper(mContext);
+        SQLiteDatabase database = mHelper.getWritableDatabase();
 
         database.delete(MovieContract.MovieEntry.TABLE_NAME, null, null);
+    }
 
-        // Close connection to the database.
-        database.close();
+    /**
+     * Closes the connection to the database.
+     */
+    @After
+    public void tearDown() {
+        mHelper.close();
     }
 
     /**
@@ -89,8 +103,7 @@ public class TestMoviesProvider {
     @Test
     public void testBasicMovieQuery() {
         // Use MovieDbHelper to get access to the database
-        MovieDbHelper db = new MovieDbHelper(mContext);
-        SQLiteDatabase database = db.getWritableDatabase();
+        SQLiteDatabase database = mHelper.getWritableDatabase();
 
         // Obtain test data
         ContentValues cv = TestUtilities.createTestMovieContentValues();
@@ -104,9 +117,6 @@ public class TestMoviesProvider {
         String insertFailed = "Unable to insert into the database";
         assertTrue(insertFailed, movieId != -1);
 
-        // Close database - we don't need it anymore.
-        database.close();
-
         // Perform ContentProvider query. We should receive that the returned cursor will
         // contain the exact same data that is in our test data.
         Cursor cursor = mContext.getContentResolver().query(
@@ -189,8 +199,7 @@ public class TestMoviesProvider {
     @Test
     public void testMovieDelete() {
         // Use MovieDbHelper to get access to the database
-        MovieDbHelper db = new MovieDbHelper(mContext);
-        SQLiteDatabase database = db.getWritableDatabase();
+        SQLiteDatabase database = mHelper.getWritableDatabase();
 
         // Create test data values
         ContentValues cv = TestUtilities.createTestMovieContentValues();
@@ -201,9 +210,6 @@ public class TestMoviesProvider {
         String insertFailed = "Unable to insert into the database";
         assertTrue(insertFailed, movieRowId != -1);
 
-        // Close database
-        database.close();
-
         // URI to delete based on movie ID from themoviedb.org.
         Uri uriToDelete = MovieContract.MovieEntry.buildFavoriteMovieUriWithId(
                 cv.getAsString(MovieContract.MovieEntry.COLUMN_MOVIE_ID));
@@ -214,4 +220,317 @@ public class TestMoviesProvider {
         String deleteFailed = "Unable to delete item in the database";
         assertTrue(deleteFailed, moviesDeleted == 1);
     }
-}
\ No newline at end of file
+
+    /**
+     * Saving a favorite with a large cast is one transaction with one notification.
+     *
+     * @throws Exception when the notifications are not delivered
+     */
+    @Test
+    public void testSaveFavoriteWithLargeCast() throws Exception {
+        final int castSize = 100;
+        ContentValues movie = TestUtilities.createTestMovieContentValues();
+
+        ContentValues[] cast = new ContentValues[castSize];
+        for (int i = 0; i < castSize; i++) {
+            cast[i] = new ContentValues();
+            cast[i].put(MovieContract.CastEntry.COLUMN_PERSON_ID, i + 1);
+            cast[i].put(MovieContract.CastEntry.COLUMN_ORDER, i);
+            cast[i].put(MovieContract.CastEntry.COLUMN_NAME, "Actor " + i);
+            cast[i].put(MovieContract.CastEntry.COLUMN_CHARACTER, "Character " + i);
+            cast[i].put(MovieContract.CastEntry.COLUMN_AVATAR_PATH, "/actor" + i + ".jpg");
+        }
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(MovieContract.EXTRA_MOVIE, movie);
+        extras.putParcelableArray(MovieContract.EXTRA_CAST, cast);
+
+        // Count the notifications of the movie and its data.
+        ContentResolver resolver = mContext.getContentResolver();
+        TestUtilities.NotificationCounter notifications = TestUtilities.NotificationCounter
+                .register(resolver, MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI);
+
+        try {
+            resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                    MovieContract.METHOD_SAVE_FAVORITE, null, extras);
+
+            assertEquals("Error: Saving the favorite should notify once", 1,
+                    notifications.awaitCount());
+        } finally {
+            notifications.unregister();
+        }
+
+        SQLiteDatabase database = mHelper.getReadableDatabase();
+        assertEquals("Error: Cast has not been saved", castSize,
+                DatabaseUtils.queryNumEntries(database, MovieContract.CastEntry.TABLE_NAME,
+                        MovieContract.CastEntry.COLUMN_MOVIE_ID + "=?",
+                        new String[]{movie.getAsString(MovieContract.MovieEntry.COLUMN_MOVIE_ID)}));
+        assertEquals("Error: Cast is not searchable", 1,
+                count(MoviesProvider.searchFavorites(database, "Character 99")));
+    }
+
+    /**
+     * Actor who plays in two favorites is stored once, and is removed with the last of them.
+     */
+    @Test
+    public void testPersonSharedByFavorites() {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri personUri = MovieContract.PersonEntry.buildFavoriteMoviesWithPersonUri("4");
+
+        for (int movieId : new int[]{1891, 1892}) {
+            ContentValues movie = TestUtilities.createTestMovieContentValues();
+            movie.put(MovieContract.MovieEntry.COLUMN_MOVIE_ID, movieId);
+
+            ContentValues actor = new ContentValues();
+            actor.put(MovieContract.CastEntry.COLUMN_PERSON_ID, 4);
+            actor.put(MovieContract.CastEntry.COLUMN_ORDER, 0);
+            actor.put(MovieContract.CastEntry.COLUMN_NAME, "Carrie Fisher");
+            actor.put(MovieContract.CastEntry.COLUMN_CHARACTER, "Princess Leia");
+            actor.put(MovieContract.CastEntry.COLUMN_AVATAR_PATH, "/fisher.jpg");
+
+            Bundle extras = new Bundle();
+            extras.putParcelable(MovieContract.EXTRA_MOVIE, movie);
+            extras.putParcelableArray(MovieContract.EXTRA_CAST, new ContentValues[]{actor});
+            resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                    MovieContract.METHOD_SAVE_FAVORITE, null, extras);
+        }
+
+        SQLiteDatabase database = mHelper.getReadableDatabase();
+        assertEquals("Error: Person should be stored once", 1,
+                DatabaseUtils.queryNumEntries(database, MovieContract.PersonEntry.TABLE_NAME));
+
+        Cursor cursor = resolver.query(personUri, null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: Both favorites of the person should be found", 2, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(MovieContract.CastEntry.buildFavoriteMovieCastUriWithId("1891"),
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Carrie Fisher", cursor.getString(
+                cursor.getColumnIndex(MovieContract.CastEntry.COLUMN_NAME)));
+        cursor.close();
+
+        resolver.delete(MovieContract.MovieEntry.buildFavoriteMovieUriWithId("1891"), null, null);
+        assertEquals("Error: Person is still in a favorite", 1,
+                DatabaseUtils.queryNumEntries(database, MovieContract.PersonEntry.TABLE_NAME));
+
+        resolver.delete(MovieContract.MovieEntry.buildFavoriteMovieUriWithId("1892"), null, null);
+        assertEquals("Error: Person should be removed with the last favorite", 0,
+                DatabaseUtils.queryNumEntries(database, MovieContract.PersonEntry.TABLE_NAME));
+    }
+
+    /**
+     * Refresh of an up to date favorite writes nothing, otherwise only the changed rows.
+     *
+     * @throws Exception when the notifications are not delivered
+     */
+    @Test
+    public void testRefreshFavoriteWritesOnlyChanges() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        Bundle extras = createFavoriteExtras(
+                new String[]{"Great sequel.", "Too dark."}, "Official Trailer");
+        resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                MovieContract.METHOD_SAVE_FAVORITE, null, extras);
+
+        TestUtilities.NotificationCounter notifications = TestUtilities.NotificationCounter
+                .register(resolver, MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI);
+
+        Bundle result;
+        try {
+            result = resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                    MovieContract.METHOD_REFRESH_FAVORITE, null, extras);
+
+            assertEquals("Error: Up to date favorite should not notify", 0,
+                    notifications.awaitCount());
+        } finally {
+            notifications.unregister();
+        }
+
+        assertNotNull(result);
+        assertEquals("Error: Up to date favorite should not be written", 0,
+                result.getInt(MovieContract.EXTRA_ROWS_CHANGED));
+
+        // One review is gone, one is new and the trailer has a new title.
+        result = resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                MovieContract.METHOD_REFRESH_FAVORITE, null, createFavoriteExtras(
+                        new String[]{"Great sequel.", "Best of the saga."}, "Trailer"));
+        assertNotNull(result);
+        assertEquals(3, result.getInt(MovieContract.EXTRA_ROWS_CHANGED));
+
+        SQLiteDatabase database = mHelper.getReadableDatabase();
+        assertEquals("Error: New review is not searchable", 1,
+                count(MoviesProvider.searchFavorites(database, "saga")));
+        assertEquals("Error: Removed review is still searchable", 0,
+                count(MoviesProvider.searchFavorites(database, "dark")));
+
+        Cursor cursor = resolver.query(
+                MovieContract.ReviewEntry.buildFavoriteMovieReviewsUriWithId("1891"),
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(
+                MovieContract.TrailerEntry.buildFavoriteMovieTrailersUriWithId("1891"),
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Trailer", cursor.getString(
+                cursor.getColumnIndex(MovieContract.TrailerEntry.COLUMN_TITLE)));
+        cursor.close();
+
+        // Removing the reviews leaves the trailers alone.
+        resolver.delete(MovieContract.ReviewEntry.buildFavoriteMovieReviewsUriWithId("1891"),
+                null, null);
+        cursor = resolver.query(
+                MovieContract.TrailerEntry.buildFavoriteMovieTrailersUriWithId("1891"),
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: Trailers removed with the reviews", 1, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: Removed reviews are still searchable", 0,
+                count(MoviesProvider.searchFavorites(database, "saga")));
+    }
+
+    /**
+     * Movie which has moved to the next page between the fetches stays on both cached pages,
+     * but the list shows it once, at its first place.
+     */
+    @Test
+    public void testMovieOnTwoPagesIsListedOnce() {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri firstPageUri = MovieContract.CacheEntry.buildPopularMoviesUriWithPage("1");
+        Uri secondPageUri = MovieContract.CacheEntry.buildPopularMoviesUriWithPage("2");
+        resolver.delete(firstPageUri, null, null);
+
+        resolver.bulkInsert(firstPageUri, new ContentValues[]{
+                createCachedMovieValues(1891), createCachedMovieValues(1892)});
+        resolver.bulkInsert(secondPageUri, new ContentValues[]{
+                createCachedMovieValues(1892), createCachedMovieValues(1893)});
+
+        Cursor cursor = resolver.query(secondPageUri,
+                MovieContract.CacheEntry.MOVIE_LIST_PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: Movie on both pages should be listed once", 3, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(firstPageUri,
+                MovieContract.CacheEntry.MOVIE_LIST_PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: First page has lost the moved movie", 2, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(MovieContract.CacheEntry.buildPageRangeUri(secondPageUri, 2),
+                MovieContract.CacheEntry.MOVIE_LIST_PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: Appended page should leave out the listed movie", 1,
+                cursor.getCount());
+        assertEquals("1893", cursor.getString(0));
+        cursor.close();
+
+        resolver.delete(firstPageUri, null, null);
+    }
+
+    /**
+     * @param movieId of the cached movie
+     * @return values of the movie fetched with a list page
+     */
+    private static ContentValues createCachedMovieValues(int movieId) {
+        ContentValues cv = new ContentValues();
+        cv.put(MovieContract.CacheEntry.COLUMN_MOVIE_ID, movieId);
+        cv.put(MovieContract.CacheEntry.COLUMN_TITLE, "Movie " + movieId);
+        cv.put(MovieContract.CacheEntry.COLUMN_POSTER_URL, "/" + movieId + ".jpg");
+        cv.put(MovieContract.CacheEntry.COLUMN_USER_RATING, 7.5);
+
+        return cv;
+    }
+
+    /**
+     * @param reviews      contents of the reviews
+     * @param trailerTitle title of the only trailer
+     * @return arguments of the favorite methods for the test movie
+     */
+    private static Bundle createFavoriteExtras(String[] reviews, String trailerTitle) {
+        ContentValues[] reviewValues = new ContentValues[reviews.length];
+        for (int i = 0; i < reviews.length; i++) {
+            reviewValues[i] = new ContentValues();
+            reviewValues[i].put(MovieContract.ReviewEntry.COLUMN_AUTHOR, "Reviewer");
+            reviewValues[i].put(MovieContract.ReviewEntry.COLUMN_CONTENT, reviews[i]);
+        }
+
+        ContentValues trailer = new ContentValues();
+        trailer.put(MovieContract.TrailerEntry.COLUMN_TITLE, trailerTitle);
+        trailer.put(MovieContract.TrailerEntry.COLUMN_VIDEO_ID, "JNwNXF9Y6kY");
+
+        ContentValues actor = TestUtilities.createTestCastContentValues(1891);
+        actor.putAll(TestUtilities.createTestPersonContentValues());
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(MovieContract.EXTRA_MOVIE,
+                TestUtilities.createTestMovieContentValues());
+        extras.putParcelableArray(MovieContract.EXTRA_CAST, new ContentValues[]{actor});
+        extras.putParcelableArray(MovieContract.EXTRA_REVIEWS, reviewValues);
+        extras.putParcelableArray(MovieContract.EXTRA_TRAILERS, new ContentValues[]{trailer});
+        return extras;
+    }
+
+    /**
+     * Batch sends one notification after the commit, instead of one per operation.
+     *
+     * @throws Exception when the batch fails
+     */
+    @Test
+    public void testBatchNotifiesOnceAfterCommit() throws Exception {
+        ContentValues movie = TestUtilities.createTestMovieContentValues();
+        String movieId = movie.getAsString(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(ContentProviderOperation
+                .newInsert(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI)
+                .withValues(movie)
+                .build());
+        for (int i = 0; i < 3; i++) {
+            ops.add(ContentProviderOperation
+                    .newInsert(MovieContract.CastEntry.buildFavoriteMovieCastUriWithId(movieId))
+                    .withValue(MovieContract.CastEntry.COLUMN_MOVIE_ID, movieId)
+                    .withValue(MovieContract.CastEntry.COLUMN_PERSON_ID, i + 1)
+                    .withValue(MovieContract.CastEntry.COLUMN_ORDER, i)
+                    .withValue(MovieContract.CastEntry.COLUMN_NAME, "Actor " + i)
+                    .withValue(MovieContract.CastEntry.COLUMN_CHARACTER, "Character " + i)
+                    .withValue(MovieContract.CastEntry.COLUMN_AVATAR_PATH, "/actor" + i + ".jpg")
+                    .build());
+        }
+
+        // Count the notifications of the movie and its data.
+        ContentResolver resolver = mContext.getContentResolver();
+        TestUtilities.NotificationCounter notifications = TestUtilities.NotificationCounter
+                .register(resolver, MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI);
+
+        try {
+            resolver.applyBatch(MovieContract.CONTENT_AUTHORITY, ops);
+
+            assertEquals("Error: Batch should notify once", 1, notifications.awaitCount());
+        } finally {
+            notifications.unregister();
+        }
+
+        assertEquals("Error: Cast of the batch is not searchable", 1,
+                count(MoviesProvider.searchFavorites(mHelper.getReadableDatabase(),
+                        "Character 2")));
+    }
+
+    /**
+     * @param cursor to count and close
+     * @return number of the rows
+     */
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
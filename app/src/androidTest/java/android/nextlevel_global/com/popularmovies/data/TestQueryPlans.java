@@ -0,0 +1,310 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Query plan regression tests. The statements are built from the tables, join maps,
+ * selections and sort orders of {@link MoviesProvider} and of its callers, explained with
+ * EXPLAIN QUERY PLAN, and the test fails when they scan a whole table or sort in a temporary
+ * b-tree instead of using an index.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestQueryPlans {
+
+    /* Name of the test database, so the application database is not touched */
+    private static final String DATABASE_NAME = "query_plans_test.db";
+
+    private static final String MOVIE_ID = "1891";
+    private static final String PERSON_ID = "4";
+    private static final String CATEGORY = MovieContract.PATH_POPULAR_MOVIES;
+    private static final String PAGE = "2";
+    private static final String MATCH = "star*";
+    private static final String TIME = "1500000000000";
+
+    /* Context used to access various parts of the system */
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private MovieDbHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * Creates an empty test database.
+     */
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new MovieDbHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    /**
+     * Removes the test database.
+     */
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * The favorite movie is found by its movie id (single movie screen, refresh and delete).
+     */
+    @Test
+    public void testFavoriteByMovieId() {
+        assertIndexed(query(MovieContract.MovieEntry.TABLE_NAME,
+                MoviesProvider.MOVIE_ID_SELECTION, null), MOVIE_ID);
+        assertIndexed(delete(MovieContract.MovieEntry.TABLE_NAME,
+                MoviesProvider.MOVIE_ID_SELECTION), MOVIE_ID);
+    }
+
+    /**
+     * The favorites list reads the whole table on purpose, but it must not be sorted
+     * in a temporary b-tree.
+     */
+    @Test
+    public void testFavoritesList() {
+        List<String> plan = explain(query(MovieContract.MovieEntry.TABLE_NAME, null,
+                MovieContract.MovieEntry.NEWEST_FIRST_SORT_ORDER));
+        for (String detail : plan) {
+            assertFalse("Sorted without index: " + detail, detail.contains("TEMP B-TREE"));
+        }
+    }
+
+    /**
+     * Stale favorites are read in batches by their refresh time, oldest first.
+     */
+    @Test
+    public void testStaleFavoritesBatch() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false,
+                MovieContract.MovieEntry.TABLE_NAME,
+                FavoritesRefresher.BATCH_PROJECTION,
+                FavoritesRefresher.BATCH_SELECTION,
+                null, null,
+                FavoritesRefresher.BATCH_SORT_ORDER,
+                String.valueOf(FavoritesRefresher.BATCH_SIZE)), TIME, TIME, TIME, "1");
+    }
+
+    /**
+     * Cast is read with the people in the order of the credits, reviews and trailers
+     * by the movie id.
+     */
+    @Test
+    public void testMovieDataByMovieId() {
+        assertIndexed(MoviesProvider.buildCastQuery().buildQuery(null,
+                MoviesProvider.CAST_SELECTION, null, null, MoviesProvider.CAST_SORT_ORDER, null),
+                MOVIE_ID);
+
+        // Stored rows compared by the refresh.
+        assertIndexed(MoviesProvider.buildCastQuery().buildQuery(null,
+                MoviesProvider.CAST_SELECTION, null, null, null, null), MOVIE_ID);
+
+        String[] tables = {
+                MovieContract.ReviewEntry.TABLE_NAME,
+                MovieContract.TrailerEntry.TABLE_NAME};
+        for (String table : tables) {
+            assertIndexed(query(table, MoviesProvider.MOVIE_ID_SELECTION, null), MOVIE_ID);
+        }
+    }
+
+    /**
+     * Other favorites of the person are found by the person id, and the person who is no
+     * longer in any cast is removed by the trigger.
+     */
+    @Test
+    public void testPersonMovies() {
+        assertIndexed(MoviesProvider.buildPersonMoviesQuery().buildQuery(null,
+                MoviesProvider.PERSON_MOVIES_SELECTION, null, null, null, null), PERSON_ID);
+        assertIndexed(triggerStatement("cast_remove_unused_person"), PERSON_ID, PERSON_ID);
+    }
+
+    /**
+     * Search reads the full-text index, not every document, and finds the favorites by
+     * the document id. Results are ranked, so only the sort is allowed.
+     */
+    @Test
+    public void testSearch() {
+        assertSearchIndexed(MoviesProvider.SEARCH_QUERY, MATCH, MATCH);
+    }
+
+    /**
+     * Search document of the saved movie is found by the document id, and its cast and
+     * reviews are read by the movie id.
+     */
+    @Test
+    public void testSearchDocumentRebuild() {
+        assertSearchIndexed(MovieDbHelper.SQL_REBUILD_SEARCH_DOCUMENT, MOVIE_ID);
+    }
+
+    /**
+     * Cast, reviews and trailers are deleted by the movie id, explicitly or by the foreign key
+     * cascade when the favorite is removed. EXPLAIN doesn't show the plans of the cascades,
+     * so the equivalent statements are checked.
+     */
+    @Test
+    public void testMovieDataDeleteByMovieId() {
+        String[] tables = {
+                MovieContract.CastEntry.TABLE_NAME,
+                MovieContract.ReviewEntry.TABLE_NAME,
+                MovieContract.TrailerEntry.TABLE_NAME};
+
+        for (String table : tables) {
+            assertIndexed(delete(table, MoviesProvider.MOVIE_ID_SELECTION), MOVIE_ID);
+        }
+    }
+
+    /**
+     * Cached pages of the category are read in the order of the API results, and the earlier
+     * places of every movie are found by the movie id.
+     */
+    @Test
+    public void testCachedPages() {
+        // List query, from the first page and from the page range.
+        assertIndexed(query(MovieContract.CacheEntry.TABLE_NAME,
+                MoviesProvider.CACHE_PAGES_SELECTION, MoviesProvider.CACHE_SORT_ORDER),
+                CATEGORY, PAGE);
+        assertIndexed(query(MovieContract.CacheEntry.TABLE_NAME,
+                MoviesProvider.CACHE_PAGES_SELECTION + " AND " +
+                        MoviesProvider.CACHE_FIRST_PAGE_SELECTION,
+                MoviesProvider.CACHE_SORT_ORDER), CATEGORY, PAGE, PAGE);
+
+        // Fetch time of the page, read by the sync engine through the list query.
+        assertIndexed(query(MovieContract.CacheEntry.TABLE_NAME,
+                MoviesProvider.CACHE_PAGES_SELECTION + " AND (" +
+                        MoviesSyncEngine.FETCH_TIME_SELECTION + ")",
+                MoviesProvider.CACHE_SORT_ORDER), CATEGORY, PAGE, PAGE);
+
+        // Comparison of the fetched page with the cached one.
+        assertIndexed(query(MovieContract.CacheEntry.TABLE_NAME,
+                MoviesProvider.CACHE_PAGE_SELECTION, MoviesProvider.CACHE_PAGE_SORT_ORDER),
+                CATEGORY, PAGE);
+
+        // Replacement of the page and of the whole category.
+        assertIndexed(delete(MovieContract.CacheEntry.TABLE_NAME,
+                MoviesProvider.CACHE_PAGE_SELECTION), CATEGORY, PAGE);
+        assertIndexed(delete(MovieContract.CacheEntry.TABLE_NAME,
+                MoviesProvider.CACHE_CATEGORY_SELECTION), CATEGORY);
+    }
+
+    /**
+     * Builds the SQL of the query, the same way SQLiteDatabase#query does.
+     *
+     * @param table     to query
+     * @param selection of the rows
+     * @param sortOrder of the rows
+     * @return SQL of the query
+     */
+    private static String query(String table, String selection, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false, table, null, selection,
+                null, null, sortOrder, null);
+    }
+
+    /**
+     * Builds the SQL of the delete, the same way SQLiteDatabase#delete does.
+     *
+     * @param table     to delete from
+     * @param selection of the rows
+     * @return SQL of the delete
+     */
+    private static String delete(String table, String selection) {
+        return "DELETE FROM " + table + " WHERE " + selection;
+    }
+
+    /**
+     * Reads the statement of the trigger from the schema, with the old row values
+     * as the arguments.
+     *
+     * @param name of the trigger
+     * @return SQL of the statement
+     */
+    private String triggerStatement(String name) {
+        Cursor cursor = mDatabase.rawQuery("SELECT sql FROM sqlite_master " +
+                "WHERE type = 'trigger' AND name = ?", new String[]{name});
+        try {
+            assertTrue("Missing trigger " + name, cursor.moveToFirst());
+
+            String sql = cursor.getString(0);
+            String statement = sql.substring(sql.indexOf(" BEGIN ") + " BEGIN ".length(),
+                    sql.lastIndexOf(" END"));
+            return statement.replaceAll(";\\s*$", "").replaceAll("old\\.\\w+", "?");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Explains the statement and checks that it doesn't scan the table nor sort.
+     *
+     * @param sql  of the statement
+     * @param args of the statement
+     */
+    private void assertIndexed(String sql, String... args) {
+        List<String> plan = explain(sql, args);
+        assertTrue("Empty plan of: " + sql, !plan.isEmpty());
+
+        for (String detail : plan) {
+            assertFalse("Full scan in: " + sql + "\n" + plan, detail.startsWith("SCAN"));
+            assertFalse("Sorted without index in: " + sql + "\n" + plan,
+                    detail.contains("TEMP B-TREE"));
+        }
+    }
+
+    /**
+     * Explains the statement of the search index and checks that it doesn't scan the index
+     * nor the tables. Index 0 of the FTS table is the full scan.
+     *
+     * @param sql  of the statement
+     * @param args of the statement
+     */
+    private void assertSearchIndexed(String sql, String... args) {
+        List<String> plan = explain(sql, args);
+        assertTrue("Empty plan of: " + sql, !plan.isEmpty());
+
+        for (String detail : plan) {
+            if (detail.contains("VIRTUAL TABLE")) {
+                assertFalse("Full scan of the search index in: " + sql + "\n" + plan,
+                        detail.contains("VIRTUAL TABLE INDEX 0:"));
+            } else {
+                assertFalse("Full scan in: " + sql + "\n" + plan, detail.startsWith("SCAN"));
+            }
+        }
+    }
+
+    /**
+     * Runs EXPLAIN QUERY PLAN of the statement.
+     *
+     * @param sql  of the statement
+     * @param args of the statement
+     * @return details of the plan steps
+     */
+    private List<String> explain(String sql, String... args) {
+        List<String> plan = new ArrayList<>();
+
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return plan;
+    }
+}
@@ -0,0 +1,388 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.nextlevel_global.com.popularmovies.models.Cast;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.models.Review;
+import android.nextlevel_global.com.popularmovies.models.Trailer;
+import android.nextlevel_global.com.popularmovies.utilities.MovieDetailsFetcher;
+import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
+import android.nextlevel_global.com.popularmovies.utilities.ReplayTransport;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Measures the list and detail pipelines end-to-end against the recorded themoviedb.org
+ * responses, so the results don't depend on the network.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestReplayPipeline {
+
+    private static final String LOG_TAG = TestReplayPipeline.class.getSimpleName();
+
+    /* Directory of the recorded responses in the test assets */
+    private static final String FIXTURES_DIRECTORY = "tmdb";
+
+    /* Simulated network: 3G-like round trip and bandwidth */
+    private static final long LATENCY_MILLIS = 100;
+    private static final long BYTES_PER_SECOND = 256 * 1024;
+
+    private static final int PAGES = 5;
+    private static final int DETAIL_FETCHES = 10;
+
+    /* More cancelled fetches than the failures which open the circuit of the host */
+    private static final int CANCELLED_FETCHES = 6;
+
+    /* Context used to access various parts of the system */
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ReplayTransport mTransport;
+
+    /**
+     * Replaces the network with the recorded responses. Circuit breakers and rate limit start
+     * from scratch, so the failures of one test don't affect the others.
+     */
+    @Before
+    public void setUp() {
+        Context testContext = InstrumentationRegistry.getContext();
+        mTransport = new ReplayTransport(
+                ReplayTransport.fromAssets(testContext.getAssets(), FIXTURES_DIRECTORY),
+                NetworkUtils.getHttpClient(),
+                new Random(42));
+        mTransport.setLatency(LATENCY_MILLIS);
+        mTransport.setBandwidth(BYTES_PER_SECOND);
+
+        NetworkUtils.setTransport(mTransport);
+    }
+
+    /**
+     * Restores the real network.
+     */
+    @After
+    public void tearDown() {
+        NetworkUtils.setTransport(null);
+    }
+
+    /**
+     * Syncs the list pages and reads them through the content provider, the same way the list
+     * screen does.
+     */
+    @Test
+    public void testListPipeline() {
+        // Start with an empty cache, so every page is fetched.
+        mContext.getContentResolver().delete(
+                MovieContract.CacheEntry.buildPopularMoviesUriWithPage("1"), null, null);
+
+        long start = SystemClock.elapsedRealtime();
+
+        for (int page = 1; page <= PAGES; page++) {
+            Uri pageUri = MovieContract.CacheEntry.buildPopularMoviesUriWithPage(
+                    String.valueOf(page));
+            assertTrue("Error: Page " + page + " has not been synced",
+                    MoviesSyncEngine.getInstance(mContext).syncPage(pageUri));
+
+            Cursor cursor = mContext.getContentResolver().query(
+                    pageUri,
+                    MovieContract.CacheEntry.MOVIE_LIST_PROJECTION,
+                    null,
+                    null,
+                    null);
+
+            assertNotNull("Error: Page " + page + " has not been loaded", cursor);
+            assertTrue("Error: Page " + page + " is empty", cursor.getCount() > 0);
+            cursor.close();
+
+            // Appended page is read without the pages before it.
+            cursor = mContext.getContentResolver().query(
+                    MovieContract.CacheEntry.buildPageRangeUri(pageUri, page),
+                    MovieContract.CacheEntry.MOVIE_PAGE_PROJECTION,
+                    null,
+                    null,
+                    null);
+
+            assertNotNull("Error: Page " + page + " has not been loaded alone", cursor);
+            assertTrue("Error: Page " + page + " is empty", cursor.moveToFirst());
+            do {
+                assertEquals("Error: Row of another page has been read", page, cursor.getInt(
+                        cursor.getColumnIndex(MovieContract.CacheEntry.COLUMN_PAGE)));
+            } while (cursor.moveToNext());
+            cursor.close();
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "List pipeline: " + PAGES + " pages in " + elapsed + "ms, "
+                + (elapsed / PAGES) + "ms per page");
+        assertEquals(PAGES, mTransport.getRequestCount());
+    }
+
+    /**
+     * Prefetches the missing page and syncs it while the prefetch is on the way, the same
+     * way the infinite scroll catches up with the prefetcher. The sync joins the prefetch,
+     * and the page is stored in the cache.
+     */
+    @Test
+    public void testSyncJoinsPrefetch() {
+        Uri pageUri = MovieContract.CacheEntry.buildPopularMoviesUriWithPage("2");
+        mContext.getContentResolver().delete(pageUri, null, null);
+
+        MoviesSyncEngine.getInstance(mContext).prefetchPage(pageUri);
+        assertTrue("Error: Prefetched page has not been synced",
+                MoviesSyncEngine.getInstance(mContext).syncPage(pageUri));
+        assertEquals("Error: Prefetched page has been fetched again",
+                1, mTransport.getRequestCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                MovieContract.CacheEntry.buildPageRangeUri(pageUri, 2),
+                MovieContract.CacheEntry.MOVIE_PAGE_PROJECTION,
+                null,
+                null,
+                null);
+
+        assertNotNull("Error: Page has not been queried", cursor);
+        assertTrue("Error: Prefetched page has not been stored", cursor.getCount() > 0);
+        cursor.close();
+    }
+
+    /**
+     * Cancels the sync of the missing page while its response is on the way. The caller stops
+     * waiting at once and the response which comes later is not stored.
+     *
+     * @throws Exception on interrupted sleep
+     */
+    @Test
+    public void testCancelledSyncIsNotStored() throws Exception {
+        final long slowLatencyMillis = 2000;
+        mTransport.setLatency(slowLatencyMillis);
+
+        Uri pageUri = MovieContract.CacheEntry.buildPopularMoviesUriWithPage("1");
+        mContext.getContentResolver().delete(pageUri, null, null);
+
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(slowLatencyMillis / 4);
+                cancellationSignal.cancel();
+            }
+        }).start();
+
+        long start = SystemClock.elapsedRealtime();
+        assertFalse("Error: Cancelled sync has reported the page as synced",
+                MoviesSyncEngine.getInstance(mContext).syncPage(pageUri, cancellationSignal));
+        assertTrue("Error: Caller has waited for the cancelled sync",
+                SystemClock.elapsedRealtime() - start < slowLatencyMillis);
+
+        // Let the replayed response arrive.
+        Thread.sleep(slowLatencyMillis * 2);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                pageUri,
+                MovieContract.CacheEntry.MOVIE_LIST_PROJECTION,
+                null,
+                null,
+                null);
+
+        assertNotNull("Error: Page has not been queried", cursor);
+        assertEquals("Error: Cancelled sync has stored the page", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * Fetches the movie details, the same way the details screen does.
+     *
+     * @throws Exception on fetch error
+     */
+    @Test
+    public void testDetailPipeline() throws Exception {
+        long start = SystemClock.elapsedRealtime();
+
+        for (int i = 0; i < DETAIL_FETCHES; i++) {
+            Movie movie = MovieDetailsFetcher.fetchMovie(String.valueOf(1000 + i));
+
+            assertNotNull(movie);
+            assertEquals(12, movie.getCastList().size());
+            assertEquals(4, movie.getReviewsList().size());
+            assertEquals(3, movie.getTrailers().size());
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "Detail pipeline: " + DETAIL_FETCHES + " movies in " + elapsed + "ms, "
+                + (elapsed / DETAIL_FETCHES) + "ms per movie");
+
+        // Details, cast, reviews and trailers are fetched with a single request.
+        assertEquals(DETAIL_FETCHES, mTransport.getRequestCount());
+    }
+
+    /**
+     * Checks that the injected server errors are recovered by the retries. Responses come
+     * without the latency, so only the retries wait.
+     *
+     * @throws Exception on fetch error
+     */
+    @Test
+    public void testDetailPipelineWithServerErrors() throws Exception {
+        mTransport.setLatency(0);
+        mTransport.setBandwidth(0);
+        mTransport.setErrorRate(0.2f, 503);
+
+        for (int i = 0; i < DETAIL_FETCHES; i++) {
+            Movie movie = MovieDetailsFetcher.fetchMovie(String.valueOf(1000 + i));
+            assertNotNull(movie);
+        }
+
+        assertTrue(mTransport.getRequestCount() >= DETAIL_FETCHES);
+    }
+
+    /**
+     * Cancels the detail fetches while their responses are on the way. Cancelled calls are
+     * not retried and they don't open the circuit of the host, so the next fetch succeeds.
+     *
+     * @throws Exception on fetch error
+     */
+    @Test
+    public void testCancelledFetchesKeepCircuitClosed() throws Exception {
+        final long slowLatencyMillis = 2000;
+        mTransport.setLatency(slowLatencyMillis);
+        mTransport.setBandwidth(0);
+
+        for (int i = 0; i < CANCELLED_FETCHES; i++) {
+            final CancellationSignal cancellationSignal = new CancellationSignal();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(slowLatencyMillis / 20);
+                    cancellationSignal.cancel();
+                }
+            }).start();
+
+            try {
+                MovieDetailsFetcher.fetchMovie(String.valueOf(2000 + i), cancellationSignal);
+                fail("Error: Cancelled fetch has returned the movie");
+            } catch (OperationCanceledException e) {
+                // Expected, the caller has cancelled the fetch.
+            }
+        }
+
+        assertEquals("Error: Cancelled fetches have been retried",
+                CANCELLED_FETCHES, mTransport.getRequestCount());
+
+        // Open circuit would fail the next fetch at once.
+        mTransport.setLatency(0);
+        Movie movie = MovieDetailsFetcher.fetchMovie("1000");
+        assertNotNull(movie);
+        assertEquals(CANCELLED_FETCHES + 1, mTransport.getRequestCount());
+    }
+
+    /**
+     * Joins the second caller to the detail fetch which is in flight. Both callers get their
+     * own copy of the movie with every field of the fetched one.
+     *
+     * @throws Exception on fetch error
+     */
+    @Test
+    public void testJoinedFetchCopiesEveryField() throws Exception {
+        final long slowLatencyMillis = 1000;
+        mTransport.setLatency(slowLatencyMillis);
+        mTransport.setBandwidth(0);
+
+        final String movieId = "1000";
+        final AtomicReference<Movie> ownerMovie = new AtomicReference<>();
+        final AtomicReference<Exception> ownerError = new AtomicReference<>();
+        Thread owner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ownerMovie.set(MovieDetailsFetcher.fetchMovie(movieId));
+                } catch (Exception e) {
+                    ownerError.set(e);
+                }
+            }
+        });
+        owner.start();
+
+        SystemClock.sleep(slowLatencyMillis / 4);
+        Movie joinedMovie = MovieDetailsFetcher.fetchMovie(movieId);
+        owner.join();
+
+        if (ownerError.get() != null) {
+            throw ownerError.get();
+        }
+        assertEquals("Error: Second caller has not joined the fetch",
+                1, mTransport.getRequestCount());
+
+        // Fetch which nobody joins returns the parsed movie itself.
+        mTransport.setLatency(0);
+        Movie expected = MovieDetailsFetcher.fetchMovie(movieId);
+        assertNotNull(expected.getBackdropUrl());
+
+        assertSameMovie(expected, ownerMovie.get());
+        assertSameMovie(expected, joinedMovie);
+        assertTrue("Error: Callers share the movie", ownerMovie.get() != joinedMovie);
+    }
+
+    /**
+     * Compares every field of the movies, with their cast, reviews and trailers.
+     *
+     * @param expected movie
+     * @param actual   movie
+     */
+    private static void assertSameMovie(Movie expected, Movie actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getOverview(), actual.getOverview());
+        assertEquals(expected.getPosterUrl(), actual.getPosterUrl());
+        assertEquals(expected.getBackdropUrl(), actual.getBackdropUrl());
+        assertEquals(expected.getUserRating(), actual.getUserRating(), 0);
+        assertEquals(expected.getReleaseDate(), actual.getReleaseDate());
+        assertEquals(expected.getRuntime(), actual.getRuntime());
+        assertEquals(expected.isFavorite(), actual.isFavorite());
+
+        List<Cast> castList = actual.getCastList();
+        assertEquals(expected.getCastList().size(), castList.size());
+        for (int i = 0; i < castList.size(); i++) {
+            Cast cast = expected.getCastList().get(i);
+            assertEquals(cast.getId(), castList.get(i).getId());
+            assertEquals(cast.getName(), castList.get(i).getName());
+            assertEquals(cast.getCharacter(), castList.get(i).getCharacter());
+            assertEquals(cast.getImagePath(), castList.get(i).getImagePath());
+        }
+
+        List<Review> reviews = actual.getReviewsList();
+        assertEquals(expected.getReviewsList().size(), reviews.size());
+        for (int i = 0; i < reviews.size(); i++) {
+            Review review = expected.getReviewsList().get(i);
+            assertEquals(review.getAuthor(), reviews.get(i).getAuthor());
+            assertEquals(review.getContent(), reviews.get(i).getContent());
+        }
+
+        List<Trailer> trailers = actual.getTrailers();
+        assertEquals(expected.getTrailers().size(), trailers.size());
+        for (int i = 0; i < trailers.size(); i++) {
+            Trailer trailer = expected.getTrailers().get(i);
+            assertEquals(trailer.getTitle(), trailers.get(i).getTitle());
+            assertEquals(trailer.getVideoId(), trailers.get(i).getVideoId());
+        }
+    }
+}
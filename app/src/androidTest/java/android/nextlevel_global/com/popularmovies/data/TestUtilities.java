@@ -1,10 +1,16 @@
 package android.nextlevel_global.com.popularmovies.data;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -83,7 +89,7 @@ class TestUtilities {
         cv.put(MovieContract.MovieEntry.COLUMN_POSTER_URL, "/ghd5zOQnDaDW1mxO7R5fXXpZMu.jpg");
         cv.put(MovieContract.MovieEntry.COLUMN_BACKDROP_URL, "/d8duYyyC9J5T825Hg7grmaabfxQ.jpg");
         cv.put(MovieContract.MovieEntry.COLUMN_USER_RATING, 8.1);
-        cv.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "1980-05-17");
+        cv.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, 3789); // 1980-05-17
         cv.put(MovieContract.MovieEntry.COLUMN_RUNTIME, 124);
 
         return cv;
@@ -98,10 +104,88 @@ class TestUtilities {
     static ContentValues createTestCastContentValues(long _vid) {
         ContentValues cv = new ContentValues();
         cv.put(MovieContract.CastEntry.COLUMN_MOVIE_ID, _vid);
-        cv.put(MovieContract.CastEntry.COLUMN_NAME, "Darth Vader");
+        cv.put(MovieContract.CastEntry.COLUMN_PERSON_ID, 24343);
         cv.put(MovieContract.CastEntry.COLUMN_CHARACTER, "Himself");
+        cv.put(MovieContract.CastEntry.COLUMN_ORDER, 0);
 
         return cv;
     }
 
+    /**
+     * Instance of ContentValues to populate database or insert data via ContentProvider
+     *
+     * @return ContentValues that can be inserted into people table.
+     */
+    static ContentValues createTestPersonContentValues() {
+        ContentValues cv = new ContentValues();
+        cv.put(MovieContract.PersonEntry.COLUMN_PERSON_ID, 24343);
+        cv.put(MovieContract.PersonEntry.COLUMN_NAME, "Darth Vader");
+        cv.put(MovieContract.PersonEntry.COLUMN_AVATAR_PATH, "/vader.jpg");
+
+        return cv;
+    }
+
+    /**
+     * Observer which counts the notifications of the URI and its descendants. Notifications
+     * are delivered asynchronously, in the order they have been sent, so the count is read
+     * when a marker notification sent after the tested operation arrives.
+     */
+    static class NotificationCounter extends ContentObserver {
+
+        /* How long the marker notification is waited for */
+        private static final long TIMEOUT_SECONDS = 5;
+
+        private final ContentResolver mResolver;
+        private final Uri mMarkerUri;
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final CountDownLatch mMarkerLatch = new CountDownLatch(1);
+
+        private NotificationCounter(ContentResolver resolver, Uri uri) {
+            super(null);
+            mResolver = resolver;
+            mMarkerUri = uri.buildUpon().appendPath("notification_marker").build();
+        }
+
+        /**
+         * Starts to count the notifications.
+         *
+         * @param resolver of the tested provider
+         * @param uri      which is observed, with its descendants
+         * @return registered counter, it must be unregistered
+         */
+        static NotificationCounter register(ContentResolver resolver, Uri uri) {
+            NotificationCounter counter = new NotificationCounter(resolver, uri);
+            resolver.registerContentObserver(uri, true, counter);
+            return counter;
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (mMarkerUri.equals(uri)) {
+                mMarkerLatch.countDown();
+            } else {
+                mCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * Waits for the notifications which have been sent so far.
+         *
+         * @return number of the notifications, without the marker
+         * @throws InterruptedException when the test is interrupted
+         */
+        int awaitCount() throws InterruptedException {
+            mResolver.notifyChange(mMarkerUri, null);
+            assertTrue("Notifications have not been delivered",
+                    mMarkerLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            return mCount.get();
+        }
+
+        /**
+         * Stops counting.
+         */
+        void unregister() {
+            mResolver.unregisterContentObserver(this);
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.content.Context;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Transport which records successful responses of the wrapped transport as fixtures for
+ * {@link ReplayTransport}. Recorded files can be copied from the device and replayed with
+ * {@link ReplayTransport#fromDirectory(File)} or put into the test assets.
+ */
+public class RecordingTransport implements Transport {
+
+    private static final String TAG = RecordingTransport.class.getSimpleName();
+
+    /**
+     * Maximum size of the recorded response body.
+     */
+    private static final long MAX_RECORDED_BYTES = 1024 * 1024;
+
+    private final Transport mDelegate;
+    private final File mDirectory;
+
+    /**
+     * @param delegate  transport which executes the requests
+     * @param directory where the fixtures are written
+     */
+    public RecordingTransport(Transport delegate, File directory) {
+        mDelegate = delegate;
+        mDirectory = directory;
+    }
+
+    @Override
+    public Response execute(Request request, CancellationSignal cancellationSignal)
+            throws IOException {
+        Response response = mDelegate.execute(request, cancellationSignal);
+
+        String[] names = ReplayTransport.getFixtureNames(request.url());
+        if (response.isSuccessful() && names != null) {
+            try {
+                record(names[0] + ReplayTransport.FIXTURE_EXTENSION,
+                        response.peekBody(MAX_RECORDED_BYTES).bytes());
+            } catch (IOException e) {
+                // Recording must not break the call.
+                Log.w(TAG, "Unable to record " + names[0] + ": " + e.getMessage());
+            }
+        }
+
+        return response;
+    }
+
+    @Override
+    public boolean isConnected(Context context) {
+        return mDelegate.isConnected(context);
+    }
+
+    private void record(String name, byte[] body) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+
+        BufferedSink sink = Okio.buffer(Okio.sink(new File(mDirectory, name)));
+        try {
+            sink.write(body);
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Local stand-in for themoviedb.org API. It replays recorded responses (fixtures) of popular,
+ * top_rated, movie, casts, reviews and trailers endpoints, so the list and detail pipelines can
+ * be measured without the network.
+ * <p>
+ * Fixture is picked by the endpoint and the page or the movie id, e.g. {@code popular_2.json},
+ * {@code movie_details_550.json} (movie with append_to_response), {@code casts_550.json}.
+ * When there is no such fixture, the generic one of the endpoint is used, e.g.
+ * {@code popular.json} or {@code casts.json}. Host and API key are ignored.
+ * <p>
+ * Requests go through the interceptors of the given client (latency stats, retries), only
+ * the cache and the network are replaced by the fixtures. Latency, bandwidth and errors
+ * can be configured to simulate different networks. Cancelled call fails while it waits for
+ * its response, like the real call whose socket has been closed.
+ */
+public class ReplayTransport implements Transport {
+
+    /**
+     * Extension of the fixture files.
+     */
+    static final String FIXTURE_EXTENSION = ".json";
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    /**
+     * Path segment after which the API endpoint starts.
+     */
+    private static final String MOVIE_SEGMENT = "movie";
+
+    private static final String POPULAR_ENDPOINT = "popular";
+    private static final String TOP_RATED_ENDPOINT = "top_rated";
+    private static final String MOVIE_FIXTURE = "movie";
+    private static final String MOVIE_DETAILS_FIXTURE = "movie_details";
+    private static final String PAGE_PARAM = "page";
+    private static final String APPEND_TO_RESPONSE_PARAM = "append_to_response";
+
+    /**
+     * How often the simulated delay checks whether the call has been cancelled.
+     */
+    private static final long CANCEL_POLL_MILLIS = 10;
+
+    /**
+     * Source of the fixture files.
+     */
+    public interface FixtureSource {
+
+        /**
+         * Opens the fixture.
+         *
+         * @param name of the fixture file
+         * @return stream of the fixture or null if it doesn't exist
+         * @throws IOException when the fixture can't be read
+         */
+        InputStream open(String name) throws IOException;
+    }
+
+    private final FixtureSource mFixtureSource;
+    private final OkHttpClient mClient;
+    private final Random mRandom;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+    private volatile float mErrorRate;
+    private volatile int mErrorCode;
+
+    /**
+     * Replays the fixtures to the interceptors of the shared HTTP client.
+     *
+     * @param fixtureSource of the recorded responses
+     */
+    public ReplayTransport(FixtureSource fixtureSource) {
+        this(fixtureSource, NetworkUtils.getHttpClient(), new Random());
+    }
+
+    /**
+     * @param fixtureSource of the recorded responses
+     * @param client        whose interceptors the requests go through
+     * @param random        used for the error injection, seeded one gives repeatable runs
+     */
+    public ReplayTransport(FixtureSource fixtureSource, OkHttpClient client, Random random) {
+        mFixtureSource = fixtureSource;
+        mRandom = random;
+        mClient = client.newBuilder()
+                .cache(null)
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        return replay(chain.request());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Creates the fixture source which reads the fixtures from the assets.
+     *
+     * @param assets    of the application or the test package
+     * @param directory of the fixtures in the assets
+     * @return fixture source
+     */
+    public static FixtureSource fromAssets(final AssetManager assets, final String directory) {
+        return new FixtureSource() {
+            @Override
+            public InputStream open(String name) throws IOException {
+                try {
+                    return assets.open(directory + "/" + name);
+                } catch (FileNotFoundException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the fixture source which reads the fixtures from the directory, e.g. the one
+     * written by {@link RecordingTransport}.
+     *
+     * @param directory of the fixtures
+     * @return fixture source
+     */
+    public static FixtureSource fromDirectory(final File directory) {
+        return new FixtureSource() {
+            @Override
+            public InputStream open(String name) throws IOException {
+                File file = new File(directory, name);
+                return file.isFile() ? new FileInputStream(file) : null;
+            }
+        };
+    }
+
+    /**
+     * Sets the delay of every response (round trip time and server time).
+     *
+     * @param latencyMillis delay in milliseconds
+     */
+    public void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the simulated bandwidth. Response is delayed by the time of its body transfer.
+     *
+     * @param bytesPerSecond bandwidth, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sets the error injection.
+     *
+     * @param errorRate  fraction of the requests which fail, from 0 to 1
+     * @param statusCode returned by the failed requests (e.g. 429 or 503),
+     *                   0 to fail with the connection error
+     */
+    public void setErrorRate(float errorRate, int statusCode) {
+        mErrorRate = errorRate;
+        mErrorCode = statusCode;
+    }
+
+    /**
+     * @return number of the requests replayed so far (including the failed ones)
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    @Override
+    public Response execute(Request request, CancellationSignal cancellationSignal)
+            throws IOException {
+        return OkHttpTransport.execute(mClient.newCall(request), cancellationSignal);
+    }
+
+    @Override
+    public boolean isConnected(Context context) {
+        // Fixtures are always available.
+        return true;
+    }
+
+    /**
+     * Replays the recorded response of the request.
+     *
+     * @param request to replay
+     * @return recorded response, 404 if there is no fixture of the request, 504 if the request
+     * may be answered only by the cache
+     * @throws IOException on the injected connection error, the fixture read error or when
+     *                     the call has been cancelled
+     */
+    private Response replay(Request request) throws IOException {
+        if (request.cacheControl().onlyIfCached()) {
+            // Replayed responses are never cached.
+            return buildResponse(request, 504, "Unsatisfiable Request (only-if-cached)",
+                    new byte[0]);
+        }
+
+        mRequestCount.incrementAndGet();
+        sleep(request, mLatencyMillis);
+
+        if (isErrorInjected()) {
+            if (mErrorCode == 0) {
+                throw new IOException("Injected connection error for " + request.url());
+            }
+            return buildResponse(request, mErrorCode, "Injected error", new byte[0]);
+        }
+
+        byte[] body = null;
+        String[] names = getFixtureNames(request.url());
+        if (names != null) {
+            for (String name : names) {
+                body = readFixture(name + FIXTURE_EXTENSION);
+                if (body != null) {
+                    break;
+                }
+            }
+        }
+
+        if (body == null) {
+            return buildResponse(request, 404, "Not Found", new byte[0]);
+        }
+
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond > 0) {
+            sleep(request, body.length * 1000L / bytesPerSecond);
+        }
+
+        return buildResponse(request, 200, "OK", body);
+    }
+
+    /**
+     * Gets the fixture names of the request, the most specific one first.
+     *
+     * @param url of the request
+     * @return fixture names without the extension or null if the URL isn't an API endpoint
+     */
+    static String[] getFixtureNames(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        int start = segments.indexOf(MOVIE_SEGMENT) + 1;
+        if (start == 0 || start >= segments.size()) {
+            return null;
+        }
+
+        String endpoint = segments.get(start);
+        String base;
+        String key;
+        if (POPULAR_ENDPOINT.equals(endpoint) || TOP_RATED_ENDPOINT.equals(endpoint)) {
+            base = endpoint;
+            key = url.queryParameter(PAGE_PARAM);
+            if (key == null) {
+                key = "1";
+            }
+        } else if (start + 1 < segments.size()) {
+            // movie/{id}/casts, reviews or trailers
+            base = segments.get(start + 1);
+            key = endpoint;
+        } else {
+            base = url.queryParameter(APPEND_TO_RESPONSE_PARAM) != null
+                    ? MOVIE_DETAILS_FIXTURE : MOVIE_FIXTURE;
+            key = endpoint;
+        }
+
+        return new String[]{base + "_" + key, base};
+    }
+
+    /**
+     * Reads the whole fixture.
+     *
+     * @param name of the fixture file
+     * @return content of the fixture or null if it doesn't exist
+     * @throws IOException when the fixture can't be read
+     */
+    private byte[] readFixture(String name) throws IOException {
+        InputStream stream = mFixtureSource.open(name);
+        if (stream == null) {
+            return null;
+        }
+
+        BufferedSource source = Okio.buffer(Okio.source(stream));
+        try {
+            return source.readByteArray();
+        } finally {
+            source.close();
+        }
+    }
+
+    private boolean isErrorInjected() {
+        float errorRate = mErrorRate;
+        if (errorRate <= 0) {
+            return false;
+        }
+
+        synchronized (mRandom) {
+            return mRandom.nextFloat() < errorRate;
+        }
+    }
+
+    private static Response buildResponse(Request request, int code, String message,
+                                          byte[] body) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message(message)
+                .body(ResponseBody.create(JSON, body))
+                .build();
+    }
+
+    private static void sleep(Request request, long millis) throws IOException {
+        long end = SystemClock.elapsedRealtime() + millis;
+        try {
+            for (long left = millis; ; left = end - SystemClock.elapsedRealtime()) {
+                // OkHttp fails the call with the closed socket the same way.
+                if (RequestScheduler.isCanceled(request)) {
+                    throw new IOException("Canceled");
+                }
+                if (left <= 0) {
+                    return;
+                }
+                Thread.sleep(Math.min(left, CANCEL_POLL_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying response");
+        }
+    }
+}
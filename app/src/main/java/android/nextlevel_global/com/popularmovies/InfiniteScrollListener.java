@@ -1,5 +1,6 @@
 package android.nextlevel_global.com.popularmovies;
 
+import android.os.SystemClock;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 
@@ -20,6 +21,20 @@ abstract class InfiniteScrollListener extends RecyclerView.OnScrollListener {
 
     private final RecyclerView.LayoutManager mLayoutManager;
 
+    /**
+     * Weight of the newest sample in the smoothed scroll velocity.
+     */
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    /**
+     * Smoothed scroll velocity in items per second.
+     */
+    private float scrollVelocity = 0;
+
+    private int lastVelocityItemPosition = -1;
+
+    private long lastVelocityTime = 0;
+
     InfiniteScrollListener(GridLayoutManager layoutManager, int currentPage) {
         this.currentPage = currentPage;
         mLayoutManager = layoutManager;
@@ -31,6 +46,8 @@ abstract class InfiniteScrollListener extends RecyclerView.OnScrollListener {
         int totalItemCount = mLayoutManager.getItemCount();
         int lastVisibleItemPosition = ((GridLayoutManager) mLayoutManager).findLastVisibleItemPosition();
 
+        updateScrollVelocity(lastVisibleItemPosition);
+
         if (totalItemCount < previousTotalItemCount) {
             currentPage = startingPageIndex;
             previousTotalItemCount = totalItemCount;
@@ -39,7 +56,8 @@ abstract class InfiniteScrollListener extends RecyclerView.OnScrollListener {
             }
         }
 
-        if (loading && (totalItemCount > previousTotalItemCount)) {
+        // Page which has failed may still be appended later, when it is fetched again.
+        if (totalItemCount > previousTotalItemCount) {
             loading = false;
             previousTotalItemCount = totalItemCount;
         }
@@ -55,6 +73,60 @@ abstract class InfiniteScrollListener extends RecyclerView.OnScrollListener {
         currentPage = startingPageIndex;
         previousTotalItemCount = 0;
         loading = true;
+        scrollVelocity = 0;
+        lastVelocityItemPosition = -1;
+    }
+
+    /**
+     * Lets the page which could not be loaded be requested again, when the user scrolls to
+     * the end of the list.
+     *
+     * @param page which has failed
+     */
+    void onLoadFailed(int page) {
+        if (loading && page == currentPage) {
+            currentPage--;
+            loading = false;
+        }
+    }
+
+    /**
+     * Moves to the page which has been appended after its load has failed, so it isn't
+     * requested again.
+     *
+     * @param page which has been loaded
+     */
+    void onPageLoaded(int page) {
+        if (page > currentPage) {
+            currentPage = page;
+        }
+    }
+
+    /**
+     * Gets the measured scroll velocity.
+     *
+     * @return smoothed scroll velocity in items per second (only scrolling down is counted)
+     */
+    float getScrollVelocity() {
+        return scrollVelocity;
+    }
+
+    /**
+     * Updates the smoothed scroll velocity with a new sample.
+     *
+     * @param lastVisibleItemPosition position of the last visible item
+     */
+    private void updateScrollVelocity(int lastVisibleItemPosition) {
+        long now = SystemClock.uptimeMillis();
+
+        if (lastVelocityItemPosition != -1 && now > lastVelocityTime) {
+            int itemsScrolled = Math.max(0, lastVisibleItemPosition - lastVelocityItemPosition);
+            float sample = itemsScrolled * 1000f / (now - lastVelocityTime);
+            scrollVelocity = VELOCITY_SMOOTHING * sample + (1 - VELOCITY_SMOOTHING) * scrollVelocity;
+        }
+
+        lastVelocityItemPosition = lastVisibleItemPosition;
+        lastVelocityTime = now;
     }
 
     @SuppressWarnings("unused")
@@ -1,14 +1,9 @@
 package android.nextlevel_global.com.popularmovies;
 
-import android.content.ContentProviderOperation;
 import android.content.Intent;
-import android.net.Uri;
 import android.nextlevel_global.com.popularmovies.adapters.ViewPagerAdapter;
-import android.nextlevel_global.com.popularmovies.data.MovieContract;
-import android.nextlevel_global.com.popularmovies.models.Cast;
+import android.nextlevel_global.com.popularmovies.data.FavoritesWriter;
 import android.nextlevel_global.com.popularmovies.models.Movie;
-import android.nextlevel_global.com.popularmovies.models.Review;
-import android.nextlevel_global.com.popularmovies.models.Trailer;
 import android.nextlevel_global.com.popularmovies.tasks.SingleMovieLoader;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -35,13 +30,11 @@ import android.widget.Toast;
 
 import com.squareup.picasso.Picasso;
 
-import java.util.ArrayList;
-
 /**
  * Movie details fragment.
  */
 public class MovieDetailsFragment extends Fragment
-        implements LoaderManager.LoaderCallbacks<Movie> {
+        implements LoaderManager.LoaderCallbacks<Movie>, FavoritesWriter.Listener {
 
     /**
      * Log tag string.
@@ -102,6 +95,13 @@ public class MovieDetailsFragment extends Fragment
         super.onCreate(savedInstanceState);
 
         setHasOptionsMenu(true);
+        FavoritesWriter.getInstance(getContext()).addListener(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        FavoritesWriter.getInstance(getContext()).removeListener(this);
+        super.onDestroy();
     }
 
     @Override
@@ -397,118 +397,51 @@ public class MovieDetailsFragment extends Fragment
     }
 
     /**
-     * Save movie with all related data in favorites database.
+     * Save movie with all related data in favorites database. The movie is shown as a favorite
+     * at once and it is written behind by the favorites writer.
      */
     private void saveInFavorites() {
-        Thread likeMovieThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Lets assume the operation is completed successfully.
-                showRemoveFromFavorites();
-
-                // Create batch operations array.
-                ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-
-                // Movie details
-                ops.add(ContentProviderOperation
-                        .newInsert(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI)
-
-                        .withValue(MovieContract.MovieEntry.COLUMN_MOVIE_ID, mMovie.getId())
-                        .withValue(MovieContract.MovieEntry.COLUMN_TITLE, mMovie.getTitle())
-                        .withValue(MovieContract.MovieEntry.COLUMN_OVERVIEW, mMovie.getOverview())
-                        .withValue(MovieContract.MovieEntry.COLUMN_POSTER_URL, mMovie.getPosterUrl())
-                        .withValue(MovieContract.MovieEntry.COLUMN_BACKDROP_URL, mMovie.getBackdropUrl())
-                        .withValue(MovieContract.MovieEntry.COLUMN_USER_RATING, mMovie.getUserRating())
-                        .withValue(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, mMovie.getReleaseDate())
-                        .withValue(MovieContract.MovieEntry.COLUMN_RUNTIME, mMovie.getRuntime())
-
-                        .build());
-
-                // Cast members
-                for (Cast actor : mMovie.getCastList()) {
-                    ops.add(ContentProviderOperation
-                            .newInsert(MovieContract.CastEntry.buildFavoriteMovieCastUriWithId(
-                                    mMovie.getId()))
-
-                            .withValue(MovieContract.CastEntry.COLUMN_MOVIE_ID,
-                                    mMovie.getId())
-                            .withValue(MovieContract.CastEntry.COLUMN_NAME,
-                                    actor.getName())
-                            .withValue(MovieContract.CastEntry.COLUMN_CHARACTER,
-                                    actor.getCharacter())
-                            .withValue(MovieContract.CastEntry.COLUMN_AVATAR_PATH,
-                                    actor.getImagePath())
-
-                            .build());
-                }
+        // Set is as a favorite and refresh action menu.
+        mMovie.setFavorite(true);
+        showRemoveFromFavorites();
+        FavoritesWriter.getInstance(getContext()).setFavorite(mMovie, true);
 
-                // Reviews
-                for (Review review : mMovie.getReviewsList()) {
-                    ops.add(ContentProviderOperation
-                            .newInsert(MovieContract.ReviewEntry
-                                    .buildFavoriteMovieReviewsUriWithId(mMovie.getId()))
-
-                            .withValue(MovieContract.ReviewEntry.COLUMN_MOVIE_ID,
-                                    mMovie.getId())
-                            .withValue(MovieContract.ReviewEntry.COLUMN_AUTHOR,
-                                    review.getAuthor())
-                            .withValue(MovieContract.ReviewEntry.COLUMN_CONTENT,
-                                    review.getContent())
-
-                            .build());
-                }
-
-                // Trailers
-                for (Trailer trailer : mMovie.getTrailers()) {
-                    ops.add(ContentProviderOperation
-                            .newInsert(MovieContract.TrailerEntry
-                                    .buildFavoriteMovieTrailersUriWithId(mMovie.getId()))
-
-                            .withValue(MovieContract.TrailerEntry.COLUMN_MOVIE_ID,
-                                    mMovie.getId())
-                            .withValue(MovieContract.TrailerEntry.COLUMN_TITLE,
-                                    trailer.getTitle())
-                            .withValue(MovieContract.TrailerEntry.COLUMN_VIDEO_ID,
-                                    trailer.getVideoId())
-
-                            .build());
-                }
-
-                try {
-                    // Do batch request.
-                    getContext().getContentResolver()
-                            .applyBatch(MovieContract.CONTENT_AUTHORITY, ops);
-
-                    // Set is as a favorite and refresh action menu.
-                    mMovie.setFavorite(true);
+        Toast.makeText(getContext(), getString(R.string.added_to_favorites), Toast.LENGTH_SHORT).show();
+    }
 
-                    Toast.makeText(getContext(), getString(R.string.added_to_favorites), Toast.LENGTH_SHORT).show();
-                } catch (Exception e) {
-                    // Something bad happened... so reverse icon status on toolbar
-                    // and notify the user.
-                    showAddToFavorites();
-                }
-            }
-        });
+    /**
+     * Remove movie and all related data with it from favorites. The movie is shown as removed
+     * at once and it is deleted behind by the favorites writer.
+     */
+    private void removeFromFavorites() {
+        // Remove favorites flag and refresh action menu.
+        mMovie.setFavorite(false);
+        showAddToFavorites();
+        FavoritesWriter.getInstance(getContext()).setFavorite(mMovie, false);
 
-        likeMovieThread.run();
+        Toast.makeText(getContext(), getString(R.string.removed_from_favorites), Toast.LENGTH_SHORT).show();
     }
 
     /**
-     * Remove movie and all related data with it from favorites.
+     * Something bad happened with the favorites write... so reverse icon status on toolbar
+     * and notify the user.
+     *
+     * @param movieId    of the movie
+     * @param isFavorite stored state of the movie
      */
-    private void removeFromFavorites() {
-        // Generate URL needed to remove selected movie from favorites.
-        Uri uri = MovieContract.MovieEntry.buildFavoriteMovieUriWithId(mMovie.getId());
-        int count = getContext().getContentResolver().delete(uri, null, null);
-
-        // If content resolver returns value greater than 0, then we got rid a selected
-        // movie from favorites.
-        if (count > 0) {
-            // Remove favorites flag and refresh action menu.
-            mMovie.setFavorite(false);
+    @Override
+    public void onFavoriteWriteFailed(String movieId, boolean isFavorite) {
+        if (mMovie == null || !movieId.equals(mMovie.getId()) || !isAdded()) {
+            return;
+        }
+
+        mMovie.setFavorite(isFavorite);
+        if (isFavorite) {
+            showRemoveFromFavorites();
+        } else {
             showAddToFavorites();
-            Toast.makeText(getContext(), getString(R.string.removed_from_favorites), Toast.LENGTH_SHORT).show();
         }
+
+        Toast.makeText(getContext(), getString(R.string.error_favorites_not_updated), Toast.LENGTH_SHORT).show();
     }
 }
\ No newline at end of file
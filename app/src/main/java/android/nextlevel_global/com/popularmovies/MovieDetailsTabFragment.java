@@ -1,6 +1,7 @@
 package android.nextlevel_global.com.popularmovies;
 
 import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.utilities.ReleaseDateUtils;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -64,7 +65,7 @@ public class MovieDetailsTabFragment extends Fragment {
         RatingBar mStarRatingBar = (RatingBar) rootView.findViewById(R.id.rb_movie_rating_indicator);
 
         mMovieOverview.setText(mMovie.getOverview());
-        mMovieReleaseDate.setText(mMovie.getReleaseDate());
+        mMovieReleaseDate.setText(ReleaseDateUtils.formatEpochDay(mMovie.getReleaseDate()));
 
         mMovieRuntime.setText(
                 getString(R.string.format_movie_runtime, mMovie.getRuntime()));
@@ -1,11 +1,20 @@
 package android.nextlevel_global.com.popularmovies;
 
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.nextlevel_global.com.popularmovies.adapters.MoviesAdapter;
+import android.nextlevel_global.com.popularmovies.data.MovieContract;
+import android.nextlevel_global.com.popularmovies.models.Movie;
 import android.nextlevel_global.com.popularmovies.tasks.MoviesLoader;
+import android.nextlevel_global.com.popularmovies.tasks.PagePrefetcher;
 import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -14,6 +23,7 @@ import android.support.v4.content.Loader;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -23,11 +33,14 @@ import android.view.ViewGroup;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * {@link MoviesFragment} is responsible for displaying movie posters grid.
  */
 public class MoviesFragment extends Fragment implements
-        MoviesAdapter.MoviesAdapterOnClickHandler,
+        MoviesAdapter.MoviesAdapterOnClickHandler, MoviesAdapter.PageRequestHandler,
         LoaderManager.LoaderCallbacks<Cursor>, SharedPreferences.OnSharedPreferenceChangeListener {
 
     /**
@@ -41,6 +54,11 @@ public class MoviesFragment extends Fragment implements
      */
     public static final String EXTRAS_PAGE = "EXTRAS_PAGE";
 
+    /**
+     * Key name for passing the first of the loaded pages in bundle.
+     */
+    public static final String EXTRAS_FIRST_PAGE = "EXTRAS_FIRST_PAGE";
+
     /**
      * Key name for passing sort order extras in bundle.
      */
@@ -81,6 +99,37 @@ public class MoviesFragment extends Fragment implements
      */
     private InfiniteScrollListener mScrollListener;
 
+    /**
+     * Fetches next pages ahead of the infinite scroll.
+     */
+    private PagePrefetcher mPagePrefetcher;
+
+    /**
+     * Delivers the evicted pages which have been loaded again on the main thread.
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Reloads the pages kept by the adapter when they are refreshed in the background. The
+     * loader reloads only the pages it has read, usually the last one.
+     */
+    private final ContentObserver mCategoryObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            reloadPagesInMemory(uri == null ? 0 : MovieContract.CacheEntry.getPage(uri));
+        }
+    };
+
+    /**
+     * Whether the category observer has been registered.
+     */
+    private boolean mIsWatchingCategory;
+
     /**
      * A callback interface that all activities containing this fragment must implement.
      * This interface allows activities to be notified when some item has been selected.
@@ -95,6 +144,14 @@ public class MoviesFragment extends Fragment implements
 
         // Handle menu events.
         setHasOptionsMenu(true);
+
+        mPagePrefetcher = new PagePrefetcher(getContext());
+    }
+
+    @Override
+    public void onDestroy() {
+        mPagePrefetcher.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -125,7 +182,7 @@ public class MoviesFragment extends Fragment implements
         mMoviesList.setLayoutManager(layoutManager);
 
         // Initialize movies adapter and connect it with the RecyclerView.
-        mMoviesAdapter = new MoviesAdapter(this);
+        mMoviesAdapter = new MoviesAdapter(this, this);
         mMoviesList.setAdapter(mMoviesAdapter);
 
         // Gets selected sort order from shared preferences.
@@ -159,12 +216,19 @@ public class MoviesFragment extends Fragment implements
             mMoviesList.addOnScrollListener(mScrollListener);
         }
 
-        // Load movies from content provider.
-        loadMoviesData(mLastPage);
+        // Load movies from content provider, all of the pages the user has already seen.
+        loadMoviesData(1, mLastPage);
+        watchCategory();
 
         super.onViewCreated(view, savedInstanceState);
     }
 
+    @Override
+    public void onDestroyView() {
+        stopWatchingCategory();
+        super.onDestroyView();
+    }
+
     @Override
     public void onResume() {
         // Attach scroll listener when we dealing with popular or top rated movies
@@ -289,6 +353,7 @@ public class MoviesFragment extends Fragment implements
 
             // User has changed sort direction, so load data starting from page 1.
             loadMoviesData(1);
+            watchCategory();
         }
     }
 
@@ -323,20 +388,81 @@ public class MoviesFragment extends Fragment implements
     }
 
     /**
-     * This method will get the movies in selected sort order.
+     * This method will get the movies of the single page in selected sort order.
      *
      * @param page which we want to get
      */
     private void loadMoviesData(int page) {
+        loadMoviesData(page, page);
+    }
+
+    /**
+     * This method will get the movies of the pages in selected sort order. Pages starting
+     * with the first one replace the whole list, the others are added to it.
+     *
+     * @param firstPage first of the pages
+     * @param page      last of the pages
+     */
+    private void loadMoviesData(int firstPage, int page) {
         mLastPage = page;
 
         // Load movies
         Bundle args = new Bundle();
+        args.putInt(EXTRAS_FIRST_PAGE, firstPage);
         args.putString(EXTRAS_PAGE, String.valueOf(page));
         args.putString(EXTRAS_SORT_ORDER, mSortOrder);
         getLoaderManager().restartLoader(API_LOADER_ID, args, this);
     }
 
+    /**
+     * Watches the pages of the list in the selected sort order. Favorites are a single page,
+     * which is reloaded by the loader.
+     */
+    private void watchCategory() {
+        stopWatchingCategory();
+
+        Uri pageUri = MoviesLoader.buildPageUri(getContext(), mSortOrder, "1");
+        if (pageUri != null) {
+            getContext().getContentResolver().registerContentObserver(
+                    MovieContract.CacheEntry.getCategoryUri(pageUri), true, mCategoryObserver);
+            mIsWatchingCategory = true;
+        }
+    }
+
+    /**
+     * Stops watching the pages of the list.
+     */
+    private void stopWatchingCategory() {
+        if (mIsWatchingCategory) {
+            getContext().getContentResolver().unregisterContentObserver(mCategoryObserver);
+            mIsWatchingCategory = false;
+        }
+    }
+
+    /**
+     * Reloads the changed page if the adapter keeps it in memory. Pages read by the loader
+     * are reloaded by the loader itself.
+     *
+     * @param page which has changed, 0 for all of the pages
+     */
+    private void reloadPagesInMemory(int page) {
+        // Change may come after the view has been destroyed.
+        if (!isAdded() || !mIsWatchingCategory) {
+            return;
+        }
+
+        Loader<Cursor> loader = getLoaderManager().getLoader(API_LOADER_ID);
+        int loaderFirstPage = loader == null ? Integer.MAX_VALUE
+                : ((MoviesLoader) loader).getFirstPage();
+
+        List<Integer> pages = mMoviesAdapter.getPagesInMemory();
+        for (int pageInMemory : pages) {
+            if ((page == 0 || page == pageInMemory) && pageInMemory < loaderFirstPage) {
+                loadPage(pageInMemory);
+            }
+        }
+    }
+
     /**
      * Pass click handler to the activity.
      *
@@ -347,6 +473,75 @@ public class MoviesFragment extends Fragment implements
         ((ClickCallback) getActivity()).onItemSelected(movieId);
     }
 
+    /**
+     * Loads the page which has been evicted from the adapter again. The page is read from
+     * the cache, it doesn't restart the loader of the last page.
+     *
+     * @param page number
+     */
+    @Override
+    public void onPageNeeded(int page) {
+        loadPage(page);
+    }
+
+    /**
+     * Reads the page from the cache and passes it to the adapter.
+     *
+     * @param page number
+     */
+    private void loadPage(final int page) {
+        final String sortOrder = mSortOrder;
+        final Uri pageUri = MoviesLoader.buildPageUri(getContext(), sortOrder,
+                String.valueOf(page));
+        if (pageUri == null) {
+            mMoviesAdapter.onPageLoadFailed(page);
+            return;
+        }
+
+        final Context context = getContext().getApplicationContext();
+        TaskScheduler.getInstance().submit(TaskScheduler.LANE_PAGING, new Runnable() {
+            @Override
+            public void run() {
+                SparseArray<ArrayList<Movie>> loadedPages = new SparseArray<>();
+                try {
+                    Cursor cursor = context.getContentResolver().query(
+                            MovieContract.CacheEntry.buildPageRangeUri(pageUri, page),
+                            MovieContract.CacheEntry.MOVIE_PAGE_PROJECTION,
+                            null,
+                            null,
+                            null);
+
+                    if (cursor != null) {
+                        try {
+                            loadedPages = MoviesAdapter.readPages(cursor);
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.v(LOG_TAG, "Unable to load page " + page + ": " + e.getMessage());
+                }
+
+                final SparseArray<ArrayList<Movie>> pages = loadedPages;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Page of the list the user has left is not needed anymore.
+                        if (!isAdded() || !sortOrder.equals(mSortOrder)) {
+                            return;
+                        }
+
+                        if (pages.get(page) != null) {
+                            mMoviesAdapter.setPages(pages);
+                        } else {
+                            mMoviesAdapter.onPageLoadFailed(page);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, final Bundle args) {
         switch (id) {
@@ -364,9 +559,23 @@ public class MoviesFragment extends Fragment implements
             case API_LOADER_ID:
                 mLoadingIndicator.setVisibility(View.INVISIBLE);
                 if (data != null) {
-                    if (data.getCount() > 0) {
-                        mMoviesAdapter.swapCursor(data);
+                    // Adapter keeps the movies of the pages, the cursor stays with the loader.
+                    SparseArray<ArrayList<Movie>> pages = MoviesAdapter.readPages(data);
+                    if (((MoviesLoader) loader).getFirstPage() == 1) {
+                        mMoviesAdapter.swapPages(pages);
+                    } else {
+                        mMoviesAdapter.setPages(pages);
+                    }
+
+                    if (mMoviesAdapter.getItemCount() > 0) {
                         showMoviesList();
+                        mScrollListener.onPageLoaded(mLastPage);
+
+                        // Start fetching next pages, before the user scrolls to them.
+                        if (!mSortOrder.equals(getString(R.string.preferences_sort_order_favorites))) {
+                            mPagePrefetcher.onPageShown(mSortOrder, mLastPage,
+                                    mScrollListener.getScrollVelocity());
+                        }
                         return;
                     }
 
@@ -375,6 +584,10 @@ public class MoviesFragment extends Fragment implements
                     } else {
                         showErrorMessage(getString(R.string.error_no_movies_in_favorites));
                     }
+                } else if (((MoviesLoader) loader).getFirstPage() > 1) {
+                    // Movies which have been loaded stay, the failed page is requested again
+                    // when the user scrolls to the end of the list.
+                    mScrollListener.onLoadFailed(mLastPage);
                 } else {
                     // Lets check if this error is not related with lack of internet.
                     String errorMessage = null;
@@ -392,6 +605,6 @@ public class MoviesFragment extends Fragment implements
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mMoviesAdapter.swapCursor(null);
+        // Adapter has its own copy of the movies, it doesn't use the cursor of the loader.
     }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package android.nextlevel_global.com.popularmovies;
+
+import android.app.Application;
+import android.nextlevel_global.com.popularmovies.tasks.FavoritesRefreshJobService;
+import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
+import android.os.Build;
+
+import com.jakewharton.picasso.OkHttp3Downloader;
+import com.squareup.picasso.Picasso;
+
+/**
+ * Application class. It sets up components shared by all of the activities.
+ */
+public class PopularMoviesApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // HTTP disk cache has to be set up before the shared HTTP client is created.
+        NetworkUtils.init(this);
+
+        // Picasso downloads images through the same HTTP client as the API calls, so posters
+        // and API responses share the connection pool.
+        Picasso picasso = new Picasso.Builder(this)
+                .downloader(new OkHttp3Downloader(NetworkUtils.getHttpClient()))
+                .build();
+        Picasso.setSingletonInstance(picasso);
+
+        // Stale favorites are refreshed in the background. Older systems have no job
+        // scheduler, there the favorites are refreshed only when they are opened.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            FavoritesRefreshJobService.schedule(this);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package android.nextlevel_global.com.popularmovies.adapters;
+
+import android.nextlevel_global.com.popularmovies.models.Movie;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pages of the movie list for {@link MoviesAdapter}. Sizes of all of the loaded pages are
+ * kept, so the positions of the movies don't change, but only the recently used pages keep
+ * their movies in memory. Movies of the evicted page have to be loaded again.
+ */
+class MoviePageWindow {
+
+    /**
+     * Maximum number of the pages with the movies in memory.
+     */
+    static final int MAX_PAGES_IN_MEMORY = 5;
+
+    /**
+     * Sizes of the loaded pages, the first page has index 0.
+     */
+    private final List<Integer> mPageSizes = new ArrayList<>();
+
+    /**
+     * Movies of the pages in memory, keyed by the page number, the least recently used first.
+     */
+    private final Map<Integer, List<Movie>> mPages =
+            new LinkedHashMap<Integer, List<Movie>>(MAX_PAGES_IN_MEMORY + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<Movie>> eldest) {
+                    return size() > MAX_PAGES_IN_MEMORY;
+                }
+            };
+
+    /**
+     * Number of the movies of all of the loaded pages.
+     */
+    private int mSize;
+
+    /**
+     * @return number of the movies of all of the loaded pages
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return number of the loaded pages
+     */
+    int getPageCount() {
+        return mPageSizes.size();
+    }
+
+    /**
+     * Gets the page of the position.
+     *
+     * @param position in the list
+     * @return page number, starting from 1
+     */
+    int getPage(int position) {
+        int page = 1;
+        int pageEnd = mPageSizes.get(0);
+        while (position >= pageEnd) {
+            pageEnd += mPageSizes.get(page);
+            page++;
+        }
+        return page;
+    }
+
+    /**
+     * Gets the position of the first movie of the page.
+     *
+     * @param page number, up to the one after the last loaded page
+     * @return position in the list
+     */
+    int getPageStart(int page) {
+        int start = 0;
+        for (int i = 0; i < page - 1; i++) {
+            start += mPageSizes.get(i);
+        }
+        return start;
+    }
+
+    /**
+     * @param page number of the loaded page
+     * @return number of the movies of the page
+     */
+    int getPageSize(int page) {
+        return mPageSizes.get(page - 1);
+    }
+
+    /**
+     * @return numbers of the pages which have their movies in memory
+     */
+    List<Integer> getPagesInMemory() {
+        return new ArrayList<>(mPages.keySet());
+    }
+
+    /**
+     * Gets the movie if its page is in memory.
+     *
+     * @param position in the list
+     * @return movie or null if its page has been evicted
+     */
+    Movie get(int position) {
+        int page = getPage(position);
+        List<Movie> movies = mPages.get(page);
+        return movies == null ? null : movies.get(position - getPageStart(page));
+    }
+
+    /**
+     * Sets the movies of the loaded page or appends the next page. The least recently used
+     * page is evicted when there are too many of them in memory.
+     *
+     * @param page   number, up to the one after the last loaded page
+     * @param movies of the page
+     */
+    void put(int page, List<Movie> movies) {
+        if (page > mPageSizes.size()) {
+            mPageSizes.add(movies.size());
+        } else {
+            mSize -= mPageSizes.set(page - 1, movies.size());
+        }
+        mSize += movies.size();
+        mPages.put(page, movies);
+    }
+
+    /**
+     * Removes all of the pages.
+     */
+    void clear() {
+        mPageSizes.clear();
+        mPages.clear();
+        mSize = 0;
+    }
+}
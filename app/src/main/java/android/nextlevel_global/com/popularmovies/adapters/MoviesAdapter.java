@@ -6,6 +6,7 @@ import android.nextlevel_global.com.popularmovies.R;
 import android.nextlevel_global.com.popularmovies.data.MovieContract;
 import android.nextlevel_global.com.popularmovies.models.Movie;
 import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,9 +16,18 @@ import android.widget.TextView;
 
 import com.squareup.picasso.Picasso;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * {@link MoviesAdapter} exposes a list of movie posters to a
  * {@link android.support.v7.widget.RecyclerView}
+ * <p>
+ * Movies are delivered page by page. Next page is appended to the list without rebinding
+ * the movies which are already shown, and only a few recently shown pages are kept in memory.
+ * Evicted page is shown with the placeholders until it has been loaded again.
  */
 public class MoviesAdapter extends RecyclerView.Adapter<MoviesAdapter.MovieViewHolder> {
 
@@ -29,23 +39,92 @@ public class MoviesAdapter extends RecyclerView.Adapter<MoviesAdapter.MovieViewH
     }
 
     /**
-     * Cursor which contains all movies.
+     * The interface that loads the evicted pages again.
+     */
+    public interface PageRequestHandler {
+
+        /**
+         * Loads the page, which is then passed to {@link #setPages(SparseArray)}. If it can't
+         * be loaded, {@link #onPageLoadFailed(int)} has to be called. It is called on the main
+         * thread.
+         *
+         * @param page number
+         */
+        void onPageNeeded(int page);
+    }
+
+    /**
+     * Pages of the movies.
+     */
+    private final MoviePageWindow mPages = new MoviePageWindow();
+
+    /**
+     * Evicted pages which are being loaded again.
      */
-    private Cursor mCursor;
+    private final Set<Integer> mRequestedPages = new HashSet<>();
 
     /**
      * Bridge between an Activity and RecyclerView, which handles onClick event.
      */
     private final MoviesAdapterOnClickHandler mClickHandler;
 
+    /**
+     * Loads the evicted pages.
+     */
+    private final PageRequestHandler mPageRequestHandler;
+
     /**
      * Constructor of MoviesAdapter.
      *
-     * @param clickHandler for this adapter. This handler will be called whe an item will
-     *                     be clicked.
+     * @param clickHandler       for this adapter. This handler will be called whe an item will
+     *                           be clicked.
+     * @param pageRequestHandler which loads the evicted pages when they are shown again.
      */
-    public MoviesAdapter(MoviesAdapterOnClickHandler clickHandler) {
+    public MoviesAdapter(MoviesAdapterOnClickHandler clickHandler,
+                         PageRequestHandler pageRequestHandler) {
         mClickHandler = clickHandler;
+        mPageRequestHandler = pageRequestHandler;
+    }
+
+    /**
+     * Reads the movies of the cursor grouped by their pages. Cursor without the page column
+     * (e.g. favorite movies) is read as the single page.
+     *
+     * @param cursor with the movies, in the order of the list
+     * @return movies keyed by the page number
+     */
+    public static SparseArray<ArrayList<Movie>> readPages(Cursor cursor) {
+        SparseArray<ArrayList<Movie>> pages = new SparseArray<>();
+        if (cursor == null) {
+            return pages;
+        }
+
+        //Indices for title, rating, movie poster, movie ID and page columns
+        int idIndex = cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+        int titleIndex = cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_TITLE);
+        int posterUrlIndex = cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_POSTER_URL);
+        int userRatingIndex = cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_USER_RATING);
+        int pageIndex = cursor.getColumnIndex(MovieContract.CacheEntry.COLUMN_PAGE);
+
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int page = pageIndex == -1 ? 1 : cursor.getInt(pageIndex);
+            ArrayList<Movie> movies = pages.get(page);
+            if (movies == null) {
+                movies = new ArrayList<>();
+                pages.put(page, movies);
+            }
+
+            // Insert proper data into the model.
+            Movie movie = new Movie();
+            movie.setTitle(cursor.getString(titleIndex));
+            movie.setUserRating(cursor.getDouble(userRatingIndex));
+            movie.setPosterUrl(cursor.getString(posterUrlIndex));
+            movie.setId(cursor.getString(idIndex));
+            movies.add(movie);
+        }
+
+        return pages;
     }
 
     @Override
@@ -59,22 +138,18 @@ public class MoviesAdapter extends RecyclerView.Adapter<MoviesAdapter.MovieViewH
 
     @Override
     public void onBindViewHolder(MovieViewHolder holder, int position) {
-        // Read data under selected position.
-        mCursor.moveToPosition(position);
-
-        //Indices for title, rating, movie poster and movie ID columns
-        int idIndex = mCursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
-        int titleIndex = mCursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_TITLE);
-        int posterUrlIndex = mCursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_POSTER_URL);
-        int userRatingIndex = mCursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_USER_RATING);
-
-        // Insert proper data into the model.
-        Movie movie = new Movie();
-        movie.setTitle(mCursor.getString(titleIndex));
-        movie.setUserRating(mCursor.getString(userRatingIndex));
-        movie.setPosterUrl(mCursor.getString(posterUrlIndex));
-        movie.setId(mCursor.getString(idIndex));
-        holder.bind(movie);
+        Movie movie = mPages.get(position);
+        if (movie != null) {
+            holder.bind(movie);
+            return;
+        }
+
+        // Page has been evicted, show the placeholder until it is loaded again.
+        holder.bindPlaceholder();
+        int page = mPages.getPage(position);
+        if (mRequestedPages.add(page)) {
+            mPageRequestHandler.onPageNeeded(page);
+        }
     }
 
     @Override
@@ -90,32 +165,77 @@ public class MoviesAdapter extends RecyclerView.Adapter<MoviesAdapter.MovieViewH
 
     @Override
     public int getItemCount() {
-        if (mCursor == null) {
-            return 0;
-        }
+        return mPages.size();
+    }
 
-        return mCursor.getCount();
+    /**
+     * @return numbers of the pages whose movies are shown without loading them again
+     */
+    public List<Integer> getPagesInMemory() {
+        return mPages.getPagesInMemory();
     }
 
     /**
-     * Swap cursor with the new one.
+     * Replaces the whole list with the loaded pages, e.g. after a change of the sort order.
      *
-     * @param c as a new cursor
+     * @param pages movies keyed by the page number, starting with the first page
      */
-    public void swapCursor(Cursor c) {
-        // Check if this cursor is the same as the previous cursor (mCursor)
-        if (mCursor == c) {
-            return; // nothing has changed
+    public void swapPages(SparseArray<ArrayList<Movie>> pages) {
+        mPages.clear();
+        mRequestedPages.clear();
+        for (int i = 0; i < pages.size(); i++) {
+            // Pages after a missing one can't be positioned.
+            if (pages.keyAt(i) != mPages.getPageCount() + 1) {
+                break;
+            }
+            mPages.put(pages.keyAt(i), pages.valueAt(i));
         }
+        notifyDataSetChanged();
+    }
 
-        mCursor = c;
+    /**
+     * Sets the loaded pages. The next page is appended and the page which is already in the
+     * list is replaced. Only the changed positions are rebound.
+     *
+     * @param pages movies keyed by the page number
+     */
+    public void setPages(SparseArray<ArrayList<Movie>> pages) {
+        for (int i = 0; i < pages.size(); i++) {
+            int page = pages.keyAt(i);
+            ArrayList<Movie> movies = pages.valueAt(i);
+            if (page > mPages.getPageCount() + 1) {
+                // Pages are appended in order, the list can't have a gap.
+                continue;
+            }
+
+            int start = mPages.getPageStart(page);
+            mRequestedPages.remove(page);
+            if (page == mPages.getPageCount() + 1) {
+                mPages.put(page, movies);
+                notifyItemRangeInserted(start, movies.size());
+                continue;
+            }
 
-        // Check if this is a valid cursor, then update it.
-        if (c != null) {
-            notifyDataSetChanged();
+            int oldSize = mPages.getPageSize(page);
+            mPages.put(page, movies);
+            if (oldSize == movies.size()) {
+                notifyItemRangeChanged(start, oldSize);
+            } else {
+                notifyItemRangeRemoved(start, oldSize);
+                notifyItemRangeInserted(start, movies.size());
+            }
         }
     }
 
+    /**
+     * Lets the evicted page be requested again the next time it is shown.
+     *
+     * @param page which could not be loaded
+     */
+    public void onPageLoadFailed(int page) {
+        mRequestedPages.remove(page);
+    }
+
     /**
      * Cache for the children views for a movie posters list.
      */
@@ -162,6 +282,17 @@ public class MoviesAdapter extends RecyclerView.Adapter<MoviesAdapter.MovieViewH
                     R.string.format_movie_poster_content_description, movie.getTitle()));
         }
 
+        /**
+         * Bind the placeholder of the movie which is being loaded.
+         */
+        void bindPlaceholder() {
+            Picasso.with(mContext).cancelRequest(mMoviePoster);
+            mMoviePoster.setImageResource(R.drawable.poster_placeholder);
+            mMoviePoster.setContentDescription(null);
+            mMovieTitle.setText(null);
+            mRatingBar.setRating(0);
+        }
+
         /**
          * This will be called by the child views when user will click on them.
          *
@@ -169,11 +300,16 @@ public class MoviesAdapter extends RecyclerView.Adapter<MoviesAdapter.MovieViewH
          */
         @Override
         public void onClick(View view) {
-            int idIndex = mCursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
             int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
 
-            mCursor.moveToPosition(position);
-            mClickHandler.onClick(mCursor.getString(idIndex));
+            // Placeholder of the movie which is being loaded can't be opened.
+            Movie movie = mPages.get(position);
+            if (movie != null) {
+                mClickHandler.onClick(movie.getId());
+            }
         }
     }
 }
@@ -0,0 +1,99 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentValues;
+import android.nextlevel_global.com.popularmovies.models.Cast;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.models.Review;
+import android.nextlevel_global.com.popularmovies.models.Trailer;
+import android.os.Bundle;
+
+import java.util.List;
+
+/**
+ * Builds the arguments of the favorite movie provider methods
+ * ({@link MovieContract#METHOD_SAVE_FAVORITE} and {@link MovieContract#METHOD_REFRESH_FAVORITE}).
+ */
+public class FavoriteExtras {
+
+    /**
+     * Builds the values of the movie with its cast, reviews and trailers. Lists which have
+     * not been fetched are left out, so the refresh doesn't remove the stored ones.
+     *
+     * @param movie with its details
+     * @return arguments of the provider method
+     */
+    public static Bundle fromMovie(Movie movie) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(MovieContract.EXTRA_MOVIE, buildMovieValues(movie));
+
+        List<Cast> castList = movie.getCastList();
+        if (castList != null) {
+            ContentValues[] castValues = new ContentValues[castList.size()];
+            for (int i = 0; i < castValues.length; i++) {
+                Cast actor = castList.get(i);
+
+                castValues[i] = new ContentValues();
+                castValues[i].put(MovieContract.CastEntry.COLUMN_PERSON_ID, actor.getId());
+                castValues[i].put(MovieContract.CastEntry.COLUMN_ORDER, i);
+                castValues[i].put(MovieContract.CastEntry.COLUMN_NAME, actor.getName());
+                castValues[i].put(MovieContract.CastEntry.COLUMN_CHARACTER,
+                        actor.getCharacter());
+                castValues[i].put(MovieContract.CastEntry.COLUMN_AVATAR_PATH,
+                        actor.getImagePath());
+            }
+            extras.putParcelableArray(MovieContract.EXTRA_CAST, castValues);
+        }
+
+        List<Review> reviews = movie.getReviewsList();
+        if (reviews != null) {
+            ContentValues[] reviewValues = new ContentValues[reviews.size()];
+            for (int i = 0; i < reviewValues.length; i++) {
+                reviewValues[i] = new ContentValues();
+                reviewValues[i].put(MovieContract.ReviewEntry.COLUMN_AUTHOR,
+                        reviews.get(i).getAuthor());
+                reviewValues[i].put(MovieContract.ReviewEntry.COLUMN_CONTENT,
+                        reviews.get(i).getContent());
+            }
+            extras.putParcelableArray(MovieContract.EXTRA_REVIEWS, reviewValues);
+        }
+
+        List<Trailer> trailers = movie.getTrailers();
+        if (trailers != null) {
+            ContentValues[] trailerValues = new ContentValues[trailers.size()];
+            for (int i = 0; i < trailerValues.length; i++) {
+                trailerValues[i] = new ContentValues();
+                trailerValues[i].put(MovieContract.TrailerEntry.COLUMN_TITLE,
+                        trailers.get(i).getTitle());
+                trailerValues[i].put(MovieContract.TrailerEntry.COLUMN_VIDEO_ID,
+                        trailers.get(i).getVideoId());
+            }
+            extras.putParcelableArray(MovieContract.EXTRA_TRAILERS, trailerValues);
+        }
+
+        return extras;
+    }
+
+    /**
+     * Builds the values of the favorite movies table.
+     *
+     * @param movie with its details
+     * @return values of the movie row
+     */
+    private static ContentValues buildMovieValues(Movie movie) {
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.MovieEntry.COLUMN_MOVIE_ID, movie.getId());
+        values.put(MovieContract.MovieEntry.COLUMN_TITLE, movie.getTitle());
+        values.put(MovieContract.MovieEntry.COLUMN_OVERVIEW, movie.getOverview());
+        values.put(MovieContract.MovieEntry.COLUMN_POSTER_URL, movie.getPosterUrl());
+        values.put(MovieContract.MovieEntry.COLUMN_BACKDROP_URL, movie.getBackdropUrl());
+        values.put(MovieContract.MovieEntry.COLUMN_USER_RATING, movie.getUserRating());
+        if (movie.getReleaseDate() == Movie.UNKNOWN_RELEASE_DATE) {
+            values.putNull(MovieContract.MovieEntry.COLUMN_RELEASE_DATE);
+        } else {
+            values.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, movie.getReleaseDate());
+        }
+        values.put(MovieContract.MovieEntry.COLUMN_RUNTIME, movie.getRuntime());
+
+        return values;
+    }
+}
@@ -0,0 +1,202 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.nextlevel_global.com.popularmovies.R;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.utilities.MovieDetailsFetcher;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Refreshes the stale favorite movies in the background, so the offline user doesn't carry
+ * months old ratings and reviews. Favorites are refreshed in batches, oldest first, every
+ * movie with one API request and one {@link MovieContract#METHOD_REFRESH_FAVORITE} call.
+ * <p>
+ * Every refreshed movie gets its refresh time at once, so a refresh which has been stopped
+ * or killed is resumed by the next one with the movies which are still stale.
+ */
+public class FavoritesRefresher {
+
+    private static final String LOG_TAG = FavoritesRefresher.class.getSimpleName();
+
+    /**
+     * Number of the favorites read from the provider at once.
+     */
+    static final int BATCH_SIZE = 10;
+
+    /**
+     * Columns of the batch: row id, movie id and refresh time.
+     */
+    static final String[] BATCH_PROJECTION = {
+            MovieContract.MovieEntry._ID,
+            MovieContract.MovieEntry.COLUMN_MOVIE_ID,
+            MovieContract.MovieEntry.COLUMN_UPDATED_AT};
+
+    /**
+     * Stale favorites after the last movie of the previous batch, in the order of their
+     * refresh time. Arguments are the stale time, and the refresh time (twice) and the row id
+     * of the last movie. The refresh time is a range of the index, which keeps the rows
+     * of the same time in the row id order, so the batch is read without sorting.
+     */
+    static final String BATCH_SELECTION =
+            MovieContract.MovieEntry.COLUMN_UPDATED_AT + " < ? AND " +
+            MovieContract.MovieEntry.COLUMN_UPDATED_AT + " >= ? AND (" +
+            MovieContract.MovieEntry.COLUMN_UPDATED_AT + " > ? OR " +
+            MovieContract.MovieEntry._ID + " > ?)";
+    static final String BATCH_SORT_ORDER = MovieContract.MovieEntry.COLUMN_UPDATED_AT + ", " +
+            MovieContract.MovieEntry._ID;
+
+    /**
+     * Only one refresh runs at a time, even if it has been started by several jobs.
+     */
+    private static final ReentrantLock sRefreshLock = new ReentrantLock();
+
+    private final Context mContext;
+
+    private volatile boolean mIsStopped;
+
+    /**
+     * @param context of the application
+     */
+    public FavoritesRefresher(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Stops the refresh after the movies which are being stored. It may be called from
+     * any thread.
+     */
+    public void stop() {
+        mIsStopped = true;
+    }
+
+    /**
+     * Refreshes the stale favorite movies. It must not be called on the main thread.
+     *
+     * @return false if some of the movies could not be refreshed, or the refresh has been
+     * stopped, so it should be repeated later
+     */
+    public boolean refreshStaleFavorites() {
+        if (!sRefreshLock.tryLock()) {
+            // Another refresh is running, it takes care of the stale favorites.
+            return true;
+        }
+
+        List<Future<Movie>> fetches = new ArrayList<>(BATCH_SIZE);
+        try {
+            long staleBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(
+                    mContext.getResources().getInteger(R.integer.favorites_ttl_hours));
+
+            boolean isComplete = true;
+            long lastUpdatedAt = -1;
+            long lastId = -1;
+            while (!mIsStopped) {
+                // Movies which have failed keep their refresh time, so the batches continue
+                // after the last read movie instead of reading the failed ones again.
+                Cursor cursor = mContext.getContentResolver().query(
+                        MovieContract.MovieEntry.buildFavoriteMoviesUriWithLimit(BATCH_SIZE),
+                        BATCH_PROJECTION,
+                        BATCH_SELECTION,
+                        new String[]{
+                                String.valueOf(staleBefore),
+                                String.valueOf(lastUpdatedAt),
+                                String.valueOf(lastUpdatedAt),
+                                String.valueOf(lastId)},
+                        BATCH_SORT_ORDER);
+
+                if (cursor == null) {
+                    return false;
+                }
+
+                List<String> movieIds = new ArrayList<>();
+                try {
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        movieIds.add(cursor.getString(1));
+                        lastUpdatedAt = cursor.getLong(2);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (!refreshBatch(fetches, movieIds)) {
+                    isComplete = false;
+                }
+
+                if (movieIds.size() < BATCH_SIZE) {
+                    break;
+                }
+            }
+
+            return isComplete && !mIsStopped;
+        } finally {
+            for (Future<Movie> fetch : fetches) {
+                fetch.cancel(true);
+            }
+            sRefreshLock.unlock();
+        }
+    }
+
+    /**
+     * Fetches the movies of the batch and stores the changes of each of them as soon as it
+     * has been fetched. Movies are fetched in the maintenance lane of the task scheduler,
+     * which limits how many of them are fetched at the same time.
+     *
+     * @param fetches  list for the fetches of the batch, so they can be cancelled
+     * @param movieIds of the batch
+     * @return false if some of the movies could not be refreshed
+     */
+    private boolean refreshBatch(List<Future<Movie>> fetches, List<String> movieIds) {
+        fetches.clear();
+        for (final String movieId : movieIds) {
+            Callable<Movie> fetch = new Callable<Movie>() {
+                @Override
+                public Movie call() throws IOException {
+                    return MovieDetailsFetcher.fetchMovieInBackground(movieId);
+                }
+            };
+            fetches.add(TaskScheduler.getInstance().submit(TaskScheduler.LANE_MAINTENANCE, fetch));
+        }
+
+        ContentResolver resolver = mContext.getContentResolver();
+        boolean isComplete = true;
+        for (int i = 0; i < fetches.size(); i++) {
+            if (mIsStopped) {
+                fetches.get(i).cancel(true);
+                isComplete = false;
+                continue;
+            }
+
+            try {
+                resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                        MovieContract.METHOD_REFRESH_FAVORITE, null,
+                        FavoriteExtras.fromMovie(fetches.get(i).get()));
+            } catch (ExecutionException e) {
+                Log.v(LOG_TAG, "Refresh of " + movieIds.get(i) + " failed: " +
+                        e.getCause().getMessage());
+                isComplete = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+                isComplete = false;
+            } catch (RuntimeException e) {
+                // Movie the provider can't store doesn't stop the rest of the batch.
+                Log.e(LOG_TAG, "Refresh of " + movieIds.get(i) + " failed", e);
+                isComplete = false;
+            }
+        }
+
+        return isComplete;
+    }
+}
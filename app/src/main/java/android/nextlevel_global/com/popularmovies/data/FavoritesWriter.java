@@ -0,0 +1,272 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the favorite movies behind the UI. A toggle of the favorite is only recorded in the
+ * journal and the UI shows its result at once. The writer applies the journal to the provider
+ * in the background, in the order of the toggles.
+ * <p>
+ * Toggles of the same movie which have not been written yet are coalesced into one write, so
+ * adding and removing the movie again writes nothing. Listeners are told only about the writes
+ * which have failed, so the UI can show the stored state again.
+ */
+public class FavoritesWriter {
+
+    private static final String LOG_TAG = FavoritesWriter.class.getSimpleName();
+
+    /**
+     * Listener of the failed writes. It is called on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the favorite state of the movie could not be stored. Toggles of the
+         * movie made after the failed one are dropped too.
+         *
+         * @param movieId    of the movie
+         * @param isFavorite stored state of the movie
+         */
+        void onFavoriteWriteFailed(String movieId, boolean isFavorite);
+    }
+
+    private static FavoritesWriter sInstance;
+
+    private final Context mContext;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Writes waiting for the writer, keyed by the movie id, in the order of the toggles.
+     * Guarded by this.
+     */
+    private final Map<String, PendingWrite> mJournal = new LinkedHashMap<>();
+
+    /**
+     * Write which is being applied, null if there is none. Guarded by this.
+     */
+    private PendingWrite mWriteInFlight;
+
+    /**
+     * True while the writer has been submitted and hasn't emptied the journal yet.
+     * Guarded by this.
+     */
+    private boolean mIsWriterScheduled;
+
+    /**
+     * Listeners of the failed writes, used only on the main thread.
+     */
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /**
+     * Applies the journal until it is empty.
+     */
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            writeJournal();
+        }
+    };
+
+    /**
+     * Gets the favorites writer of the application.
+     *
+     * @param context of the application
+     * @return the favorites writer
+     */
+    public static synchronized FavoritesWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FavoritesWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates the writer with its own journal. The application uses the shared one,
+     * {@link #getInstance(Context)}.
+     *
+     * @param context whose content resolver stores the favorites
+     */
+    @VisibleForTesting
+    FavoritesWriter(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Adds the listener of the failed writes. It must be called on the main thread.
+     *
+     * @param listener to add
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Removes the listener of the failed writes. It must be called on the main thread.
+     *
+     * @param listener to remove
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Records the new favorite state of the movie in the journal and schedules the writer.
+     * The state before the toggle is the opposite one. The movie is read at once, so it may
+     * be changed after this call.
+     *
+     * @param movie      with its cast, reviews and trailers
+     * @param isFavorite new state of the movie
+     */
+    public synchronized void setFavorite(Movie movie, boolean isFavorite) {
+        String movieId = movie.getId();
+
+        PendingWrite write = mJournal.get(movieId);
+        if (write == null) {
+            write = new PendingWrite(movieId, !isFavorite);
+            mJournal.put(movieId, write);
+        }
+
+        // Movie toggled back to the state it is going to have anyway needs no write.
+        if (isFavorite == write.mStoredState) {
+            mJournal.remove(movieId);
+            return;
+        }
+
+        write.mIsFavorite = isFavorite;
+        write.mExtras = isFavorite ? FavoriteExtras.fromMovie(movie) : null;
+
+        if (!mIsWriterScheduled) {
+            mIsWriterScheduled = true;
+            TaskScheduler.getInstance().submit(TaskScheduler.LANE_INTERACTIVE, mWriter);
+        }
+    }
+
+    /**
+     * Gets the favorite state of the movie which has not been stored yet. Loaders which read
+     * the movie from the provider use it, so the user sees the last toggle.
+     *
+     * @param movieId of the movie
+     * @return state of the last toggle, or null if the movie has no pending write
+     */
+    public synchronized Boolean getPendingFavorite(String movieId) {
+        PendingWrite write = mJournal.get(movieId);
+        if (write == null && mWriteInFlight != null && mWriteInFlight.mMovieId.equals(movieId)) {
+            write = mWriteInFlight;
+        }
+        return write == null ? null : write.mIsFavorite;
+    }
+
+    /**
+     * Applies the writes of the journal one by one, the oldest first.
+     */
+    private void writeJournal() {
+        while (true) {
+            PendingWrite write;
+            synchronized (this) {
+                Iterator<PendingWrite> iterator = mJournal.values().iterator();
+                if (!iterator.hasNext()) {
+                    mIsWriterScheduled = false;
+                    return;
+                }
+
+                write = iterator.next();
+                iterator.remove();
+                mWriteInFlight = write;
+            }
+
+            boolean isWritten = apply(write);
+
+            synchronized (this) {
+                mWriteInFlight = null;
+                if (!isWritten) {
+                    // Later toggles of the movie expected this write to be stored.
+                    mJournal.remove(write.mMovieId);
+                }
+            }
+
+            if (!isWritten) {
+                notifyWriteFailed(write.mMovieId, write.mStoredState);
+            }
+        }
+    }
+
+    /**
+     * Stores the favorite state of the movie through the provider.
+     *
+     * @param write to apply
+     * @return true if the state has been stored
+     */
+    private boolean apply(PendingWrite write) {
+        ContentResolver resolver = mContext.getContentResolver();
+        try {
+            if (write.mIsFavorite) {
+                // The whole movie is saved in one transaction with one notification.
+                resolver.call(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                        MovieContract.METHOD_SAVE_FAVORITE, null, write.mExtras);
+            } else {
+                resolver.delete(MovieContract.MovieEntry.buildFavoriteMovieUriWithId(
+                        write.mMovieId), null, null);
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Unable to store favorite " + write.mMovieId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Tells the listeners about the failed write on the main thread.
+     *
+     * @param movieId    of the movie
+     * @param isFavorite stored state of the movie
+     */
+    private void notifyWriteFailed(final String movieId, final boolean isFavorite) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onFavoriteWriteFailed(movieId, isFavorite);
+                }
+            }
+        });
+    }
+
+    /**
+     * Favorite state of the movie waiting for the writer.
+     */
+    private static class PendingWrite {
+        private final String mMovieId;
+
+        /**
+         * State of the movie before the first toggle, it stays stored if the write fails.
+         */
+        private final boolean mStoredState;
+
+        private boolean mIsFavorite;
+
+        /**
+         * Movie, cast, reviews and trailers values of the added movie.
+         */
+        private Bundle mExtras;
+
+        PendingWrite(String movieId, boolean storedState) {
+            mMovieId = movieId;
+            mStoredState = storedState;
+        }
+    }
+}
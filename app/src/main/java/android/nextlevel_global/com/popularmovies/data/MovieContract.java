@@ -3,6 +3,8 @@ package android.nextlevel_global.com.popularmovies.data;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.List;
+
 /**
  * Defines table and column names for the movies database.
  */
@@ -38,6 +40,11 @@ public class MovieContract {
      */
     static final String PATH_CAST = "cast";
 
+    /**
+     * URI path to the favorite movies of a cast member.
+     */
+    static final String PATH_PEOPLE = "people";
+
     /**
      * URI path to reviews related to the favorite movie.
      */
@@ -48,6 +55,39 @@ public class MovieContract {
      */
     static final String PATH_TRAILERS = "trailers";
 
+    /**
+     * URI path to the search in favorite movies.
+     */
+    static final String PATH_SEARCH = "search";
+
+    /**
+     * Provider method which saves the favorite movie with its cast, reviews and trailers
+     * in one transaction. Old cast, reviews and trailers of the movie are replaced.
+     */
+    public static final String METHOD_SAVE_FAVORITE = "save_favorite";
+
+    /**
+     * Provider method which brings the stored favorite movie up to date with the fetched one.
+     * Only the changed rows are written, nothing at all when the movie is up to date.
+     * Cast, reviews or trailers missing in the arguments are left as they are.
+     */
+    public static final String METHOD_REFRESH_FAVORITE = "refresh_favorite";
+
+    /**
+     * Arguments of {@link #METHOD_SAVE_FAVORITE} and {@link #METHOD_REFRESH_FAVORITE}:
+     * ContentValues of the movie and arrays of ContentValues of the cast members,
+     * reviews and trailers.
+     */
+    public static final String EXTRA_MOVIE = "movie";
+    public static final String EXTRA_CAST = "cast";
+    public static final String EXTRA_REVIEWS = "reviews";
+    public static final String EXTRA_TRAILERS = "trailers";
+
+    /**
+     * Result of {@link #METHOD_REFRESH_FAVORITE}: number of the rows which have been written.
+     */
+    public static final String EXTRA_ROWS_CHANGED = "rows_changed";
+
     // Class that defines the table contents of the movie table
     public static final class MovieEntry implements BaseColumns {
 
@@ -79,12 +119,21 @@ public class MovieContract {
         /* User rating for the movie (stored as floats in the database) */
         public static final String COLUMN_USER_RATING = "user_rating";
 
-        /* Release date of the movie */
+        /* Release date of the movie (days since 1970-01-01, null if unknown) */
         public static final String COLUMN_RELEASE_DATE = "release_date";
 
         /* Runtime of the movie */
         public static final String COLUMN_RUNTIME = "runtime";
 
+        /* Time of the last refresh from the API, in milliseconds since epoch */
+        public static final String COLUMN_UPDATED_AT = "updated_at";
+
+        /* Order of the favorites list, the latest added movie first */
+        public static final String NEWEST_FIRST_SORT_ORDER = _ID + " DESC";
+
+        /* Query parameter with the maximum number of the favorite movies */
+        static final String QUERY_PARAMETER_LIMIT = "limit";
+
         /**
          * Builds a URI that adds the movie id to the end of the favorites movie content URI path.
          * This is used to query details about a single movie stored in favorites by its ID etc.
@@ -97,6 +146,19 @@ public class MovieContract {
                     .appendPath(id)
                     .build();
         }
+
+        /**
+         * Builds a URI to query at most the given number of favorite movies, e.g. one batch
+         * of the stale favorites.
+         *
+         * @param limit maximum number of the movies
+         * @return Uri to query the favorite movies
+         */
+        public static Uri buildFavoriteMoviesUriWithLimit(int limit) {
+            return FAVORITE_MOVIES_CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
     }
 
     // Class that defines the table for the cast members related with the movie.
@@ -108,15 +170,21 @@ public class MovieContract {
         /* Foreign key related with the movie where the cast member belongs */
         public static final String COLUMN_MOVIE_ID = "movie_id";
 
-        /* Name of the cast member */
+        /* ID of the cast member in themoviedb.org, the person is stored in PersonEntry */
+        public static final String COLUMN_PERSON_ID = "person_id";
+
+        /* Name of the cast member (read from PersonEntry) */
         public static final String COLUMN_NAME = "name";
 
         /* Name of the played character */
         public static final String COLUMN_CHARACTER = "character";
 
-        /* URL path to picture of the actor */
+        /* URL path to picture of the actor (read from PersonEntry) */
         public static final String COLUMN_AVATAR_PATH = "image_path";
 
+        /* Position of the cast member in the credits of the movie */
+        public static final String COLUMN_ORDER = "cast_order";
+
         /**
          * Build a URI that adds the cast members to the movie with specified ID when
          * user add it (movie) to the favorites.
@@ -131,6 +199,35 @@ public class MovieContract {
         }
     }
 
+    // Class that defines the table for the cast members, shared by all of the favorite movies.
+    public static final class PersonEntry {
+
+        // Name of the people table
+        static final String TABLE_NAME = "people";
+
+        /* ID of the person in themoviedb.org */
+        public static final String COLUMN_PERSON_ID = "person_id";
+
+        /* Name of the person */
+        public static final String COLUMN_NAME = "name";
+
+        /* URL path to picture of the person */
+        public static final String COLUMN_AVATAR_PATH = "image_path";
+
+        /**
+         * Build a URI of the favorite movies with the person in the cast.
+         *
+         * @param personId of the person from API
+         * @return URI to query the favorite movies of the person
+         */
+        public static Uri buildFavoriteMoviesWithPersonUri(String personId) {
+            return MovieEntry.FAVORITE_MOVIES_CONTENT_URI.buildUpon()
+                    .appendPath(PATH_PEOPLE)
+                    .appendPath(personId)
+                    .build();
+        }
+    }
+
     // Class that defines the table for the reviews related with the movie.
     public static final class ReviewEntry implements BaseColumns {
 
@@ -193,6 +290,7 @@ public class MovieContract {
 
         /**
          * URI address used to querying top rated movies from content provider.
+         * Changes of any cached page are notified on this URI.
          */
         static final Uri TOP_RATED_MOVIES_CONTENT_URI = BASE_CONTENT_URI.buildUpon()
                 .appendPath(PATH_TOP_RATED_MOVIES)
@@ -200,6 +298,7 @@ public class MovieContract {
 
         /**
          * URI address used to querying most popular movies from content provider.
+         * Changes of any cached page are notified on this URI.
          */
         static final Uri POPULAR_MOVIES_CONTENT_URI = BASE_CONTENT_URI.buildUpon()
                 .appendPath(PATH_POPULAR_MOVIES)
@@ -208,6 +307,18 @@ public class MovieContract {
         // Name of cached movies table
         static final String TABLE_NAME = "api_cache";
 
+        // List category of the cached movie (popular or top_rated), it equals the URI path
+        static final String COLUMN_CATEGORY = "category";
+
+        // API page on which the movie has been returned
+        public static final String COLUMN_PAGE = "page";
+
+        // Position of the movie within its page
+        static final String COLUMN_RANK = "rank";
+
+        // Time when the page has been fetched from the API (milliseconds since epoch)
+        static final String COLUMN_FETCHED_AT = "fetched_at";
+
         // Movie ID from themoviedb.org service
         static final String COLUMN_MOVIE_ID = "movie_id";
 
@@ -220,6 +331,9 @@ public class MovieContract {
         // User rating for the movie (stored as a float)
         static final String COLUMN_USER_RATING = "user_rating";
 
+        // Query parameter with the first of the returned pages
+        static final String QUERY_PARAMETER_FIRST_PAGE = "first_page";
+
         /**
          * Field projection for movie list.
          */
@@ -229,6 +343,16 @@ public class MovieContract {
                 MovieContract.CacheEntry.COLUMN_POSTER_URL,
                 MovieContract.CacheEntry.COLUMN_USER_RATING};
 
+        /**
+         * Field projection for the pages of the cached movie list, with the page of every movie.
+         */
+        public static final String[] MOVIE_PAGE_PROJECTION = {
+                MovieContract.CacheEntry.COLUMN_MOVIE_ID,
+                MovieContract.CacheEntry.COLUMN_TITLE,
+                MovieContract.CacheEntry.COLUMN_POSTER_URL,
+                MovieContract.CacheEntry.COLUMN_USER_RATING,
+                MovieContract.CacheEntry.COLUMN_PAGE};
+
         /**
          * Builds an URI address to the popular movies which will have a page number at the end.
          * This is used to query a content provider for popular movies.
@@ -254,5 +378,100 @@ public class MovieContract {
                     .appendPath(page)
                     .build();
         }
+
+        /**
+         * Gets the URI on which the changes of the pages of the list are notified.
+         *
+         * @param pageUri of the popular or top rated movies page
+         * @return Uri of the list category
+         */
+        public static Uri getCategoryUri(Uri pageUri) {
+            return PATH_POPULAR_MOVIES.equals(pageUri.getPathSegments().get(0))
+                    ? POPULAR_MOVIES_CONTENT_URI
+                    : TOP_RATED_MOVIES_CONTENT_URI;
+        }
+
+        /**
+         * Gets the page number of the URI on which the change of the list has been notified.
+         *
+         * @param uri of the popular or top rated movies page or of their category
+         * @return page number or 0 if the URI is not of a single page
+         */
+        public static int getPage(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            if (segments.size() != 2) {
+                return 0;
+            }
+
+            try {
+                return Integer.parseInt(segments.get(1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Builds a URI to query only the pages from the given one up to the page of the URI,
+         * e.g. the single page appended to the list.
+         *
+         * @param pageUri   of the popular or top rated movies page
+         * @param firstPage first of the returned pages
+         * @return Uri for the movies of the pages
+         */
+        public static Uri buildPageRangeUri(Uri pageUri, int firstPage) {
+            return pageUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FIRST_PAGE, String.valueOf(firstPage))
+                    .build();
+        }
+    }
+
+    // Class that defines the full-text search index of the favorite movies. Every favorite movie
+    // has one document (its docid is the movie id) with the title, overview, cast and reviews.
+    public static final class SearchEntry implements BaseColumns {
+
+        /**
+         * URI address used to search in the favorite movies. The searched text is passed
+         * in the query parameter, results are ranked and have a snippet of the matched text.
+         */
+        static final Uri SEARCH_CONTENT_URI = MovieEntry.FAVORITE_MOVIES_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SEARCH)
+                .build();
+
+        // Name of the full-text search table
+        static final String TABLE_NAME = "favorites_search";
+
+        /* Indexed text of the movie */
+        static final String COLUMN_TITLE = "title";
+        static final String COLUMN_OVERVIEW = "overview";
+        static final String COLUMN_CAST = "cast_members";
+        static final String COLUMN_REVIEWS = "reviews";
+
+        /* Query parameter with the searched text */
+        static final String QUERY_PARAMETER = "query";
+
+        /* Movie columns of the search results */
+        public static final String COLUMN_MOVIE_ID = "movie_id";
+        public static final String COLUMN_MOVIE_TITLE = "title";
+        public static final String COLUMN_POSTER_URL = "poster_url";
+        public static final String COLUMN_USER_RATING = "user_rating";
+
+        /* Fragment of the matched text, matches are wrapped in the snippet markers */
+        public static final String COLUMN_SNIPPET = "snippet";
+
+        /* Markers of the matches in the snippet */
+        public static final String SNIPPET_MATCH_START = "<b>";
+        public static final String SNIPPET_MATCH_END = "</b>";
+
+        /**
+         * Build a URI which searches the text in the favorite movies.
+         *
+         * @param query searched text, as typed by the user
+         * @return URI of the search results
+         */
+        public static Uri buildSearchUri(String query) {
+            return SEARCH_CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER, query)
+                    .build();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,28 +1,341 @@
 package android.nextlevel_global.com.popularmovies.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.nextlevel_global.com.popularmovies.data.MovieContract.CastEntry;
 import android.nextlevel_global.com.popularmovies.data.MovieContract.CacheEntry;
 import android.nextlevel_global.com.popularmovies.data.MovieContract.MovieEntry;
+import android.nextlevel_global.com.popularmovies.data.MovieContract.PersonEntry;
 import android.nextlevel_global.com.popularmovies.data.MovieContract.ReviewEntry;
+import android.nextlevel_global.com.popularmovies.data.MovieContract.SearchEntry;
 import android.nextlevel_global.com.popularmovies.data.MovieContract.TrailerEntry;
+import android.util.Log;
 
 /**
  * Manages a local database for movies data.
  */
 class MovieDbHelper extends SQLiteOpenHelper {
 
+    private static final String LOG_TAG = MovieDbHelper.class.getSimpleName();
+
     /**
      * Name of the database.
      */
     private static final String DATABASE_NAME = "popular_movies.db";
 
     /**
-     * Database version control.
+     * Database version control. Every version above 1 has its step in {@link #MIGRATIONS}.
+     */
+    static final int DATABASE_VERSION = 10;
+
+    /**
+     * Single step of the schema upgrade.
      */
-    private static final int DATABASE_VERSION = 1;
+    interface Migration {
+
+        /**
+         * Upgrades the schema by one version. It runs in a transaction.
+         *
+         * @param db which is upgraded
+         */
+        void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Search index triggers of versions 5 and 6, with the cast names stored in the cast table.
+     */
+    private static final String[] SEARCH_TRIGGERS_V5 = {
+            "CREATE TRIGGER favorites_search_movie_insert AFTER INSERT ON favorite_movies " +
+                    "BEGIN DELETE FROM favorites_search WHERE docid = new.movie_id; " +
+                    "INSERT INTO favorites_search " +
+                    "(docid, title, overview, cast_members, reviews) VALUES " +
+                    "(new.movie_id, new.title, new.overview, " +
+                    "(SELECT group_concat(name || ' ' || character, ' ') FROM cast c " +
+                    "WHERE c.movie_id = new.movie_id), " +
+                    "(SELECT group_concat(content, ' ') FROM reviews " +
+                    "WHERE movie_id = new.movie_id)); END",
+            "CREATE TRIGGER favorites_search_movie_update " +
+                    "AFTER UPDATE OF title, overview ON favorite_movies " +
+                    "BEGIN UPDATE favorites_search SET title = new.title, " +
+                    "overview = new.overview WHERE docid = new.movie_id; END",
+            "CREATE TRIGGER favorites_search_movie_delete AFTER DELETE ON favorite_movies " +
+                    "BEGIN DELETE FROM favorites_search WHERE docid = old.movie_id; END",
+            "CREATE TRIGGER favorites_search_cast_insert AFTER INSERT ON cast " +
+                    "BEGIN UPDATE favorites_search SET cast_members = " +
+                    "(SELECT group_concat(name || ' ' || character, ' ') FROM cast c " +
+                    "WHERE c.movie_id = new.movie_id) WHERE docid = new.movie_id; END",
+            "CREATE TRIGGER favorites_search_cast_delete AFTER DELETE ON cast " +
+                    "BEGIN UPDATE favorites_search SET cast_members = " +
+                    "(SELECT group_concat(name || ' ' || character, ' ') FROM cast c " +
+                    "WHERE c.movie_id = old.movie_id) WHERE docid = old.movie_id; END",
+            "CREATE TRIGGER favorites_search_reviews_insert AFTER INSERT ON reviews " +
+                    "BEGIN UPDATE favorites_search SET reviews = " +
+                    "(SELECT group_concat(content, ' ') FROM reviews " +
+                    "WHERE movie_id = new.movie_id) WHERE docid = new.movie_id; END",
+            "CREATE TRIGGER favorites_search_reviews_delete AFTER DELETE ON reviews " +
+                    "BEGIN UPDATE favorites_search SET reviews = " +
+                    "(SELECT group_concat(content, ' ') FROM reviews " +
+                    "WHERE movie_id = old.movie_id) WHERE docid = old.movie_id; END"
+    };
+
+    /**
+     * Search index triggers of versions 7 to 9, with the cast names joined from the people
+     * table, which exists since version 7.
+     */
+    private static final String[] SEARCH_TRIGGERS_V7 = {
+            "CREATE TRIGGER favorites_search_movie_insert AFTER INSERT ON favorite_movies " +
+                    "BEGIN DELETE FROM favorites_search WHERE docid = new.movie_id; " +
+                    "INSERT INTO favorites_search " +
+                    "(docid, title, overview, cast_members, reviews) VALUES " +
+                    "(new.movie_id, new.title, new.overview, " +
+                    "(SELECT group_concat(p.name || ' ' || c.character, ' ') FROM cast c " +
+                    "JOIN people p ON p.person_id = c.person_id " +
+                    "WHERE c.movie_id = new.movie_id), " +
+                    "(SELECT group_concat(content, ' ') FROM reviews " +
+                    "WHERE movie_id = new.movie_id)); END",
+            "CREATE TRIGGER favorites_search_movie_update " +
+                    "AFTER UPDATE OF title, overview ON favorite_movies " +
+                    "BEGIN UPDATE favorites_search SET title = new.title, " +
+                    "overview = new.overview WHERE docid = new.movie_id; END",
+            "CREATE TRIGGER favorites_search_movie_delete AFTER DELETE ON favorite_movies " +
+                    "BEGIN DELETE FROM favorites_search WHERE docid = old.movie_id; END",
+            "CREATE TRIGGER favorites_search_cast_insert AFTER INSERT ON cast " +
+                    "BEGIN UPDATE favorites_search SET cast_members = " +
+                    "(SELECT group_concat(p.name || ' ' || c.character, ' ') FROM cast c " +
+                    "JOIN people p ON p.person_id = c.person_id " +
+                    "WHERE c.movie_id = new.movie_id) WHERE docid = new.movie_id; END",
+            "CREATE TRIGGER favorites_search_cast_delete AFTER DELETE ON cast " +
+                    "BEGIN UPDATE favorites_search SET cast_members = " +
+                    "(SELECT group_concat(p.name || ' ' || c.character, ' ') FROM cast c " +
+                    "JOIN people p ON p.person_id = c.person_id " +
+                    "WHERE c.movie_id = old.movie_id) WHERE docid = old.movie_id; END",
+            "CREATE TRIGGER favorites_search_reviews_insert AFTER INSERT ON reviews " +
+                    "BEGIN UPDATE favorites_search SET reviews = " +
+                    "(SELECT group_concat(content, ' ') FROM reviews " +
+                    "WHERE movie_id = new.movie_id) WHERE docid = new.movie_id; END",
+            "CREATE TRIGGER favorites_search_reviews_delete AFTER DELETE ON reviews " +
+                    "BEGIN UPDATE favorites_search SET reviews = " +
+                    "(SELECT group_concat(content, ' ') FROM reviews " +
+                    "WHERE movie_id = old.movie_id) WHERE docid = old.movie_id; END",
+            "CREATE TRIGGER favorites_search_people_update AFTER UPDATE OF name ON people " +
+                    "BEGIN UPDATE favorites_search SET cast_members = " +
+                    "(SELECT group_concat(p.name || ' ' || c.character, ' ') FROM cast c " +
+                    "JOIN people p ON p.person_id = c.person_id " +
+                    "WHERE c.movie_id = favorites_search.docid) " +
+                    "WHERE docid IN (SELECT movie_id FROM cast " +
+                    "WHERE person_id = new.person_id); END"
+    };
+
+    /**
+     * Upgrade steps. The step at index i upgrades the database from version i + 1 to i + 2.
+     * <p>
+     * Steps of the favorites tables must not use the create methods of this class, because
+     * they describe the current schema. A step which changes such a table has to use its own
+     * SQL, e.g. with {@link #rebuildTable(SQLiteDatabase, String, String, String)}.
+     * The cache table holds only a copy of the API data, so it is simply recreated. The search
+     * index triggers are dropped with their tables, so a step which rebuilds a favorites table
+     * recreates them from the SQL of its own version, e.g. {@link #SEARCH_TRIGGERS_V5}.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // 1 -> 2: cached lists separated by category, with page and rank columns.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    recreateCacheTable(db);
+                }
+            },
+
+            // 2 -> 3: fetch time of the cached pages.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    recreateCacheTable(db);
+                }
+            },
+
+            // 3 -> 4: indexes of the foreign keys and of the cached pages order.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createIndex(db, "cast_movie_id_index", "cast",
+                            "movie_id, _id, name, character, image_path");
+                    createIndex(db, "reviews_movie_id_index", "reviews", "movie_id");
+                    createIndex(db, "trailers_movie_id_index", "trailers",
+                            "movie_id, _id, title, video_id");
+                    recreateCacheTable(db);
+                }
+            },
+
+            // 4 -> 5: full-text search index of the favorites.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE favorites_search USING fts4 " +
+                            "(title, overview, cast_members, reviews)");
+                    execSQL(db, SEARCH_TRIGGERS_V5);
+                    db.execSQL("INSERT INTO favorites_search " +
+                            "(docid, title, overview, cast_members, reviews) " +
+                            "SELECT movie_id, title, overview, " +
+                            "(SELECT group_concat(name || ' ' || character, ' ') FROM cast c " +
+                            "WHERE c.movie_id = favorite_movies.movie_id), " +
+                            "(SELECT group_concat(content, ' ') FROM reviews " +
+                            "WHERE reviews.movie_id = favorite_movies.movie_id) " +
+                            "FROM favorite_movies");
+                }
+            },
+
+            // 5 -> 6: typed columns. Text columns had numeric affinity (STRING) and release
+            // dates were stored as text, they are stored as days since 1970-01-01.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    // Triggers refer to the rebuilt tables, they can't be renamed with them.
+                    dropSearchTriggers(db);
+
+                    rebuildTable(db, "favorite_movies", "CREATE TABLE %s (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "movie_id INTEGER NOT NULL,title TEXT NOT NULL, " +
+                                    "overview TEXT NOT NULL, poster_url TEXT NOT NULL, " +
+                                    "backdrop_url TEXT NOT NULL, user_rating REAL NOT NULL, " +
+                                    "release_date INTEGER, runtime INTEGER NOT NULL,  " +
+                                    "UNIQUE (movie_id) ON CONFLICT REPLACE);",
+                            "_id, movie_id, title, overview, poster_url, backdrop_url, " +
+                                    "user_rating, release_date, runtime",
+                            "_id, movie_id, title, overview, poster_url, backdrop_url, " +
+                                    "user_rating, CASE WHEN typeof(release_date) = 'text' " +
+                                    "THEN CAST(julianday(release_date) - 2440587.5 AS INTEGER) " +
+                                    "END, runtime");
+                    rebuildTable(db, "cast", "CREATE TABLE %s (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "movie_id INTEGER NOT NULL, name TEXT NOT NULL," +
+                                    "character TEXT NOT NULL,image_path TEXT NOT NULL," +
+                                    "FOREIGN KEY (movie_id) REFERENCES " +
+                                    "favorite_movies(movie_id) ON DELETE CASCADE);",
+                            "_id, movie_id, name, character, image_path");
+                    rebuildTable(db, "reviews", "CREATE TABLE %s (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "movie_id INTEGER NOT NULL, author TEXT NOT NULL," +
+                                    "content TEXT NOT NULL," +
+                                    "FOREIGN KEY (movie_id) REFERENCES " +
+                                    "favorite_movies(movie_id) ON DELETE CASCADE);",
+                            "_id, movie_id, author, content");
+                    rebuildTable(db, "trailers", "CREATE TABLE %s (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "movie_id INTEGER NOT NULL, title TEXT NOT NULL," +
+                                    "video_id TEXT NOT NULL," +
+                                    "FOREIGN KEY (movie_id) REFERENCES " +
+                                    "favorite_movies(movie_id) ON DELETE CASCADE);",
+                            "_id, movie_id, title, video_id");
+
+                    createIndex(db, "cast_movie_id_index", "cast",
+                            "movie_id, _id, name, character, image_path");
+                    createIndex(db, "reviews_movie_id_index", "reviews", "movie_id");
+                    createIndex(db, "trailers_movie_id_index", "trailers",
+                            "movie_id, _id, title, video_id");
+                    execSQL(db, SEARCH_TRIGGERS_V5);
+                    recreateCacheTable(db);
+                }
+            },
+
+            // 6 -> 7: people stored once, in the people table, cast joins them with the movies.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    dropSearchTriggers(db);
+
+                    db.execSQL("CREATE TABLE people (person_id INTEGER PRIMARY KEY, " +
+                            "name TEXT NOT NULL, image_path TEXT NOT NULL);");
+
+                    // Person ids were not stored, so the people get negative ids, which never
+                    // collide with the API ones. Saving the movie again brings the real ids.
+                    db.execSQL("INSERT INTO people (person_id, name, image_path) " +
+                            "SELECT -MIN(_id), name, image_path FROM cast " +
+                            "GROUP BY name, image_path");
+
+                    // CAST is a keyword in expressions, so the table name is quoted.
+                    rebuildTable(db, "cast", "CREATE TABLE %s (" +
+                                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "movie_id INTEGER NOT NULL, person_id INTEGER NOT NULL, " +
+                                    "character TEXT NOT NULL, cast_order INTEGER NOT NULL, " +
+                                    "FOREIGN KEY (movie_id) REFERENCES " +
+                                    "favorite_movies(movie_id) ON DELETE CASCADE, " +
+                                    "FOREIGN KEY (person_id) REFERENCES people(person_id));",
+                            "_id, movie_id, person_id, character, cast_order",
+                            "_id, movie_id, (SELECT p.person_id FROM people p " +
+                                    "WHERE p.name = \"cast\".name " +
+                                    "AND p.image_path = \"cast\".image_path), character, _id");
+
+                    db.execSQL("CREATE TRIGGER cast_remove_unused_person AFTER DELETE ON cast " +
+                            "BEGIN DELETE FROM people WHERE person_id = old.person_id " +
+                            "AND NOT EXISTS (SELECT 1 FROM cast " +
+                            "WHERE person_id = old.person_id); END");
+
+                    createIndex(db, "cast_movie_id_index", "cast",
+                            "movie_id, cast_order, _id, person_id, character");
+                    createIndex(db, "cast_person_id_index", "cast", "person_id, movie_id");
+                    execSQL(db, SEARCH_TRIGGERS_V7);
+                }
+            },
+
+            // 7 -> 8: refresh time of the favorites, the existing ones are stale.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE favorite_movies " +
+                            "ADD COLUMN updated_at INTEGER NOT NULL DEFAULT 0");
+                    createIndex(db, "favorite_movies_updated_at_index", "favorite_movies",
+                            "updated_at");
+                }
+            },
+
+            // 8 -> 9: cached movies keyed by their place in the category.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    recreateCacheTable(db);
+                }
+            },
+
+            // 9 -> 10: cast and reviews of the search document are rebuilt once per save
+            // by the provider, instead of by a trigger on every row.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP TRIGGER IF EXISTS favorites_search_cast_insert");
+                    db.execSQL("DROP TRIGGER IF EXISTS favorites_search_cast_delete");
+                    db.execSQL("DROP TRIGGER IF EXISTS favorites_search_reviews_insert");
+                    db.execSQL("DROP TRIGGER IF EXISTS favorites_search_reviews_delete");
+                }
+            }
+    };
+
+    /**
+     * Cast text of the search document of the movie with the id given by the %1$s expression.
+     */
+    private static final String SEARCH_CAST_TEXT = "(SELECT group_concat(p." +
+            PersonEntry.COLUMN_NAME + " || ' ' || c." + CastEntry.COLUMN_CHARACTER +
+            ", ' ') FROM " + CastEntry.TABLE_NAME + " c JOIN " + PersonEntry.TABLE_NAME +
+            " p ON p." + PersonEntry.COLUMN_PERSON_ID + " = c." + CastEntry.COLUMN_PERSON_ID +
+            " WHERE c." + CastEntry.COLUMN_MOVIE_ID + " = %1$s)";
+
+    /**
+     * Reviews text of the search document of the movie with the id given by the %1$s expression.
+     */
+    private static final String SEARCH_REVIEWS_TEXT = "(SELECT group_concat(" +
+            ReviewEntry.COLUMN_CONTENT + ", ' ') FROM " + ReviewEntry.TABLE_NAME +
+            " WHERE " + ReviewEntry.COLUMN_MOVIE_ID + " = %1$s)";
+
+    /**
+     * Rebuilds the cast and reviews of the search document of the movie.
+     */
+    static final String SQL_REBUILD_SEARCH_DOCUMENT = "UPDATE " +
+            SearchEntry.TABLE_NAME + " SET " +
+            SearchEntry.COLUMN_CAST + " = " + String.format(SEARCH_CAST_TEXT, "?1") + ", " +
+            SearchEntry.COLUMN_REVIEWS + " = " + String.format(SEARCH_REVIEWS_TEXT, "?1") +
+            " WHERE docid = ?1";
 
     /**
      * Helper constructor.
@@ -30,7 +343,23 @@ class MovieDbHelper extends SQLiteOpenHelper {
      * @param context of the application.
      */
     public MovieDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Helper constructor for the database with a custom name, used by the migration tests.
+     *
+     * @param context of the application.
+     * @param name    of the database file.
+     */
+    MovieDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // Write-ahead log lets the loaders read from their own connections while the list
+        // refreshes and the favorites updates write, instead of waiting for the transaction.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     @Override
@@ -40,6 +369,15 @@ class MovieDbHelper extends SQLiteOpenHelper {
         // In write mode enable foreign key constraints.
         if (!db.isReadOnly()) {
             db.execSQL("PRAGMA foreign_keys=ON;");
+
+            // Before Jelly Bean write-ahead log can be enabled only on the open database.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                db.enableWriteAheadLogging();
+            }
+
+            // With write-ahead log the commit doesn't have to wait for the disk sync. The last
+            // commits can be lost on power failure, but the database stays consistent.
+            db.execSQL("PRAGMA synchronous=NORMAL;");
         }
     }
 
@@ -50,88 +388,378 @@ class MovieDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        // Crate table for storing favorites movies.
+        createMoviesTable(sqLiteDatabase);
+        createPeopleTable(sqLiteDatabase);
+        createCastTable(sqLiteDatabase);
+        createReviewsTable(sqLiteDatabase);
+        createTrailersTable(sqLiteDatabase);
+        createCacheTable(sqLiteDatabase);
+        createFavoritesIndexes(sqLiteDatabase);
+        createSearchIndex(sqLiteDatabase);
+    }
+
+    /**
+     * Update database step by step, from the old version to the new one. Every step runs in its
+     * own nested transaction, inside the one opened by SQLiteOpenHelper, so a failed step rolls
+     * back the whole upgrade and the database stays at the old version.
+     * <p>
+     * Foreign keys are enabled in {@link #onOpen(SQLiteDatabase)}, which runs after the upgrade,
+     * so rebuilding a parent table doesn't cascade to the favorites data.
+     *
+     * @param sqLiteDatabase that is being updated
+     * @param oldVersion     of the database
+     * @param newVersion     of the database
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            Log.i(LOG_TAG, "Upgrading database from version " + version + " to " + (version + 1));
+
+            sqLiteDatabase.beginTransaction();
+            try {
+                MIGRATIONS[version - 1].migrate(sqLiteDatabase);
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the table with a new definition and copies its rows. Only this table is touched,
+     * the data of the other tables stays in place. It follows the SQLite recipe for schema
+     * changes which ALTER TABLE doesn't support: create the new table, copy the data, drop
+     * the old table and rename the new one.
+     *
+     * @param db           which is upgraded
+     * @param table        name of the rebuilt table
+     * @param createSql    CREATE TABLE statement of the new definition, with "%s" for the name
+     * @param copyColumns  comma separated columns of the new table which are copied
+     * @param selectValues comma separated expressions over the old table for these columns
+     */
+    static void rebuildTable(SQLiteDatabase db, String table, String createSql,
+                             String copyColumns, String selectValues) {
+        String newTable = table + "_new";
+
+        db.execSQL("DROP TABLE IF EXISTS " + newTable);
+        db.execSQL(String.format(createSql, newTable));
+        db.execSQL("INSERT INTO " + newTable + " (" + copyColumns + ") SELECT " + selectValues +
+                " FROM " + table);
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + table);
+    }
+
+    /**
+     * Rebuilds the table with a new definition and copies all of the columns which have the
+     * same name.
+     *
+     * @param db        which is upgraded
+     * @param table     name of the rebuilt table
+     * @param createSql CREATE TABLE statement of the new definition, with "%s" for the name
+     * @param columns   comma separated columns copied from the old table
+     */
+    static void rebuildTable(SQLiteDatabase db, String table, String createSql, String columns) {
+        rebuildTable(db, table, createSql, columns, columns);
+    }
+
+    /**
+     * Executes the statements in order.
+     *
+     * @param db         which is upgraded
+     * @param statements SQL statements without arguments
+     */
+    private static void execSQL(SQLiteDatabase db, String[] statements) {
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+    }
+
+    /**
+     * Creates the index, unless it exists.
+     *
+     * @param db      in which we create the index
+     * @param name    of the index
+     * @param table   which is indexed
+     * @param columns comma separated indexed columns
+     */
+    static void createIndex(SQLiteDatabase db, String name, String table, String columns) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")");
+    }
+
+    /**
+     * Create indexes of the movie_id foreign keys. Every per-movie query of cast, reviews and
+     * trailers, and every cascade check when a favorite is removed, is an index search instead
+     * of a full scan. Row id is a part of every index, so the rows of the movie come in the
+     * insertion order without sorting, and the cascade checks need only the index.
+     * <p>
+     * Cast and trailers rows are short, so their indexes hold all of the columns and the
+     * queries don't touch the tables at all. The cast comes in the order of the credits and
+     * the trailers in the insertion order. The review content is too long to be copied.
+     * People are found by their cast members (other favorites of the actor, removal of the
+     * people who are no longer in any favorite) through the person id index.
+     * Stale favorites are found by their refresh time, oldest first.
+     *
+     * @param sqLiteDatabase in which we create the indexes.
+     */
+    private static void createFavoritesIndexes(SQLiteDatabase sqLiteDatabase) {
+        createIndex(sqLiteDatabase, "cast_movie_id_index", CastEntry.TABLE_NAME,
+                CastEntry.COLUMN_MOVIE_ID + ", " + CastEntry.COLUMN_ORDER + ", " +
+                        CastEntry._ID + ", " + CastEntry.COLUMN_PERSON_ID + ", " +
+                        CastEntry.COLUMN_CHARACTER);
+        createIndex(sqLiteDatabase, "cast_person_id_index", CastEntry.TABLE_NAME,
+                CastEntry.COLUMN_PERSON_ID + ", " + CastEntry.COLUMN_MOVIE_ID);
+        createIndex(sqLiteDatabase, "reviews_movie_id_index",
+                ReviewEntry.TABLE_NAME, ReviewEntry.COLUMN_MOVIE_ID);
+        createIndex(sqLiteDatabase, "trailers_movie_id_index", TrailerEntry.TABLE_NAME,
+                TrailerEntry.COLUMN_MOVIE_ID + ", " + TrailerEntry._ID + ", " +
+                        TrailerEntry.COLUMN_TITLE + ", " + TrailerEntry.COLUMN_VIDEO_ID);
+        createIndex(sqLiteDatabase, "favorite_movies_updated_at_index", MovieEntry.TABLE_NAME,
+                MovieEntry.COLUMN_UPDATED_AT);
+    }
+
+    /**
+     * Create full-text search index of the favorite movies, with the triggers which keep it
+     * up to date. Every movie has one document with the movie id as its docid.
+     *
+     * @param sqLiteDatabase in which we create the index.
+     */
+    private static void createSearchIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE VIRTUAL TABLE " + SearchEntry.TABLE_NAME + " USING fts4 (" +
+                SearchEntry.COLUMN_TITLE + ", " +
+                SearchEntry.COLUMN_OVERVIEW + ", " +
+                SearchEntry.COLUMN_CAST + ", " +
+                SearchEntry.COLUMN_REVIEWS + ")");
+
+        createSearchTriggers(sqLiteDatabase);
+    }
+
+    /**
+     * Create triggers which keep the search index up to date with the movies and the people.
+     * Cast and reviews of the movie are joined into a single column each. They are rebuilt
+     * with {@link #rebuildSearchDocument(SQLiteDatabase, String)} once the whole cast and
+     * reviews of the movie are written, because a trigger on every row would join all of
+     * them again for each row.
+     * <p>
+     * The movie row is replaced when the movie is saved again, which doesn't fire the delete
+     * trigger, so the insert trigger removes the old document first.
+     *
+     * @param sqLiteDatabase in which we create the triggers.
+     */
+    private static void createSearchTriggers(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TRIGGER favorites_search_movie_insert AFTER INSERT ON " +
+                MovieEntry.TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + SearchEntry.TABLE_NAME +
+                " WHERE docid = new." + MovieEntry.COLUMN_MOVIE_ID + "; " +
+                "INSERT INTO " + SearchEntry.TABLE_NAME + " (docid, " +
+                SearchEntry.COLUMN_TITLE + ", " + SearchEntry.COLUMN_OVERVIEW + ", " +
+                SearchEntry.COLUMN_CAST + ", " + SearchEntry.COLUMN_REVIEWS + ") VALUES (" +
+                "new." + MovieEntry.COLUMN_MOVIE_ID + ", " +
+                "new." + MovieEntry.COLUMN_TITLE + ", " +
+                "new." + MovieEntry.COLUMN_OVERVIEW + ", " +
+                String.format(SEARCH_CAST_TEXT, "new." + MovieEntry.COLUMN_MOVIE_ID) + ", " +
+                String.format(SEARCH_REVIEWS_TEXT, "new." + MovieEntry.COLUMN_MOVIE_ID) +
+                "); END");
+
+        sqLiteDatabase.execSQL("CREATE TRIGGER favorites_search_movie_update AFTER UPDATE OF " +
+                MovieEntry.COLUMN_TITLE + ", " + MovieEntry.COLUMN_OVERVIEW + " ON " +
+                MovieEntry.TABLE_NAME + " BEGIN " +
+                "UPDATE " + SearchEntry.TABLE_NAME + " SET " +
+                SearchEntry.COLUMN_TITLE + " = new." + MovieEntry.COLUMN_TITLE + ", " +
+                SearchEntry.COLUMN_OVERVIEW + " = new." + MovieEntry.COLUMN_OVERVIEW +
+                " WHERE docid = new." + MovieEntry.COLUMN_MOVIE_ID + "; END");
+
+        sqLiteDatabase.execSQL("CREATE TRIGGER favorites_search_movie_delete AFTER DELETE ON " +
+                MovieEntry.TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + SearchEntry.TABLE_NAME +
+                " WHERE docid = old." + MovieEntry.COLUMN_MOVIE_ID + "; END");
+
+        // Renamed person is renamed in all of the favorite movies.
+        sqLiteDatabase.execSQL("CREATE TRIGGER favorites_search_people_update AFTER UPDATE OF " +
+                PersonEntry.COLUMN_NAME + " ON " + PersonEntry.TABLE_NAME + " BEGIN " +
+                "UPDATE " + SearchEntry.TABLE_NAME + " SET " + SearchEntry.COLUMN_CAST + " = " +
+                String.format(SEARCH_CAST_TEXT, SearchEntry.TABLE_NAME + ".docid") +
+                " WHERE docid IN (SELECT " + CastEntry.COLUMN_MOVIE_ID + " FROM " +
+                CastEntry.TABLE_NAME + " WHERE " + CastEntry.COLUMN_PERSON_ID + " = new." +
+                PersonEntry.COLUMN_PERSON_ID + "); END");
+    }
+
+    /**
+     * Rebuilds the cast and reviews of the search document of the favorite movie. It is called
+     * after the cast or reviews of the movie have been written, in the same transaction.
+     *
+     * @param db      to write
+     * @param movieId of the favorite movie
+     */
+    static void rebuildSearchDocument(SQLiteDatabase db, String movieId) {
+        db.execSQL(SQL_REBUILD_SEARCH_DOCUMENT, new Object[]{movieId});
+    }
+
+    /**
+     * Drops the triggers of the search index.
+     *
+     * @param sqLiteDatabase which is upgraded.
+     */
+    private static void dropSearchTriggers(SQLiteDatabase sqLiteDatabase) {
+        Cursor triggers = sqLiteDatabase.rawQuery("SELECT name FROM sqlite_master " +
+                "WHERE type = 'trigger' AND name LIKE 'favorites_search_%'", null);
+        try {
+            while (triggers.moveToNext()) {
+                sqLiteDatabase.execSQL("DROP TRIGGER " + triggers.getString(0));
+            }
+        } finally {
+            triggers.close();
+        }
+    }
+
+    /**
+     * Crate table for storing favorites movies.
+     *
+     * @param sqLiteDatabase in which we create the table.
+     */
+    private static void createMoviesTable(SQLiteDatabase sqLiteDatabase) {
         final String SQL_CREATE_MOVIES_TABLE =
                 "CREATE TABLE " + MovieEntry.TABLE_NAME + " (" +
                         MovieEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         MovieEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL," +
-                        MovieEntry.COLUMN_TITLE + " STRING NOT NULL, " +
-                        MovieEntry.COLUMN_OVERVIEW + " STRING NOT NULL, " +
-                        MovieEntry.COLUMN_POSTER_URL + " STRING NOT NULL, " +
-                        MovieEntry.COLUMN_BACKDROP_URL + " STRING NOT NULL, " +
+                        MovieEntry.COLUMN_TITLE + " TEXT NOT NULL, " +
+                        MovieEntry.COLUMN_OVERVIEW + " TEXT NOT NULL, " +
+                        MovieEntry.COLUMN_POSTER_URL + " TEXT NOT NULL, " +
+                        MovieEntry.COLUMN_BACKDROP_URL + " TEXT NOT NULL, " +
                         MovieEntry.COLUMN_USER_RATING + " REAL NOT NULL, " +
-                        MovieEntry.COLUMN_RELEASE_DATE + " STRING NOT NULL, " +
+                        // Days since 1970-01-01, null when the movie has no release date yet.
+                        MovieEntry.COLUMN_RELEASE_DATE + " INTEGER, " +
                         MovieEntry.COLUMN_RUNTIME + " INTEGER NOT NULL, " +
+                        // Milliseconds since epoch, 0 when the movie has never been refreshed.
+                        MovieEntry.COLUMN_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, " +
 
                         // Ensure we store unique movie we declare movie_id column to be unique.
                         // If we will attempt to store movie with the same ID we will replace old
                         // data with the new one.
                         " UNIQUE (" + MovieEntry.COLUMN_MOVIE_ID + ") ON CONFLICT REPLACE);";
 
-        // Create table for storing cast members for the favorite movies - used in offline mode.
+        sqLiteDatabase.execSQL(SQL_CREATE_MOVIES_TABLE);
+    }
+
+    /**
+     * Create table for storing the people from the cast of the favorite movies. Every person
+     * is stored once, no matter how many of the favorite movies they play in.
+     *
+     * @param sqLiteDatabase in which we create the table.
+     */
+    private static void createPeopleTable(SQLiteDatabase sqLiteDatabase) {
+        final String SQL_CREATE_PEOPLE_TABLE =
+                "CREATE TABLE " + PersonEntry.TABLE_NAME + " (" +
+                        PersonEntry.COLUMN_PERSON_ID + " INTEGER PRIMARY KEY, " +
+                        PersonEntry.COLUMN_NAME + " TEXT NOT NULL, " +
+                        PersonEntry.COLUMN_AVATAR_PATH + " TEXT NOT NULL);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_PEOPLE_TABLE);
+    }
+
+    /**
+     * Create table for storing cast members for the favorite movies - used in offline mode.
+     * It joins the movies with the people. A person is removed with the last cast member
+     * which refers to them.
+     *
+     * @param sqLiteDatabase in which we create the table.
+     */
+    private static void createCastTable(SQLiteDatabase sqLiteDatabase) {
         final String SQL_CREATE_CASTS_TABLE =
                 "CREATE TABLE " + CastEntry.TABLE_NAME + " (" +
                         CastEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         CastEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL, " +
-                        CastEntry.COLUMN_NAME + " STRING NOT NULL," +
-                        CastEntry.COLUMN_CHARACTER + " STRING NOT NULL," +
-                        CastEntry.COLUMN_AVATAR_PATH + " STRING NOT NULL," +
-                        "FOREIGN KEY (" + CastEntry.COLUMN_MOVIE_ID + ") REFERENCES " + MovieEntry.TABLE_NAME + "(" + MovieEntry.COLUMN_MOVIE_ID + ") ON DELETE CASCADE);";
+                        CastEntry.COLUMN_PERSON_ID + " INTEGER NOT NULL, " +
+                        CastEntry.COLUMN_CHARACTER + " TEXT NOT NULL, " +
+                        CastEntry.COLUMN_ORDER + " INTEGER NOT NULL, " +
+                        "FOREIGN KEY (" + CastEntry.COLUMN_MOVIE_ID + ") REFERENCES " + MovieEntry.TABLE_NAME + "(" + MovieEntry.COLUMN_MOVIE_ID + ") ON DELETE CASCADE, " +
+                        "FOREIGN KEY (" + CastEntry.COLUMN_PERSON_ID + ") REFERENCES " + PersonEntry.TABLE_NAME + "(" + PersonEntry.COLUMN_PERSON_ID + "));";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_CASTS_TABLE);
 
-        // Create table for storing reviews for the favorite movies - used in offline mode.
+        sqLiteDatabase.execSQL("CREATE TRIGGER cast_remove_unused_person AFTER DELETE ON " +
+                CastEntry.TABLE_NAME + " BEGIN DELETE FROM " + PersonEntry.TABLE_NAME +
+                " WHERE " + PersonEntry.COLUMN_PERSON_ID + " = old." + CastEntry.COLUMN_PERSON_ID +
+                " AND NOT EXISTS (SELECT 1 FROM " + CastEntry.TABLE_NAME + " WHERE " +
+                CastEntry.COLUMN_PERSON_ID + " = old." + CastEntry.COLUMN_PERSON_ID + "); END");
+    }
+
+    /**
+     * Create table for storing reviews for the favorite movies - used in offline mode.
+     *
+     * @param sqLiteDatabase in which we create the table.
+     */
+    private static void createReviewsTable(SQLiteDatabase sqLiteDatabase) {
         final String SQL_CREATE_REVIEWS_TABLE =
                 "CREATE TABLE " + ReviewEntry.TABLE_NAME + " (" +
                         ReviewEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         ReviewEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL, " +
-                        ReviewEntry.COLUMN_AUTHOR + " STRING NOT NULL," +
-                        ReviewEntry.COLUMN_CONTENT + " STRING NOT NULL," +
+                        ReviewEntry.COLUMN_AUTHOR + " TEXT NOT NULL," +
+                        ReviewEntry.COLUMN_CONTENT + " TEXT NOT NULL," +
                         "FOREIGN KEY (" + ReviewEntry.COLUMN_MOVIE_ID + ") REFERENCES " + MovieEntry.TABLE_NAME + "(" + MovieEntry.COLUMN_MOVIE_ID + ") ON DELETE CASCADE);";
 
-        // Create table for storing trailers for the favorite movies - used in offline mode.
+        sqLiteDatabase.execSQL(SQL_CREATE_REVIEWS_TABLE);
+    }
+
+    /**
+     * Create table for storing trailers for the favorite movies - used in offline mode.
+     *
+     * @param sqLiteDatabase in which we create the table.
+     */
+    private static void createTrailersTable(SQLiteDatabase sqLiteDatabase) {
         final String SQL_CREATE_TRAILERS_TABLE =
                 "CREATE TABLE " + TrailerEntry.TABLE_NAME + " (" +
                         TrailerEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         TrailerEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL, " +
-                        TrailerEntry.COLUMN_TITLE + " STRING NOT NULL," +
-                        TrailerEntry.COLUMN_VIDEO_ID + " STRING NOT NULL," +
+                        TrailerEntry.COLUMN_TITLE + " TEXT NOT NULL," +
+                        TrailerEntry.COLUMN_VIDEO_ID + " TEXT NOT NULL," +
                         "FOREIGN KEY (" + TrailerEntry.COLUMN_MOVIE_ID + ") REFERENCES " + MovieEntry.TABLE_NAME + "(" + MovieEntry.COLUMN_MOVIE_ID + ") ON DELETE CASCADE);";
 
-        // Create movie cache table for results from the API.
+        sqLiteDatabase.execSQL(SQL_CREATE_TRAILERS_TABLE);
+    }
+
+    /**
+     * Create movie cache table for results from the API. Every list category keeps its own
+     * pages, and movies are ordered by the page and the rank within the page.
+     *
+     * @param sqLiteDatabase in which we create the table.
+     */
+    private static void createCacheTable(SQLiteDatabase sqLiteDatabase) {
         final String SQL_CREATE_MOVIE_CACHE_TABLE =
                 "CREATE TABLE " + CacheEntry.TABLE_NAME + " (" +
                         CacheEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        CacheEntry.COLUMN_CATEGORY + " TEXT NOT NULL, " +
+                        CacheEntry.COLUMN_PAGE + " INTEGER NOT NULL, " +
+                        CacheEntry.COLUMN_RANK + " INTEGER NOT NULL, " +
                         CacheEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL," +
-                        CacheEntry.COLUMN_TITLE + " STRING NOT NULL, " +
-                        CacheEntry.COLUMN_POSTER_URL + " STRING NOT NULL, " +
+                        CacheEntry.COLUMN_TITLE + " TEXT NOT NULL, " +
+                        CacheEntry.COLUMN_POSTER_URL + " TEXT NOT NULL, " +
                         CacheEntry.COLUMN_USER_RATING + " REAL NOT NULL, " +
+                        CacheEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL, " +
 
-                        // Ensure we store unique movie we declare movie_id column to be unique.
-                        // If we will attempt to store movie with the same ID we will replace old
-                        // data with the new one.
-                        " UNIQUE (" + CacheEntry.COLUMN_MOVIE_ID + ") ON CONFLICT REPLACE);";
+                        // Every place of the page holds one movie. A movie which moves to
+                        // another page between the fetches may be stored on both of them,
+                        // so the other pages don't lose their rows. The list reads it once.
+                        // Pages of the category are searched and returned in order using
+                        // the index of this constraint.
+                        " UNIQUE (" + CacheEntry.COLUMN_CATEGORY + ", " +
+                        CacheEntry.COLUMN_PAGE + ", " + CacheEntry.COLUMN_RANK +
+                        ") ON CONFLICT REPLACE);";
 
-        // Execute create table query.
-        sqLiteDatabase.execSQL(SQL_CREATE_MOVIES_TABLE);
-        sqLiteDatabase.execSQL(SQL_CREATE_CASTS_TABLE);
-        sqLiteDatabase.execSQL(SQL_CREATE_REVIEWS_TABLE);
-        sqLiteDatabase.execSQL(SQL_CREATE_TRAILERS_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_MOVIE_CACHE_TABLE);
+
+        // Earlier places of the movie in the category are found using this index.
+        createIndex(sqLiteDatabase, "api_cache_movie_id_index", CacheEntry.TABLE_NAME,
+                CacheEntry.COLUMN_CATEGORY + ", " + CacheEntry.COLUMN_MOVIE_ID + ", " +
+                        CacheEntry.COLUMN_PAGE + ", " + CacheEntry.COLUMN_RANK);
     }
 
     /**
-     * Update database.
+     * Recreates the cache table with the current definition. Cached pages are fetched again.
      *
-     * @param sqLiteDatabase that is being updated
-     * @param oldVersion     of the database
-     * @param newVersion     of the database
+     * @param sqLiteDatabase which is upgraded.
      */
-    @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+    private static void recreateCacheTable(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CacheEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + MovieEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CastEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ReviewEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TrailerEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        createCacheTable(sqLiteDatabase);
     }
 }
@@ -1,5 +1,6 @@
 package android.nextlevel_global.com.popularmovies.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -8,22 +9,34 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.nextlevel_global.com.popularmovies.models.Movie;
-import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
-import android.nextlevel_global.com.popularmovies.utilities.TheMoviesDbJsonUtils;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Parcelable;
+import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 
-import org.json.JSONException;
-
-import java.io.IOException;
-import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Content provider for favorite movies data.
+ * Content provider for favorite movies data and the cached lists of movies. It only reads and
+ * writes the database, the lists are fetched from the API by {@link MoviesSyncEngine}.
  */
 public class MoviesProvider extends ContentProvider {
 
@@ -35,9 +48,182 @@ public class MoviesProvider extends ContentProvider {
     private static final int FAVORITE_MOVIE_WITH_ID_CAST = 102;
     private static final int FAVORITE_MOVIE_WITH_ID_REVIEWS = 103;
     private static final int FAVORITE_MOVIE_WITH_ID_TRAILERS = 104;
+    private static final int FAVORITE_MOVIES_SEARCH = 105;
+    private static final int FAVORITE_MOVIES_WITH_PERSON = 106;
     private static final int POPULAR_MOVIES_WITH_PAGE = 300;
     private static final int TOP_RATED_MOVIES_WITH_PAGE = 200;
 
+    /**
+     * Selection of the rows of one movie, by its id.
+     */
+    static final String MOVIE_ID_SELECTION = MovieContract.MovieEntry.COLUMN_MOVIE_ID + "=?";
+
+    /**
+     * Selections of the cast of one movie and of the favorite movies of one person,
+     * in the joins of {@link #buildCastQuery()} and {@link #buildPersonMoviesQuery()}.
+     */
+    static final String CAST_SELECTION = "c." + MovieContract.CastEntry.COLUMN_MOVIE_ID + "=?";
+    static final String PERSON_MOVIES_SELECTION =
+            "c." + MovieContract.CastEntry.COLUMN_PERSON_ID + "=?";
+
+    /**
+     * Order of the cast members, the same as in the credits.
+     */
+    static final String CAST_SORT_ORDER = MovieContract.CastEntry.COLUMN_ORDER;
+
+    /**
+     * Selections of the cached movies: the whole category, one page of it, and the pages
+     * of the category up to the given one with every movie at its first place.
+     */
+    static final String CACHE_CATEGORY_SELECTION = MovieContract.CacheEntry.COLUMN_CATEGORY + "=?";
+    static final String CACHE_PAGE_SELECTION = CACHE_CATEGORY_SELECTION + " AND " +
+            MovieContract.CacheEntry.COLUMN_PAGE + "=?";
+
+    /**
+     * Order of the cached movies, the same as in the API results.
+     */
+    static final String CACHE_SORT_ORDER = MovieContract.CacheEntry.COLUMN_PAGE + ", " +
+            MovieContract.CacheEntry.COLUMN_RANK;
+    static final String CACHE_PAGE_SORT_ORDER = MovieContract.CacheEntry.COLUMN_RANK;
+
+    /**
+     * Leaves out the cached movie which comes earlier in its category. Rankings shift between
+     * the fetches of the pages, so a movie which has moved to another page may be cached
+     * on both of them, and the list shows it only once.
+     */
+    static final String CACHE_FIRST_OCCURRENCE_SELECTION = "NOT EXISTS (SELECT 1 FROM " +
+            MovieContract.CacheEntry.TABLE_NAME + " d WHERE d." +
+            MovieContract.CacheEntry.COLUMN_CATEGORY + " = " +
+            MovieContract.CacheEntry.TABLE_NAME + "." + MovieContract.CacheEntry.COLUMN_CATEGORY +
+            " AND d." + MovieContract.CacheEntry.COLUMN_MOVIE_ID + " = " +
+            MovieContract.CacheEntry.TABLE_NAME + "." + MovieContract.CacheEntry.COLUMN_MOVIE_ID +
+            " AND (d." + MovieContract.CacheEntry.COLUMN_PAGE + " < " +
+            MovieContract.CacheEntry.TABLE_NAME + "." + MovieContract.CacheEntry.COLUMN_PAGE +
+            " OR (d." + MovieContract.CacheEntry.COLUMN_PAGE + " = " +
+            MovieContract.CacheEntry.TABLE_NAME + "." + MovieContract.CacheEntry.COLUMN_PAGE +
+            " AND d." + MovieContract.CacheEntry.COLUMN_RANK + " < " +
+            MovieContract.CacheEntry.TABLE_NAME + "." + MovieContract.CacheEntry.COLUMN_RANK +
+            ")))";
+    static final String CACHE_PAGES_SELECTION = CACHE_CATEGORY_SELECTION + " AND " +
+            MovieContract.CacheEntry.COLUMN_PAGE + "<=? AND " + CACHE_FIRST_OCCURRENCE_SELECTION;
+    static final String CACHE_FIRST_PAGE_SELECTION = MovieContract.CacheEntry.COLUMN_PAGE + ">=?";
+
+    /**
+     * Search in the favorites. Movies with the match in the title come first, then the ones
+     * with more matches. FTS4 has no relevance function, so the matches are counted from the
+     * offsets, which have four numbers per match. Newer favorites win the ties.
+     */
+    static final String SEARCH_QUERY = "SELECT f." +
+            MovieContract.MovieEntry._ID + ", f." +
+            MovieContract.MovieEntry.COLUMN_MOVIE_ID + ", f." +
+            MovieContract.MovieEntry.COLUMN_TITLE + ", f." +
+            MovieContract.MovieEntry.COLUMN_POSTER_URL + ", f." +
+            MovieContract.MovieEntry.COLUMN_USER_RATING + ", " +
+            "snippet(s." + MovieContract.SearchEntry.TABLE_NAME + ", '" +
+            MovieContract.SearchEntry.SNIPPET_MATCH_START + "', '" +
+            MovieContract.SearchEntry.SNIPPET_MATCH_END + "', '\u2026', -1, 12) AS " +
+            MovieContract.SearchEntry.COLUMN_SNIPPET +
+            " FROM " + MovieContract.SearchEntry.TABLE_NAME + " s CROSS JOIN " +
+            MovieContract.MovieEntry.TABLE_NAME + " f ON f." +
+            MovieContract.MovieEntry.COLUMN_MOVIE_ID + " = s.docid" +
+            " WHERE s." + MovieContract.SearchEntry.TABLE_NAME + " MATCH ?" +
+            " ORDER BY s.docid IN (SELECT docid FROM " + MovieContract.SearchEntry.TABLE_NAME +
+            " WHERE " + MovieContract.SearchEntry.COLUMN_TITLE + " MATCH ?) DESC, " +
+            "length(offsets(s." + MovieContract.SearchEntry.TABLE_NAME + ")) - " +
+            "length(replace(offsets(s." + MovieContract.SearchEntry.TABLE_NAME + "), ' ', '')) " +
+            "DESC, f." +
+            MovieContract.MovieEntry._ID + " DESC";
+
+    /**
+     * Columns of the search results.
+     */
+    private static final String[] SEARCH_COLUMNS = {
+            MovieContract.SearchEntry._ID,
+            MovieContract.SearchEntry.COLUMN_MOVIE_ID,
+            MovieContract.SearchEntry.COLUMN_MOVIE_TITLE,
+            MovieContract.SearchEntry.COLUMN_POSTER_URL,
+            MovieContract.SearchEntry.COLUMN_USER_RATING,
+            MovieContract.SearchEntry.COLUMN_SNIPPET};
+
+    /**
+     * Columns of the cast, reviews and trailers rows written by the bulk inserts.
+     * The first one is always the movie id.
+     */
+    private static final String[] CAST_COLUMNS = {
+            MovieContract.CastEntry.COLUMN_MOVIE_ID,
+            MovieContract.CastEntry.COLUMN_PERSON_ID,
+            MovieContract.CastEntry.COLUMN_CHARACTER,
+            MovieContract.CastEntry.COLUMN_ORDER};
+    private static final String[] REVIEW_COLUMNS = {
+            MovieContract.ReviewEntry.COLUMN_MOVIE_ID,
+            MovieContract.ReviewEntry.COLUMN_AUTHOR,
+            MovieContract.ReviewEntry.COLUMN_CONTENT};
+    private static final String[] TRAILER_COLUMNS = {
+            MovieContract.TrailerEntry.COLUMN_MOVIE_ID,
+            MovieContract.TrailerEntry.COLUMN_TITLE,
+            MovieContract.TrailerEntry.COLUMN_VIDEO_ID};
+
+    /**
+     * How often the refresh time of the up to date favorite movie is written. Opening
+     * the favorite again and again doesn't write anything within this time.
+     */
+    private static final long REFRESH_TIME_RESOLUTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Separator of the key columns of the stored and fetched rows compared by the refresh.
+     */
+    private static final String KEY_SEPARATOR = "\0";
+
+    /**
+     * Cast members joined with the people, as read from the cast URI.
+     */
+    private static final String CAST_TABLES = MovieContract.CastEntry.TABLE_NAME + " c JOIN " +
+            MovieContract.PersonEntry.TABLE_NAME + " p ON p." +
+            MovieContract.PersonEntry.COLUMN_PERSON_ID + " = c." +
+            MovieContract.CastEntry.COLUMN_PERSON_ID;
+    private static final HashMap<String, String> CAST_PROJECTION_MAP = new HashMap<>();
+
+    /**
+     * Favorite movies joined with the cast, as read from the person URI.
+     */
+    private static final String PERSON_MOVIES_TABLES = MovieContract.MovieEntry.TABLE_NAME +
+            " f JOIN " + MovieContract.CastEntry.TABLE_NAME + " c ON c." +
+            MovieContract.CastEntry.COLUMN_MOVIE_ID + " = f." +
+            MovieContract.MovieEntry.COLUMN_MOVIE_ID;
+    private static final HashMap<String, String> PERSON_MOVIES_PROJECTION_MAP = new HashMap<>();
+
+    static {
+        String[] castColumns = {
+                MovieContract.CastEntry._ID,
+                MovieContract.CastEntry.COLUMN_MOVIE_ID,
+                MovieContract.CastEntry.COLUMN_PERSON_ID,
+                MovieContract.CastEntry.COLUMN_CHARACTER,
+                MovieContract.CastEntry.COLUMN_ORDER};
+        for (String column : castColumns) {
+            CAST_PROJECTION_MAP.put(column, "c." + column + " AS " + column);
+        }
+        CAST_PROJECTION_MAP.put(MovieContract.CastEntry.COLUMN_NAME,
+                "p." + MovieContract.PersonEntry.COLUMN_NAME + " AS " +
+                        MovieContract.CastEntry.COLUMN_NAME);
+        CAST_PROJECTION_MAP.put(MovieContract.CastEntry.COLUMN_AVATAR_PATH,
+                "p." + MovieContract.PersonEntry.COLUMN_AVATAR_PATH + " AS " +
+                        MovieContract.CastEntry.COLUMN_AVATAR_PATH);
+
+        String[] movieColumns = {
+                MovieContract.MovieEntry._ID,
+                MovieContract.MovieEntry.COLUMN_MOVIE_ID,
+                MovieContract.MovieEntry.COLUMN_TITLE,
+                MovieContract.MovieEntry.COLUMN_OVERVIEW,
+                MovieContract.MovieEntry.COLUMN_POSTER_URL,
+                MovieContract.MovieEntry.COLUMN_BACKDROP_URL,
+                MovieContract.MovieEntry.COLUMN_USER_RATING,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+                MovieContract.MovieEntry.COLUMN_RUNTIME};
+        for (String column : movieColumns) {
+            PERSON_MOVIES_PROJECTION_MAP.put(column, "f." + column + " AS " + column);
+        }
+    }
+
     /**
      * URI matcher
      */
@@ -53,6 +239,18 @@ public class MoviesProvider extends ContentProvider {
      */
     private Context mContext;
 
+    /**
+     * Notifications deferred until the batch applied by the thread is committed,
+     * null when the thread doesn't apply a batch.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /**
+     * Movie ids which search documents are rebuilt at the end of the batch applied by
+     * the thread, null when the thread doesn't apply a batch.
+     */
+    private final ThreadLocal<Set<String>> mPendingSearchDocuments = new ThreadLocal<>();
+
     /**
      * Build URI matcher.
      */
@@ -74,6 +272,12 @@ public class MoviesProvider extends ContentProvider {
         uriMatcher.addURI(MovieContract.CONTENT_AUTHORITY,
                 MovieContract.PATH_FAVORITE_MOVIES + "/#/" + MovieContract.PATH_TRAILERS,
                 FAVORITE_MOVIE_WITH_ID_TRAILERS);
+        uriMatcher.addURI(MovieContract.CONTENT_AUTHORITY,
+                MovieContract.PATH_FAVORITE_MOVIES + "/" + MovieContract.PATH_SEARCH,
+                FAVORITE_MOVIES_SEARCH);
+        uriMatcher.addURI(MovieContract.CONTENT_AUTHORITY,
+                MovieContract.PATH_FAVORITE_MOVIES + "/" + MovieContract.PATH_PEOPLE + "/#",
+                FAVORITE_MOVIES_WITH_PERSON);
 
         uriMatcher.addURI(MovieContract.CONTENT_AUTHORITY,
                 MovieContract.PATH_POPULAR_MOVIES + "/#", POPULAR_MOVIES_WITH_PAGE);
@@ -96,7 +300,13 @@ public class MoviesProvider extends ContentProvider {
     }
 
     /**
-     * Do batch operations in transaction.
+     * Do batch operations in transaction. Writes use non-exclusive transactions, so with
+     * the write-ahead log the readers keep reading the last commit in the meantime.
+     * <p>
+     * Change notifications of the operations are deferred until the commit and sent once
+     * per URI, so the observers don't re-query the data in the middle of the batch.
+     * They are dropped when the batch fails. Search documents of the movies which cast or
+     * reviews have changed are rebuilt once, at the end of the batch.
      *
      * @param operations to do
      * @return result of batch operations
@@ -112,21 +322,92 @@ public class MoviesProvider extends ContentProvider {
         ContentProviderResult[] result = new ContentProviderResult[operations.size()];
 
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Set<Uri> notifications = new LinkedHashSet<>();
+        final Set<String> searchDocuments = new LinkedHashSet<>();
 
-        db.beginTransaction();
+        mPendingNotifications.set(notifications);
+        mPendingSearchDocuments.set(searchDocuments);
+        db.beginTransactionNonExclusive();
         try {
             for (ContentProviderOperation operation : operations) {
                 result[i++] = operation.apply(this, result, i);
             }
 
+            for (String movieId : searchDocuments) {
+                MovieDbHelper.rebuildSearchDocument(db, movieId);
+            }
+
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            mPendingNotifications.remove();
+            mPendingSearchDocuments.remove();
+        }
+
+        // Batch has been committed.
+        for (Uri uri : notifications) {
+            if (!hasAncestor(notifications, uri)) {
+                mContext.getContentResolver().notifyChange(uri, null);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Notifies the observers of the URI about the change. During the batch the notification
+     * is deferred until the batch is committed.
+     *
+     * @param uri which has been changed
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> notifications = mPendingNotifications.get();
+        if (notifications != null) {
+            notifications.add(uri);
+        } else {
+            mContext.getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Rebuilds the search document of the movie which cast or reviews have been written.
+     * During the batch the rebuild is deferred until the end of the batch.
+     *
+     * @param db      to write
+     * @param movieId of the favorite movie
+     */
+    private void rebuildSearchDocument(SQLiteDatabase db, String movieId) {
+        Set<String> movieIds = mPendingSearchDocuments.get();
+        if (movieIds != null) {
+            movieIds.add(movieId);
+        } else {
+            MovieDbHelper.rebuildSearchDocument(db, movieId);
+        }
+    }
+
+    /**
+     * Checks if any of the URIs is an ancestor of the given one. Notification of the ancestor
+     * reaches the observers of all of its descendants, so the URI doesn't need its own.
+     *
+     * @param uris to check
+     * @param uri  which ancestor we look for
+     * @return true if the ancestor is among the URIs
+     */
+    private static boolean hasAncestor(Set<Uri> uris, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+
+        for (Uri candidate : uris) {
+            List<String> candidateSegments = candidate.getPathSegments();
+            if (candidateSegments.size() < segments.size()
+                    && TextUtils.equals(candidate.getAuthority(), uri.getAuthority())
+                    && segments.subList(0, candidateSegments.size()).equals(candidateSegments)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Query operation for the ContentProvider.
      *
@@ -140,6 +421,48 @@ public class MoviesProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
+        return queryDatabase(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Query operation which can be cancelled. Cancelled query of the movie lists stops
+     * filling the cursor window, other queries only check the signal before they start.
+     *
+     * @param uri                which we want to query
+     * @param projection         fields
+     * @param selection          fields
+     * @param selectionArgs      for query
+     * @param sortOrder          for the query
+     * @param cancellationSignal of the caller, may be null
+     * @return cursor with selected data.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        return queryDatabase(uri, projection, selection, selectionArgs, sortOrder,
+                cancellationSignal);
+    }
+
+    /**
+     * Queries the database for the URI.
+     *
+     * @param uri                which we want to query
+     * @param projection         fields
+     * @param selection          fields
+     * @param selectionArgs      for query
+     * @param sortOrder          for the query
+     * @param cancellationSignal of the caller, null below API 16
+     * @return cursor with selected data.
+     */
+    private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder,
+                                 CancellationSignal cancellationSignal) {
 
         // Get access to database (read-only because its only a query).
         final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
@@ -152,30 +475,51 @@ public class MoviesProvider extends ContentProvider {
         switch (match) {
             // Query for the movies directory.
             case FAVORITE_MOVIES:
-                retCursor = db.query(
+                retCursor = queryTable(
+                        db,
                         MovieContract.MovieEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder);
+                        sortOrder,
+                        uri.getQueryParameter(MovieContract.MovieEntry.QUERY_PARAMETER_LIMIT),
+                        cancellationSignal);
                 break;
 
             case FAVORITE_MOVIE_WITH_ID_CAST:
                 // Since we are operating on URI with defined ID we are
                 // overriding selection and selectionArgs vars.
                 movieId = uri.getPathSegments().get(uri.getPathSegments().size() - 2);
-                selection = MovieContract.CastEntry.COLUMN_MOVIE_ID + "=?";
+                selection = CAST_SELECTION;
                 selectionArgs = new String[]{movieId};
 
-                retCursor = db.query(
-                        MovieContract.CastEntry.TABLE_NAME,
+                // Names and pictures of the cast members are read from the people table.
+                retCursor = buildCastQuery().query(
+                        db,
                         projection,
                         selection,
                         selectionArgs,
                         null,
                         null,
+                        TextUtils.isEmpty(sortOrder) ? CAST_SORT_ORDER : sortOrder);
+                break;
+
+            // Other favorite movies with the person in the cast.
+            case FAVORITE_MOVIES_WITH_PERSON:
+                String personSelection = PERSON_MOVIES_SELECTION;
+                String[] personSelectionArgs = new String[]{uri.getLastPathSegment()};
+                if (!TextUtils.isEmpty(selection)) {
+                    personSelection += " AND (" + selection + ")";
+                    personSelectionArgs = concat(personSelectionArgs, selectionArgs);
+                }
+
+                retCursor = buildPersonMoviesQuery().query(
+                        db,
+                        projection,
+                        personSelection,
+                        personSelectionArgs,
+                        null,
+                        null,
                         sortOrder);
                 break;
 
@@ -183,7 +527,7 @@ public class MoviesProvider extends ContentProvider {
                 // Since we are operating on URI with defined ID we are
                 // overriding selection and selectionArgs vars.
                 movieId = uri.getPathSegments().get(uri.getPathSegments().size() - 2);
-                selection = MovieContract.ReviewEntry.COLUMN_MOVIE_ID + "=?";
+                selection = MOVIE_ID_SELECTION;
                 selectionArgs = new String[]{movieId};
 
                 retCursor = db.query(
@@ -200,7 +544,7 @@ public class MoviesProvider extends ContentProvider {
                 // Since we are operating on URI with defined ID we are
                 // overriding selection and selectionArgs vars.
                 movieId = uri.getPathSegments().get(uri.getPathSegments().size() - 2);
-                selection = MovieContract.ReviewEntry.COLUMN_MOVIE_ID + "=?";
+                selection = MOVIE_ID_SELECTION;
                 selectionArgs = new String[]{movieId};
 
                 retCursor = db.query(
@@ -213,62 +557,46 @@ public class MoviesProvider extends ContentProvider {
                         sortOrder);
                 break;
 
-            // Query for REST API for popular movies or top rated ones.
+            // Full-text search in the favorites, projection and selection are fixed.
+            case FAVORITE_MOVIES_SEARCH:
+                retCursor = searchFavorites(db,
+                        uri.getQueryParameter(MovieContract.SearchEntry.QUERY_PARAMETER));
+                break;
+
+            // Query for popular movies or top rated ones. Only the cached pages are read,
+            // they are fetched and refreshed by MoviesSyncEngine, which notifies the category.
             case POPULAR_MOVIES_WITH_PAGE:
             case TOP_RATED_MOVIES_WITH_PAGE:
-                if (!NetworkUtils.checkInternetConnection(getContext())) {
-                    return null;
-                }
-
-                // In last path segment we have page number which we want to call.
+                // In first path segment we have list category and in last one the page number.
+                String category = uri.getPathSegments().get(0);
                 String pageNumber = uri.getLastPathSegment();
 
-                // Cleanup cached data... we fetching a new data.
-                if (pageNumber.equals("1")) {
-                    delete(uri, null, null);
+                // Return all of the cached pages of the category up to the requested one,
+                // or from the first page of the query parameter, in the order of the API
+                // results. Every movie is returned once, at its first place.
+                String cacheSelection = CACHE_PAGES_SELECTION;
+                String[] cacheSelectionArgs = new String[]{category, pageNumber};
+                String firstPage = uri.getQueryParameter(
+                        MovieContract.CacheEntry.QUERY_PARAMETER_FIRST_PAGE);
+                if (firstPage != null) {
+                    cacheSelection += " AND " + CACHE_FIRST_PAGE_SELECTION;
+                    cacheSelectionArgs = concat(cacheSelectionArgs, new String[]{firstPage});
                 }
-
-                try {
-                    // Decide from which REST endpoint we want to get the data.
-                    URL endpointUrl;
-                    if (match == POPULAR_MOVIES_WITH_PAGE) {
-                        endpointUrl = NetworkUtils.buildPopularMoviesUrl(pageNumber);
-                    } else {
-                        endpointUrl = NetworkUtils.buildTopRatedMoviesUrl(pageNumber);
-                    }
-
-                    String returnedJson = NetworkUtils.getResponseFromUrl(endpointUrl);
-                    ArrayList<Movie> movies = TheMoviesDbJsonUtils.getMoviesFromJson(returnedJson);
-
-                    ContentValues[] values = new ContentValues[movies.size()];
-                    for (int i = 0; i < movies.size(); i++) {
-                        ContentValues value = new ContentValues();
-                        value.put(MovieContract.CacheEntry.COLUMN_MOVIE_ID,
-                                movies.get(i).getId());
-                        value.put(MovieContract.CacheEntry.COLUMN_TITLE,
-                                movies.get(i).getTitle());
-                        value.put(MovieContract.CacheEntry.COLUMN_POSTER_URL,
-                                movies.get(i).getPosterUrl());
-                        value.put(MovieContract.CacheEntry.COLUMN_USER_RATING,
-                                movies.get(i).getUserRating());
-
-                        values[i] = value;
-                    }
-
-                    // Always return a cursor from REST API queries.
-                    bulkInsert(uri, values);
-                    retCursor = db.query(
-                            MovieContract.CacheEntry.TABLE_NAME,
-                            projection,
-                            selection,
-                            selectionArgs,
-                            null,
-                            null,
-                            sortOrder);
-                } catch (IOException | JSONException e) {
-                    return null;
+                if (!TextUtils.isEmpty(selection)) {
+                    cacheSelection += " AND (" + selection + ")";
+                    cacheSelectionArgs = concat(cacheSelectionArgs, selectionArgs);
                 }
 
+                retCursor = queryTable(
+                        db,
+                        MovieContract.CacheEntry.TABLE_NAME,
+                        projection,
+                        cacheSelection,
+                        cacheSelectionArgs,
+                        TextUtils.isEmpty(sortOrder) ? CACHE_SORT_ORDER : sortOrder,
+                        null,
+                        cancellationSignal);
+
                 break;
 
             // Unsupported URI
@@ -276,14 +604,90 @@ public class MoviesProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        // Set a notification URI on the Cursor and return it.
+        // Set a notification URI on the Cursor and return it. Cached pages are notified on
+        // the URI of their category, so the cursor learns about background refreshes.
+        // Single page doesn't learn about the other pages, e.g. the prefetched ones.
         if (retCursor != null) {
-            retCursor.setNotificationUri(mContext.getContentResolver(), uri);
+            if (match == POPULAR_MOVIES_WITH_PAGE || match == TOP_RATED_MOVIES_WITH_PAGE) {
+                boolean isSinglePage = uri.getLastPathSegment().equals(uri.getQueryParameter(
+                        MovieContract.CacheEntry.QUERY_PARAMETER_FIRST_PAGE));
+                retCursor.setNotificationUri(mContext.getContentResolver(), isSinglePage
+                        ? uri.buildUpon().clearQuery().build()
+                        : getCategoryUri(uri.getPathSegments().get(0)));
+            } else if (match == FAVORITE_MOVIES_SEARCH || match == FAVORITE_MOVIES_WITH_PERSON) {
+                // Results change with every change of the favorites.
+                retCursor.setNotificationUri(mContext.getContentResolver(),
+                        MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI);
+            } else {
+                retCursor.setNotificationUri(mContext.getContentResolver(), uri);
+            }
         }
 
         return retCursor;
     }
 
+    /**
+     * Queries the single table. Query with the cancellation signal is aborted by SQLite when
+     * the caller is not interested in it anymore.
+     *
+     * @param db                 to query
+     * @param table              name
+     * @param projection         fields
+     * @param selection          fields
+     * @param selectionArgs      for query
+     * @param sortOrder          for the query
+     * @param limit              of the rows, null for none
+     * @param cancellationSignal of the caller, null below API 16
+     * @return cursor with selected data.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor queryTable(SQLiteDatabase db, String table, String[] projection,
+                                     String selection, String[] selectionArgs,
+                                     String sortOrder, String limit,
+                                     CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            return db.query(false, table, projection, selection, selectionArgs, null, null,
+                    sortOrder, limit, cancellationSignal);
+        }
+
+        return db.query(table, projection, selection, selectionArgs, null, null, sortOrder,
+                limit);
+    }
+
+    /**
+     * Builds the query of the cast members joined with the people, as read from the cast URI.
+     *
+     * @return query builder of the cast
+     */
+    static SQLiteQueryBuilder buildCastQuery() {
+        SQLiteQueryBuilder builder = buildTableQuery(CAST_TABLES);
+        builder.setProjectionMap(CAST_PROJECTION_MAP);
+        return builder;
+    }
+
+    /**
+     * Builds the query of the favorite movies joined with the cast, as read from the person URI.
+     *
+     * @return query builder of the favorite movies of the person
+     */
+    static SQLiteQueryBuilder buildPersonMoviesQuery() {
+        SQLiteQueryBuilder builder = buildTableQuery(PERSON_MOVIES_TABLES);
+        builder.setProjectionMap(PERSON_MOVIES_PROJECTION_MAP);
+        return builder;
+    }
+
+    /**
+     * Builds the query of the tables.
+     *
+     * @param tables to query
+     * @return query builder of the tables
+     */
+    static SQLiteQueryBuilder buildTableQuery(String tables) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(tables);
+        return builder;
+    }
+
     /**
      * Insert single row operation form the ContentProvider.
      *
@@ -321,18 +725,29 @@ public class MoviesProvider extends ContentProvider {
                 break;
 
             case FAVORITE_MOVIE_WITH_ID_CAST:
-                // Inserting cast member into cast table with relation to the movie.
-                _id = db.insert(
-                        MovieContract.CastEntry.TABLE_NAME,
-                        null,
-                        contentValues);
+                // Inserting cast member into cast table with relation to the movie,
+                // the person is stored in the people table.
+                db.beginTransactionNonExclusive();
+                try {
+                    storePeople(db, new ContentValues[]{contentValues});
 
-                if (_id <= 0) {
-                    throw new SQLException("Failed to insert a cast member into " + uri);
-                }
+                    ContentValues castValues = new ContentValues();
+                    for (String column : CAST_COLUMNS) {
+                        castValues.put(column, contentValues.getAsString(column));
+                    }
+                    _id = db.insert(MovieContract.CastEntry.TABLE_NAME, null, castValues);
+                    if (_id <= 0) {
+                        throw new SQLException("Failed to insert a cast member into " + uri);
+                    }
 
-                // Fetch related movie ID.
-                movieId = contentValues.getAsString(MovieContract.CastEntry.COLUMN_MOVIE_ID);
+                    // Fetch related movie ID.
+                    movieId = contentValues.getAsString(MovieContract.CastEntry.COLUMN_MOVIE_ID);
+                    rebuildSearchDocument(db, movieId);
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
 
                 // Return constructed URI which points to the newly inserted row of data.
                 retUri = MovieContract.CastEntry.buildFavoriteMovieCastUriWithId(movieId)
@@ -344,17 +759,25 @@ public class MoviesProvider extends ContentProvider {
 
             case FAVORITE_MOVIE_WITH_ID_REVIEWS:
                 // Inserting review into reviews table with relation to the movie.
-                _id = db.insert(
-                        MovieContract.ReviewEntry.TABLE_NAME,
-                        null,
-                        contentValues);
+                db.beginTransactionNonExclusive();
+                try {
+                    _id = db.insert(
+                            MovieContract.ReviewEntry.TABLE_NAME,
+                            null,
+                            contentValues);
 
-                if (_id <= 0) {
-                    throw new SQLException("Failed to insert a review into " + uri);
-                }
+                    if (_id <= 0) {
+                        throw new SQLException("Failed to insert a review into " + uri);
+                    }
 
-                // Fetch related movie ID.
-                movieId = contentValues.getAsString(MovieContract.ReviewEntry.COLUMN_MOVIE_ID);
+                    // Fetch related movie ID.
+                    movieId = contentValues.getAsString(MovieContract.ReviewEntry.COLUMN_MOVIE_ID);
+                    rebuildSearchDocument(db, movieId);
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
 
                 // Return constructed URI which points to the newly inserted row of data.
                 retUri = MovieContract.ReviewEntry.buildFavoriteMovieReviewsUriWithId(movieId)
@@ -392,7 +815,7 @@ public class MoviesProvider extends ContentProvider {
         }
 
         // Notify the resolver if the uri has been changed, and return the newly inserted URI
-        mContext.getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Return constructed uri (this points to the newly inserted row of data)
         return retUri;
@@ -404,31 +827,34 @@ public class MoviesProvider extends ContentProvider {
 
         int rowsInserted = 0;
         switch (sUriMatcher.match(uri)) {
+            // Page of the list fetched from the API replaces the cached one.
             case POPULAR_MOVIES_WITH_PAGE:
             case TOP_RATED_MOVIES_WITH_PAGE:
-                db.beginTransaction();
+                rowsInserted = storePage(db, uri, values);
+                break;
 
-                try {
-                    for (ContentValues value : values) {
-                        long _id = db.insert(MovieContract.CacheEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            rowsInserted++;
-                        }
-                    }
+            // Cast, reviews and trailers of the favorite movie.
+            case FAVORITE_MOVIE_WITH_ID_CAST:
+                rowsInserted = bulkInsertMovieData(db, uri,
+                        MovieContract.CastEntry.TABLE_NAME, CAST_COLUMNS, values);
+                break;
 
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
+            case FAVORITE_MOVIE_WITH_ID_REVIEWS:
+                rowsInserted = bulkInsertMovieData(db, uri,
+                        MovieContract.ReviewEntry.TABLE_NAME, REVIEW_COLUMNS, values);
+                break;
 
+            case FAVORITE_MOVIE_WITH_ID_TRAILERS:
+                rowsInserted = bulkInsertMovieData(db, uri,
+                        MovieContract.TrailerEntry.TABLE_NAME, TRAILER_COLUMNS, values);
                 break;
 
             default:
                 return super.bulkInsert(uri, values);
         }
 
-        if (rowsInserted > 0 && getContext() != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (rowsInserted > 0) {
+            notifyChange(uri);
         }
 
         return rowsInserted;
@@ -466,7 +892,7 @@ public class MoviesProvider extends ContentProvider {
 
         // Notify the resolver if the uri has been changed, and return a number of changed rows.
         if (rowsChanged > 0) {
-            mContext.getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsChanged;
@@ -499,7 +925,7 @@ public class MoviesProvider extends ContentProvider {
                 // Use selections/selectionArgs to filter for this ID
                 deletedMovies = db.delete(
                         MovieContract.MovieEntry.TABLE_NAME,
-                        MovieContract.MovieEntry.COLUMN_MOVIE_ID + "=?",
+                        MOVIE_ID_SELECTION,
                         new String[]{movieId});
                 break;
 
@@ -509,9 +935,17 @@ public class MoviesProvider extends ContentProvider {
                 movieId = uri.getPathSegments().get(uri.getPathSegments().size() - 2);
 
                 // Use selections/selectionArgs to remove reviews related with this ID
-                deletedMovies = db.delete(MovieContract.TrailerEntry.TABLE_NAME,
-                        MovieContract.ReviewEntry.COLUMN_MOVIE_ID + "=?",
-                        new String[]{movieId});
+                db.beginTransactionNonExclusive();
+                try {
+                    deletedMovies = db.delete(MovieContract.ReviewEntry.TABLE_NAME,
+                            MOVIE_ID_SELECTION,
+                            new String[]{movieId});
+                    rebuildSearchDocument(db, movieId);
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             // Remove all trailers related with specified movie
@@ -521,15 +955,22 @@ public class MoviesProvider extends ContentProvider {
 
                 // Use selections/selectionArgs to remove trailers related with this ID
                 deletedMovies = db.delete(MovieContract.TrailerEntry.TABLE_NAME,
-                        MovieContract.TrailerEntry.COLUMN_MOVIE_ID + "=?",
+                        MOVIE_ID_SELECTION,
                         new String[]{movieId});
                 break;
 
-            // Handle code to delete all data from movies cache table.
+            // Handle code to delete cached data of the list category.
             case POPULAR_MOVIES_WITH_PAGE:
             case TOP_RATED_MOVIES_WITH_PAGE:
+                String cacheSelection = CACHE_CATEGORY_SELECTION;
+                String[] cacheSelectionArgs = new String[]{uri.getPathSegments().get(0)};
+                if (!TextUtils.isEmpty(selection)) {
+                    cacheSelection += " AND (" + selection + ")";
+                    cacheSelectionArgs = concat(cacheSelectionArgs, selectionArgs);
+                }
+
                 deletedMovies = db.delete(
-                        MovieContract.CacheEntry.TABLE_NAME, selection, selectionArgs);
+                        MovieContract.CacheEntry.TABLE_NAME, cacheSelection, cacheSelectionArgs);
                 break;
 
             default:
@@ -539,13 +980,744 @@ public class MoviesProvider extends ContentProvider {
         // Notify the resolver of a change and return the number of items deleted.
         if (deletedMovies != 0) {
             // Movie has been deleted from favorites so send a notification
-            mContext.getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of deleted movies from favorites.
         return deletedMovies;
     }
 
+    /**
+     * Stores the page of movies fetched from the API in the cache, in one transaction.
+     * When the page has not changed only its fetch time is updated.
+     *
+     * @param db     to write
+     * @param uri    of the page
+     * @param values of the movies, in the order of the API results
+     * @return number of the inserted rows, 0 if the page has not changed
+     */
+    private static int storePage(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+        final String pageSelection = CACHE_PAGE_SELECTION;
+        final String[] pageSelectionArgs = new String[]{
+                uri.getPathSegments().get(0), uri.getLastPathSegment()};
+        final long now = System.currentTimeMillis();
+
+        int rowsInserted = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            if (!isPageEqual(db, pageSelection, pageSelectionArgs, values)) {
+                db.delete(MovieContract.CacheEntry.TABLE_NAME, pageSelection, pageSelectionArgs);
+
+                for (int i = 0; i < values.length; i++) {
+                    // Rows belong to the category and the page of the URI, in the given order.
+                    ContentValues value = new ContentValues(values[i]);
+                    value.put(MovieContract.CacheEntry.COLUMN_CATEGORY, pageSelectionArgs[0]);
+                    value.put(MovieContract.CacheEntry.COLUMN_PAGE, pageSelectionArgs[1]);
+                    value.put(MovieContract.CacheEntry.COLUMN_RANK, i);
+                    value.put(MovieContract.CacheEntry.COLUMN_FETCHED_AT, now);
+
+                    if (db.insert(MovieContract.CacheEntry.TABLE_NAME, null, value) != -1) {
+                        rowsInserted++;
+                    }
+                }
+            } else {
+                ContentValues value = new ContentValues();
+                value.put(MovieContract.CacheEntry.COLUMN_FETCHED_AT, now);
+                db.update(MovieContract.CacheEntry.TABLE_NAME, value,
+                        pageSelection, pageSelectionArgs);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Compares the cached page with the movies fetched from the API.
+     *
+     * @param db            to query
+     * @param selection     of the page rows
+     * @param selectionArgs of the page rows
+     * @param values        of the movies, in the order of the API results
+     * @return true if the cached page contains the same movies in the same order
+     */
+    private static boolean isPageEqual(SQLiteDatabase db, String selection,
+                                       String[] selectionArgs, ContentValues[] values) {
+        Cursor cursor = db.query(MovieContract.CacheEntry.TABLE_NAME,
+                MovieContract.CacheEntry.MOVIE_LIST_PROJECTION,
+                selection, selectionArgs, null, null, CACHE_PAGE_SORT_ORDER);
+
+        try {
+            if (cursor.getCount() != values.length) {
+                return false;
+            }
+
+            for (ContentValues value : values) {
+                cursor.moveToNext();
+
+                String movieId = value.getAsString(MovieContract.CacheEntry.COLUMN_MOVIE_ID);
+                String title = value.getAsString(MovieContract.CacheEntry.COLUMN_TITLE);
+                String posterUrl = value.getAsString(MovieContract.CacheEntry.COLUMN_POSTER_URL);
+                Double rating = value.getAsDouble(MovieContract.CacheEntry.COLUMN_USER_RATING);
+
+                if (!TextUtils.equals(movieId, cursor.getString(0))
+                        || !TextUtils.equals(title, cursor.getString(1))
+                        || !TextUtils.equals(posterUrl, cursor.getString(2))
+                        || rating == null || rating != cursor.getDouble(3)) {
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Searches the text in the titles, overviews, cast and reviews of the favorite movies.
+     * Every word of the text has to match the beginning of an indexed word, so the results
+     * are updated while the user types.
+     *
+     * @param db    to read
+     * @param query searched text, as typed by the user
+     * @return ranked results with the snippets of the matched text
+     */
+    static Cursor searchFavorites(SQLiteDatabase db, String query) {
+        // Only letters and digits are searched, so the text can't break the FTS query syntax.
+        StringBuilder match = new StringBuilder();
+        if (query != null) {
+            for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (!word.isEmpty()) {
+                    match.append(match.length() > 0 ? " " : "").append(word).append('*');
+                }
+            }
+        }
+
+        if (match.length() == 0) {
+            return new MatrixCursor(SEARCH_COLUMNS);
+        }
+
+        String matchArg = match.toString();
+        return db.rawQuery(SEARCH_QUERY, new String[]{matchArg, matchArg});
+    }
+
+    /**
+     * Gets the URI on which the changes of the list category are notified.
+     *
+     * @param category of the list
+     * @return URI of the category
+     */
+    private static Uri getCategoryUri(String category) {
+        return category.equals(MovieContract.PATH_POPULAR_MOVIES)
+                ? MovieContract.CacheEntry.POPULAR_MOVIES_CONTENT_URI
+                : MovieContract.CacheEntry.TOP_RATED_MOVIES_CONTENT_URI;
+    }
+
+    /**
+     * Inserts the cast, reviews or trailers of the movie from the URI in one transaction.
+     * The search document of the movie is rebuilt once, after all of the rows.
+     *
+     * @param db      to write
+     * @param uri     of the movie data
+     * @param table   of the movie data
+     * @param columns of the rows, starting with the movie id
+     * @param values  of the rows
+     * @return number of the inserted rows
+     */
+    private static int bulkInsertMovieData(SQLiteDatabase db, Uri uri, String table,
+                                           String[] columns, ContentValues[] values) {
+        String movieId = uri.getPathSegments().get(uri.getPathSegments().size() - 2);
+
+        db.beginTransactionNonExclusive();
+        try {
+            int rowsInserted = insertMovieData(db, table, columns, movieId, values);
+            if (isSearchedTable(table)) {
+                MovieDbHelper.rebuildSearchDocument(db, movieId);
+            }
+            db.setTransactionSuccessful();
+            return rowsInserted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param table of the movie data
+     * @return true if the rows of the table are a part of the search document
+     */
+    private static boolean isSearchedTable(String table) {
+        return table.equals(MovieContract.CastEntry.TABLE_NAME) ||
+                table.equals(MovieContract.ReviewEntry.TABLE_NAME);
+    }
+
+    /**
+     * Inserts the cast, reviews or trailers of the movie with a single compiled statement.
+     * It has to be called in a transaction. Any failed row throws SQLException, so the whole
+     * transaction is rolled back.
+     *
+     * @param db      to write
+     * @param table   of the movie data
+     * @param columns of the rows, starting with the movie id
+     * @param movieId of the rows
+     * @param values  of the rows, the movie id in them is ignored
+     * @return number of the inserted rows
+     */
+    private static int insertMovieData(SQLiteDatabase db, String table, String[] columns,
+                                       String movieId, ContentValues[] values) {
+        if (values == null || values.length == 0) {
+            return 0;
+        }
+
+        // Cast members refer to the people, which have to be stored first.
+        if (table.equals(MovieContract.CastEntry.TABLE_NAME)) {
+            storePeople(db, values);
+        }
+
+        StringBuilder sql = new StringBuilder("INSERT INTO " + table + " (");
+        StringBuilder bindings = new StringBuilder(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]);
+            bindings.append(i > 0 ? ",?" : "?");
+        }
+
+        SQLiteStatement statement = db.compileStatement(
+                sql.append(bindings).append(")").toString());
+        try {
+            for (ContentValues value : values) {
+                statement.clearBindings();
+                statement.bindString(1, movieId);
+                for (int i = 1; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, value.get(columns[i]));
+                }
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+
+        return values.length;
+    }
+
+    /**
+     * Stores the people of the cast members. A person who is already stored is updated only
+     * when the name or the picture has changed, so the people shared by the favorites are not
+     * written again with every movie. It has to be called in a transaction.
+     *
+     * @param db     to write
+     * @param values of the cast members, with the person id, name and picture
+     */
+    private static void storePeople(SQLiteDatabase db, ContentValues[] values) {
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " +
+                MovieContract.PersonEntry.TABLE_NAME + " (" +
+                MovieContract.PersonEntry.COLUMN_PERSON_ID + "," +
+                MovieContract.PersonEntry.COLUMN_NAME + "," +
+                MovieContract.PersonEntry.COLUMN_AVATAR_PATH + ") VALUES (?,?,?)");
+        SQLiteStatement update = db.compileStatement("UPDATE " +
+                MovieContract.PersonEntry.TABLE_NAME + " SET " +
+                MovieContract.PersonEntry.COLUMN_NAME + "=?2," +
+                MovieContract.PersonEntry.COLUMN_AVATAR_PATH + "=?3 WHERE " +
+                MovieContract.PersonEntry.COLUMN_PERSON_ID + "=?1 AND (" +
+                MovieContract.PersonEntry.COLUMN_NAME + "<>?2 OR " +
+                MovieContract.PersonEntry.COLUMN_AVATAR_PATH + "<>?3)");
+        try {
+            for (ContentValues value : values) {
+                String personId = value.getAsString(MovieContract.CastEntry.COLUMN_PERSON_ID);
+                if (personId == null) {
+                    throw new IllegalArgumentException("Missing person id of the cast member");
+                }
+
+                Object name = value.get(MovieContract.CastEntry.COLUMN_NAME);
+                Object avatarPath = value.get(MovieContract.CastEntry.COLUMN_AVATAR_PATH);
+
+                insert.clearBindings();
+                insert.bindString(1, personId);
+                DatabaseUtils.bindObjectToProgram(insert, 2, name);
+                DatabaseUtils.bindObjectToProgram(insert, 3, avatarPath);
+                if (insert.executeInsert() != -1) {
+                    continue;
+                }
+
+                update.clearBindings();
+                update.bindString(1, personId);
+                DatabaseUtils.bindObjectToProgram(update, 2, name);
+                DatabaseUtils.bindObjectToProgram(update, 3, avatarPath);
+                update.executeUpdateDelete();
+            }
+        } finally {
+            insert.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Calls the provider method.
+     * {@link MovieContract#METHOD_SAVE_FAVORITE} saves the favorite movie with its cast, reviews
+     * and trailers in one transaction, and sends one notification at the end.
+     * {@link MovieContract#METHOD_REFRESH_FAVORITE} writes only the changes of the stored
+     * favorite movie and returns their number.
+     *
+     * @param method name
+     * @param arg    not used
+     * @param extras arguments of the method
+     * @return result of the method, null for the save
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (MovieContract.METHOD_SAVE_FAVORITE.equals(method)) {
+            saveFavorite(extras);
+            return null;
+        } else if (MovieContract.METHOD_REFRESH_FAVORITE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(MovieContract.EXTRA_ROWS_CHANGED, refreshFavorite(extras));
+            return result;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Saves the favorite movie with its cast, reviews and trailers in one transaction.
+     *
+     * @param extras arguments of {@link MovieContract#METHOD_SAVE_FAVORITE}
+     */
+    private void saveFavorite(Bundle extras) {
+        ContentValues movie = new ContentValues(getMovieValues(extras));
+        movie.put(MovieContract.MovieEntry.COLUMN_UPDATED_AT, System.currentTimeMillis());
+        String movieId = movie.getAsString(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+        String[] movieIdArgs = new String[]{movieId};
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            // Movie data is replaced, so the movie can be saved again.
+            db.delete(MovieContract.CastEntry.TABLE_NAME, MOVIE_ID_SELECTION, movieIdArgs);
+            db.delete(MovieContract.ReviewEntry.TABLE_NAME, MOVIE_ID_SELECTION, movieIdArgs);
+            db.delete(MovieContract.TrailerEntry.TABLE_NAME, MOVIE_ID_SELECTION, movieIdArgs);
+
+            if (db.insert(MovieContract.MovieEntry.TABLE_NAME, null, movie) == -1) {
+                throw new SQLException("Failed to save the favorite movie " + movieId);
+            }
+
+            insertMovieData(db, MovieContract.CastEntry.TABLE_NAME, CAST_COLUMNS, movieId,
+                    getValuesArray(extras, MovieContract.EXTRA_CAST));
+            insertMovieData(db, MovieContract.ReviewEntry.TABLE_NAME, REVIEW_COLUMNS, movieId,
+                    getValuesArray(extras, MovieContract.EXTRA_REVIEWS));
+            insertMovieData(db, MovieContract.TrailerEntry.TABLE_NAME, TRAILER_COLUMNS, movieId,
+                    getValuesArray(extras, MovieContract.EXTRA_TRAILERS));
+            MovieDbHelper.rebuildSearchDocument(db, movieId);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Observers of the movie, its cast, reviews and trailers are below this URI.
+        notifyChange(MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI);
+    }
+
+    /**
+     * Brings the stored favorite movie up to date with the fetched one. The stored rows are
+     * compared first without a transaction, so nothing is locked nor written when the movie
+     * is up to date, which is the usual case. Otherwise the comparison is repeated in the
+     * transaction, so the changes are applied to the rows which are really stored.
+     * <p>
+     * Refresh time of the movie is written together with the changes. The up to date movie
+     * gets only the new refresh time, at most once per {@link #REFRESH_TIME_RESOLUTION_MILLIS}
+     * and without a notification, because nothing the observers read has changed.
+     *
+     * @param extras arguments of {@link MovieContract#METHOD_REFRESH_FAVORITE}
+     * @return number of the written rows
+     */
+    private int refreshFavorite(Bundle extras) {
+        ContentValues movie = getMovieValues(extras);
+        String movieId = movie.getAsString(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        FavoriteDiff diff = diffFavorite(db, movieId, extras);
+        if (diff.isEmpty()) {
+            if (diff.isRefreshTimeOutdated) {
+                db.update(MovieContract.MovieEntry.TABLE_NAME, createRefreshTimeValues(),
+                        MOVIE_ID_SELECTION, new String[]{movieId});
+            }
+            return 0;
+        }
+
+        int rowsChanged;
+        db.beginTransactionNonExclusive();
+        try {
+            rowsChanged = diffFavorite(db, movieId, extras).apply(db, movieId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowsChanged > 0) {
+            notifyChange(MovieContract.MovieEntry.buildFavoriteMovieUriWithId(movieId));
+        }
+
+        return rowsChanged;
+    }
+
+    /**
+     * Compares the fetched favorite movie with the stored one.
+     *
+     * @param db      to read
+     * @param movieId of the favorite movie
+     * @param extras  arguments of {@link MovieContract#METHOD_REFRESH_FAVORITE}
+     * @return changes of the movie, empty if it is not a favorite anymore
+     */
+    private static FavoriteDiff diffFavorite(SQLiteDatabase db, String movieId, Bundle extras) {
+        FavoriteDiff diff = new FavoriteDiff();
+
+        ContentValues movie = new ContentValues(getMovieValues(extras));
+        movie.remove(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+        movie.remove(MovieContract.MovieEntry.COLUMN_UPDATED_AT);
+        String[] columns = movie.keySet().toArray(new String[movie.size() + 1]);
+        columns[movie.size()] = MovieContract.MovieEntry.COLUMN_UPDATED_AT;
+
+        Cursor cursor = db.query(MovieContract.MovieEntry.TABLE_NAME, columns,
+                MOVIE_ID_SELECTION, new String[]{movieId},
+                null, null, null);
+        try {
+            // Movie which has been removed from the favorites is not stored again.
+            if (!cursor.moveToFirst()) {
+                return diff;
+            }
+
+            for (int i = 0; i < movie.size(); i++) {
+                if (!isStoredValueEqual(cursor, i, movie.get(columns[i]))) {
+                    diff.movie.put(columns[i], movie.getAsString(columns[i]));
+                }
+            }
+
+            diff.isRefreshTimeOutdated = cursor.getLong(movie.size()) <
+                    System.currentTimeMillis() - REFRESH_TIME_RESOLUTION_MILLIS;
+        } finally {
+            cursor.close();
+        }
+
+        // Cast members and trailers have stable ids, reviews are identified by their content.
+        if (extras.containsKey(MovieContract.EXTRA_CAST)) {
+            diff.cast = diffMovieData(db, buildCastQuery(), CAST_SELECTION, movieId,
+                    new String[]{
+                            MovieContract.CastEntry.COLUMN_PERSON_ID,
+                            MovieContract.CastEntry.COLUMN_CHARACTER},
+                    new String[]{
+                            MovieContract.CastEntry.COLUMN_ORDER,
+                            MovieContract.CastEntry.COLUMN_NAME,
+                            MovieContract.CastEntry.COLUMN_AVATAR_PATH},
+                    getValuesArray(extras, MovieContract.EXTRA_CAST));
+        }
+        if (extras.containsKey(MovieContract.EXTRA_REVIEWS)) {
+            diff.reviews = diffMovieData(db,
+                    buildTableQuery(MovieContract.ReviewEntry.TABLE_NAME),
+                    MOVIE_ID_SELECTION, movieId,
+                    new String[]{
+                            MovieContract.ReviewEntry.COLUMN_AUTHOR,
+                            MovieContract.ReviewEntry.COLUMN_CONTENT},
+                    new String[0],
+                    getValuesArray(extras, MovieContract.EXTRA_REVIEWS));
+        }
+        if (extras.containsKey(MovieContract.EXTRA_TRAILERS)) {
+            diff.trailers = diffMovieData(db,
+                    buildTableQuery(MovieContract.TrailerEntry.TABLE_NAME),
+                    MOVIE_ID_SELECTION, movieId,
+                    new String[]{MovieContract.TrailerEntry.COLUMN_VIDEO_ID},
+                    new String[]{MovieContract.TrailerEntry.COLUMN_TITLE},
+                    getValuesArray(extras, MovieContract.EXTRA_TRAILERS));
+        }
+
+        return diff;
+    }
+
+    /**
+     * Compares the fetched cast, reviews or trailers of the movie with the stored rows.
+     * Rows are matched by their key columns. Matched rows with different values are updated,
+     * unmatched fetched rows are inserted and unmatched stored rows are deleted.
+     *
+     * @param db              to read
+     * @param query           of the movie data tables
+     * @param selection       of the rows of the movie
+     * @param movieId         of the rows
+     * @param keyColumns      which identify the row
+     * @param valueColumns    which may change
+     * @param fetched         rows of the movie data
+     * @return changes of the rows
+     */
+    private static RowsDiff diffMovieData(SQLiteDatabase db, SQLiteQueryBuilder query,
+                                          String selection, String movieId,
+                                          String[] keyColumns, String[] valueColumns,
+                                          ContentValues[] fetched) {
+        String[] projection = new String[1 + keyColumns.length + valueColumns.length];
+        projection[0] = BaseColumns._ID;
+        System.arraycopy(keyColumns, 0, projection, 1, keyColumns.length);
+        System.arraycopy(valueColumns, 0, projection, 1 + keyColumns.length,
+                valueColumns.length);
+
+        // Stored rows by their keys, there may be several rows with the same key.
+        HashMap<String, ArrayDeque<Integer>> storedRows = new HashMap<>();
+        Cursor cursor = query.query(db, projection, selection, new String[]{movieId},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String[] key = new String[keyColumns.length];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = cursor.getString(1 + i);
+                }
+
+                String joinedKey = TextUtils.join(KEY_SEPARATOR, key);
+                ArrayDeque<Integer> positions = storedRows.get(joinedKey);
+                if (positions == null) {
+                    positions = new ArrayDeque<>();
+                    storedRows.put(joinedKey, positions);
+                }
+                positions.add(cursor.getPosition());
+            }
+
+            RowsDiff diff = new RowsDiff();
+            for (ContentValues value : fetched) {
+                String[] key = new String[keyColumns.length];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = value.getAsString(keyColumns[i]);
+                }
+
+                ArrayDeque<Integer> positions = storedRows.get(TextUtils.join(KEY_SEPARATOR, key));
+                if (positions == null || positions.isEmpty()) {
+                    diff.inserts.add(value);
+                    continue;
+                }
+
+                cursor.moveToPosition(positions.poll());
+                for (int i = 0; i < valueColumns.length; i++) {
+                    if (!isStoredValueEqual(cursor, 1 + keyColumns.length + i,
+                            value.get(valueColumns[i]))) {
+                        diff.updates.put(cursor.getLong(0), value);
+                        break;
+                    }
+                }
+            }
+
+            for (ArrayDeque<Integer> positions : storedRows.values()) {
+                for (Integer position : positions) {
+                    cursor.moveToPosition(position);
+                    diff.deletes.add(cursor.getLong(0));
+                }
+            }
+
+            return diff;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compares the stored value with the fetched one. Real numbers are compared as numbers,
+     * so the rating is not rewritten just because it is formatted differently.
+     *
+     * @param cursor at the stored row
+     * @param index  of the column
+     * @param value  fetched value
+     * @return true if the value is the same
+     */
+    private static boolean isStoredValueEqual(Cursor cursor, int index, Object value) {
+        if (value == null || cursor.isNull(index)) {
+            return value == null && cursor.isNull(index);
+        }
+
+        if (value instanceof Double || value instanceof Float) {
+            return cursor.getDouble(index) == ((Number) value).doubleValue();
+        }
+
+        return value.toString().equals(cursor.getString(index));
+    }
+
+    /**
+     * Changes of the favorite movie and its cast, reviews and trailers.
+     */
+    private static class FavoriteDiff {
+
+        /* Changed columns of the movie */
+        final ContentValues movie = new ContentValues();
+
+        /* Whether the stored refresh time should be written even if nothing has changed */
+        boolean isRefreshTimeOutdated;
+
+        /* Changes of the movie data, null if it hasn't been fetched */
+        RowsDiff cast;
+        RowsDiff reviews;
+        RowsDiff trailers;
+
+        /**
+         * @return true if nothing has changed
+         */
+        boolean isEmpty() {
+            return movie.size() == 0 && (cast == null || cast.isEmpty()) &&
+                    (reviews == null || reviews.isEmpty()) &&
+                    (trailers == null || trailers.isEmpty());
+        }
+
+        /**
+         * Writes the changes. It has to be called in a transaction.
+         *
+         * @param db      to write
+         * @param movieId of the favorite movie
+         * @return number of the written rows
+         */
+        int apply(SQLiteDatabase db, String movieId) {
+            int rowsChanged = 0;
+            if (movie.size() > 0) {
+                rowsChanged += db.update(MovieContract.MovieEntry.TABLE_NAME, movie,
+                        MOVIE_ID_SELECTION, new String[]{movieId});
+            }
+
+            // The refresh time is not a change the observers should know about.
+            db.update(MovieContract.MovieEntry.TABLE_NAME, createRefreshTimeValues(),
+                    MOVIE_ID_SELECTION, new String[]{movieId});
+
+            if (cast != null) {
+                rowsChanged += cast.apply(db, MovieContract.CastEntry.TABLE_NAME,
+                        CAST_COLUMNS, movieId);
+            }
+            if (reviews != null) {
+                rowsChanged += reviews.apply(db, MovieContract.ReviewEntry.TABLE_NAME,
+                        REVIEW_COLUMNS, movieId);
+            }
+            if (trailers != null) {
+                rowsChanged += trailers.apply(db, MovieContract.TrailerEntry.TABLE_NAME,
+                        TRAILER_COLUMNS, movieId);
+            }
+
+            // Search document is rebuilt once, after all of the cast and reviews changes.
+            if ((cast != null && !cast.isEmpty()) || (reviews != null && !reviews.isEmpty())) {
+                MovieDbHelper.rebuildSearchDocument(db, movieId);
+            }
+            return rowsChanged;
+        }
+    }
+
+    /**
+     * Inserts, updates and deletes of the cast, reviews or trailers of the movie.
+     */
+    private static class RowsDiff {
+
+        /* Fetched rows which are not stored */
+        final List<ContentValues> inserts = new ArrayList<>();
+
+        /* Fetched rows by the ids of the stored rows which have different values */
+        final HashMap<Long, ContentValues> updates = new HashMap<>();
+
+        /* Ids of the stored rows which have not been fetched */
+        final List<Long> deletes = new ArrayList<>();
+
+        /**
+         * @return true if nothing has changed
+         */
+        boolean isEmpty() {
+            return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+        }
+
+        /**
+         * Writes the changes. It has to be called in a transaction.
+         *
+         * @param db      to write
+         * @param table   of the movie data
+         * @param columns of the rows, starting with the movie id
+         * @param movieId of the rows
+         * @return number of the written rows
+         */
+        int apply(SQLiteDatabase db, String table, String[] columns, String movieId) {
+            int rowsChanged = 0;
+            for (Long id : deletes) {
+                rowsChanged += db.delete(table, BaseColumns._ID + "=?",
+                        new String[]{String.valueOf(id)});
+            }
+
+            if (!updates.isEmpty()) {
+                // Updated cast members may have the new name or picture of the person.
+                if (table.equals(MovieContract.CastEntry.TABLE_NAME)) {
+                    storePeople(db, updates.values().toArray(
+                            new ContentValues[updates.size()]));
+                }
+
+                for (Map.Entry<Long, ContentValues> update : updates.entrySet()) {
+                    ContentValues values = new ContentValues();
+                    for (int i = 1; i < columns.length; i++) {
+                        values.put(columns[i], update.getValue().getAsString(columns[i]));
+                    }
+                    rowsChanged += db.update(table, values, BaseColumns._ID + "=?",
+                            new String[]{String.valueOf(update.getKey())});
+                }
+            }
+
+            rowsChanged += insertMovieData(db, table, columns, movieId,
+                    inserts.toArray(new ContentValues[inserts.size()]));
+            return rowsChanged;
+        }
+    }
+
+    /**
+     * @return values which set the refresh time of the favorite movie to now
+     */
+    private static ContentValues createRefreshTimeValues() {
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.MovieEntry.COLUMN_UPDATED_AT, System.currentTimeMillis());
+        return values;
+    }
+
+    /**
+     * Gets the values of the movie from the method arguments.
+     *
+     * @param extras arguments of the method
+     * @return values of the movie
+     */
+    private static ContentValues getMovieValues(Bundle extras) {
+        ContentValues movie = extras.getParcelable(MovieContract.EXTRA_MOVIE);
+        if (movie == null) {
+            throw new IllegalArgumentException("Missing movie values");
+        }
+        return movie;
+    }
+
+    /**
+     * Gets the array of ContentValues from the method arguments.
+     *
+     * @param extras arguments of the method
+     * @param key    of the array
+     * @return array of the values, empty if it is missing
+     */
+    private static ContentValues[] getValuesArray(Bundle extras, String key) {
+        Parcelable[] parcelables = extras.getParcelableArray(key);
+        if (parcelables == null) {
+            return new ContentValues[0];
+        }
+
+        ContentValues[] values = new ContentValues[parcelables.length];
+        System.arraycopy(parcelables, 0, values, 0, parcelables.length);
+        return values;
+    }
+
+    /**
+     * Joins selection arguments.
+     *
+     * @param first  arguments
+     * @param second arguments, may be null
+     * @return joined arguments
+     */
+    private static String[] concat(String[] first, String[] second) {
+        if (second == null) {
+            return first;
+        }
+
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         throw new UnsupportedOperationException("Unsupported operation.");
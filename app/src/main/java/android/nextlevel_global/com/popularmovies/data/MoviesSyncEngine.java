@@ -0,0 +1,435 @@
+package android.nextlevel_global.com.popularmovies.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.nextlevel_global.com.popularmovies.R;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
+import android.nextlevel_global.com.popularmovies.utilities.RequestScheduler;
+import android.nextlevel_global.com.popularmovies.utilities.TheMoviesDbJsonUtils;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the popular and top rated movies from the API and stores them in the cache through
+ * {@link MoviesProvider}. The provider only reads the cache and the engine fills it: a missing
+ * page is fetched while the caller waits for it, a stale page is refreshed in the background
+ * and the provider notifies the observers of its category when it has changed.
+ * <p>
+ * Fetch of the missing page is cancelled when all of the callers waiting for it have been
+ * cancelled, e.g. after the user has switched to another list. Cancelled fetch aborts its
+ * API request and doesn't store anything.
+ */
+public class MoviesSyncEngine {
+
+    private static final String LOG_TAG = MoviesSyncEngine.class.getSimpleName();
+
+    /**
+     * Number of the pages which are synced at the same time.
+     */
+    private static final int WORKER_THREADS = 2;
+
+    /**
+     * How long a list page in the HTTP cache may be stale and still be used instead of the
+     * network, e.g. when the cached page has been deleted and is synced again.
+     */
+    private static final int LIST_PAGE_MAX_STALE_SECONDS = 120;
+
+    /**
+     * Number of the attempts of the single page sync. Requests are retried by the network
+     * layer too, these attempts are spread over a longer time.
+     */
+    private static final int MAX_SYNC_ATTEMPTS = 3;
+
+    /**
+     * Delay before the first repeated attempt, doubled before every next one.
+     */
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    /**
+     * Selection of the rows of the page among the cached pages read from the page URI.
+     */
+    static final String FETCH_TIME_SELECTION = MovieContract.CacheEntry.COLUMN_PAGE + "=?";
+
+    private static MoviesSyncEngine sInstance;
+
+    private final Context mContext;
+
+    /**
+     * Runs the attempts and waits for the delays of the repeated ones. The loaders wait for
+     * the attempts in the threads of TaskScheduler, so the attempts run outside of it.
+     */
+    private final ScheduledExecutorService mExecutor =
+            Executors.newScheduledThreadPool(WORKER_THREADS);
+
+    /**
+     * Syncs which are scheduled or running, keyed by the page URI.
+     */
+    private final Map<Uri, SyncTask> mSyncsInFlight = new HashMap<>();
+
+    /**
+     * Gets the sync engine of the application.
+     *
+     * @param context of the application
+     * @return the sync engine
+     */
+    public static synchronized MoviesSyncEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MoviesSyncEngine(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MoviesSyncEngine(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Makes sure the page is in the cache before it is queried. A missing page is fetched and
+     * the caller waits for the next attempt, a stale page is refreshed in the background.
+     * It must not be called on the main thread.
+     *
+     * @param pageUri of the popular or top rated movies page
+     * @return false if the page is missing and it could not be fetched
+     */
+    public boolean syncPage(Uri pageUri) {
+        return syncPage(pageUri, null);
+    }
+
+    /**
+     * Makes sure the page is in the cache like {@link #syncPage(Uri)}, but the caller may stop
+     * waiting for the missing page with the signal.
+     *
+     * @param pageUri            of the popular or top rated movies page
+     * @param cancellationSignal of the caller, may be null
+     * @return false if the page is missing and it could not be fetched, or the signal has
+     * been cancelled
+     */
+    public boolean syncPage(Uri pageUri, CancellationSignal cancellationSignal) {
+        long fetchedAt = getPageFetchTime(pageUri);
+        boolean isOnline = NetworkUtils.checkInternetConnection(mContext);
+
+        if (fetchedAt < 0) {
+            return isOnline && awaitSync(pageUri, cancellationSignal);
+        }
+
+        if (isOnline && isPageStale(pageUri, fetchedAt)) {
+            requestSync(pageUri, RequestScheduler.PRIORITY_BACKGROUND);
+        }
+
+        return true;
+    }
+
+    /**
+     * Fetches the page ahead of the user with the background priority, unless it is in the
+     * cache and fresh. It doesn't wait for the sync, the caller which needs the page before
+     * it has been stored joins the sync. It must not be called on the main thread.
+     *
+     * @param pageUri of the popular or top rated movies page
+     */
+    public void prefetchPage(Uri pageUri) {
+        if (!NetworkUtils.checkInternetConnection(mContext)) {
+            return;
+        }
+
+        long fetchedAt = getPageFetchTime(pageUri);
+        if (fetchedAt < 0 || isPageStale(pageUri, fetchedAt)) {
+            requestSync(pageUri, RequestScheduler.PRIORITY_BACKGROUND);
+        }
+    }
+
+    /**
+     * Schedules the sync of the missing page and waits for its next attempt. The sync which
+     * is waiting to repeat a failed attempt is repeated at once, the caller doesn't wait
+     * for its delay.
+     *
+     * @param pageUri            of the popular or top rated movies page
+     * @param cancellationSignal of the caller, may be null
+     * @return true if the attempt has stored the page
+     */
+    private boolean awaitSync(Uri pageUri, CancellationSignal cancellationSignal) {
+        SyncTask task;
+        int finishedAttempts;
+        synchronized (mSyncsInFlight) {
+            task = requestSync(pageUri, RequestScheduler.PRIORITY_NORMAL);
+            task.mWaiters++;
+            finishedAttempts = task.getFinishedAttempts();
+            task.retryNow();
+        }
+
+        return task.awaitAttempt(finishedAttempts, cancellationSignal);
+    }
+
+    /**
+     * Schedules the sync of the page. Page which is already being synced is not scheduled again.
+     *
+     * @param pageUri  of the popular or top rated movies page
+     * @param priority of the API request
+     * @return the sync of the page
+     */
+    private SyncTask requestSync(Uri pageUri, int priority) {
+        synchronized (mSyncsInFlight) {
+            SyncTask task = mSyncsInFlight.get(pageUri);
+            if (task == null) {
+                task = new SyncTask(pageUri, priority);
+                mSyncsInFlight.put(pageUri, task);
+                mExecutor.execute(task);
+            }
+            return task;
+        }
+    }
+
+    /**
+     * Gets the time when the page has been fetched.
+     *
+     * @param pageUri of the popular or top rated movies page
+     * @return fetch time in milliseconds since epoch, -1 if the page is not in the cache
+     */
+    private long getPageFetchTime(Uri pageUri) {
+        Cursor cursor = mContext.getContentResolver().query(pageUri,
+                new String[]{MovieContract.CacheEntry.COLUMN_FETCHED_AT},
+                FETCH_TIME_SELECTION,
+                new String[]{pageUri.getLastPathSegment()},
+                null);
+
+        if (cursor == null) {
+            return -1;
+        }
+
+        try {
+            // All of the page rows are stored at once, with the same fetch time.
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Checks if the cached page is older than the time to live of its category.
+     *
+     * @param pageUri   of the popular or top rated movies page
+     * @param fetchedAt time of the page fetch
+     * @return true if the page should be refreshed
+     */
+    private boolean isPageStale(Uri pageUri, long fetchedAt) {
+        int ttlMinutes = isPopular(pageUri)
+                ? mContext.getResources().getInteger(R.integer.cache_ttl_minutes_popular)
+                : mContext.getResources().getInteger(R.integer.cache_ttl_minutes_top_rated);
+
+        return System.currentTimeMillis() - fetchedAt > TimeUnit.MINUTES.toMillis(ttlMinutes);
+    }
+
+    /**
+     * Fetches the page from the API and stores it in the cache.
+     *
+     * @param pageUri            of the popular or top rated movies page
+     * @param priority           of the API request
+     * @param cancellationSignal of the sync
+     * @throws IOException                Related to network and stream reading.
+     * @throws OperationCanceledException when the sync has been cancelled.
+     */
+    private void fetchAndStore(Uri pageUri, int priority, CancellationSignal cancellationSignal)
+            throws IOException {
+        cancellationSignal.throwIfCanceled();
+
+        // Decide from which REST endpoint we want to get the data.
+        String page = pageUri.getLastPathSegment();
+        URL endpointUrl = isPopular(pageUri)
+                ? NetworkUtils.buildPopularMoviesUrl(page)
+                : NetworkUtils.buildTopRatedMoviesUrl(page);
+
+        ArrayList<Movie> movies = NetworkUtils.getParsedResponseFromUrl(endpointUrl,
+                TheMoviesDbJsonUtils.MOVIES_PARSER, LIST_PAGE_MAX_STALE_SECONDS, priority,
+                cancellationSignal);
+
+        // Movies are ranked in the order of the API results by the provider.
+        ContentValues[] values = new ContentValues[movies.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(MovieContract.CacheEntry.COLUMN_MOVIE_ID, movies.get(i).getId());
+            values[i].put(MovieContract.CacheEntry.COLUMN_TITLE, movies.get(i).getTitle());
+            values[i].put(MovieContract.CacheEntry.COLUMN_POSTER_URL,
+                    movies.get(i).getPosterUrl());
+            values[i].put(MovieContract.CacheEntry.COLUMN_USER_RATING,
+                    movies.get(i).getUserRating());
+        }
+
+        // Page of the list nobody is waiting for anymore is not stored.
+        cancellationSignal.throwIfCanceled();
+        mContext.getContentResolver().bulkInsert(pageUri, values);
+    }
+
+    /**
+     * @param pageUri of the popular or top rated movies page
+     * @return true if it is the page of popular movies
+     */
+    private static boolean isPopular(Uri pageUri) {
+        return pageUri.getPathSegments().get(0).equals(MovieContract.PATH_POPULAR_MOVIES);
+    }
+
+    /**
+     * Sync of the single page. A failed attempt is repeated later, while the device is online.
+     */
+    private class SyncTask implements Runnable {
+        private final Uri mPageUri;
+        private final int mPriority;
+
+        /**
+         * Cancelled when all of the callers waiting for the first attempt have left.
+         */
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        /**
+         * Number of the callers waiting for an attempt, guarded by mSyncsInFlight.
+         */
+        private int mWaiters;
+
+        /**
+         * Repeated attempt which waits for its delay, guarded by mSyncsInFlight.
+         */
+        private ScheduledFuture<?> mRetry;
+
+        /**
+         * Number of the finished attempts and the result of the last one, guarded by this.
+         */
+        private int mFinishedAttempts;
+        private boolean mIsLastAttemptSuccessful;
+
+        private int mAttempts;
+
+        SyncTask(Uri pageUri, int priority) {
+            mPageUri = pageUri;
+            mPriority = priority;
+        }
+
+        @Override
+        public void run() {
+            boolean isSuccessful = false;
+            try {
+                fetchAndStore(mPageUri, mPriority, mCancellationSignal);
+                isSuccessful = true;
+            } catch (OperationCanceledException e) {
+                Log.v(LOG_TAG, "Sync of " + mPageUri + " cancelled");
+            } catch (IOException e) {
+                Log.v(LOG_TAG, "Sync of " + mPageUri + " failed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Provider or parser failure, it won't get better with another attempt.
+                Log.e(LOG_TAG, "Sync of " + mPageUri + " failed", e);
+                mAttempts = MAX_SYNC_ATTEMPTS;
+            }
+
+            mAttempts++;
+            boolean isRepeated = !isSuccessful && mAttempts < MAX_SYNC_ATTEMPTS
+                    && !mCancellationSignal.isCanceled()
+                    && NetworkUtils.checkInternetConnection(mContext);
+
+            // The sync is repeated or removed before the waiters learn the result, so a caller
+            // which comes later waits either for the repeated attempt or for a new sync.
+            synchronized (mSyncsInFlight) {
+                if (isRepeated) {
+                    mRetry = mExecutor.schedule(this, RETRY_DELAY_MILLIS << (mAttempts - 1),
+                            TimeUnit.MILLISECONDS);
+                } else if (mSyncsInFlight.get(mPageUri) == this) {
+                    // Cancelled sync may have been replaced already.
+                    mSyncsInFlight.remove(mPageUri);
+                }
+
+                synchronized (this) {
+                    mFinishedAttempts++;
+                    mIsLastAttemptSuccessful = isSuccessful;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Runs the repeated attempt at once, instead of after its delay. It has to be called
+         * with the lock of mSyncsInFlight.
+         */
+        void retryNow() {
+            if (mRetry != null && mRetry.cancel(false)) {
+                mRetry = null;
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Waits for the attempt which finishes after the caller has joined the sync. Caller has
+         * to be counted in the waiters.
+         *
+         * @param finishedAttempts   number of the attempts finished when the caller has joined
+         * @param cancellationSignal of the caller, may be null
+         * @return true if the attempt has stored the page, false if it has failed or
+         * the caller has been cancelled
+         */
+        boolean awaitAttempt(int finishedAttempts, CancellationSignal cancellationSignal) {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        synchronized (SyncTask.this) {
+                            SyncTask.this.notifyAll();
+                        }
+                    }
+                });
+            }
+
+            try {
+                synchronized (this) {
+                    while (mFinishedAttempts == finishedAttempts
+                            && (cancellationSignal == null || !cancellationSignal.isCanceled())) {
+                        wait();
+                    }
+                    return mFinishedAttempts > finishedAttempts && mIsLastAttemptSuccessful;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                if (cancellationSignal != null) {
+                    cancellationSignal.setOnCancelListener(null);
+                }
+                leave();
+            }
+        }
+
+        /**
+         * Removes the caller from the waiters. When the last one leaves before the first
+         * attempt has finished, the sync is cancelled and the next caller starts a new one.
+         */
+        private void leave() {
+            synchronized (mSyncsInFlight) {
+                mWaiters--;
+                if (mWaiters > 0 || isFirstAttemptDone()) {
+                    return;
+                }
+
+                mCancellationSignal.cancel();
+                if (mSyncsInFlight.get(mPageUri) == this) {
+                    mSyncsInFlight.remove(mPageUri);
+                }
+            }
+        }
+
+        private synchronized boolean isFirstAttemptDone() {
+            return mFinishedAttempts > 0;
+        }
+
+        synchronized int getFinishedAttempts() {
+            return mFinishedAttempts;
+        }
+    }
+}
@@ -9,6 +9,11 @@ import android.os.Parcelable;
  */
 public class Cast implements Parcelable {
 
+    /**
+     * ID of the actor in themoviedb.org.
+     */
+    private final String id;
+
     /**
      * Actor name.
      */
@@ -27,12 +32,22 @@ public class Cast implements Parcelable {
     /**
      * Constructor for Cast object.
      */
-    public Cast(String name, String character, String imagePath) {
+    public Cast(String id, String name, String character, String imagePath) {
+        this.id = id;
         this.name = name;
         this.character = character;
         this.imagePath = imagePath;
     }
 
+    /**
+     * Gets the ID of the actor, the same in every movie.
+     *
+     * @return actor ID.
+     */
+    public String getId() {
+        return id;
+    }
+
     /**
      * Gets the actor real name.
      *
@@ -66,6 +81,7 @@ public class Cast implements Parcelable {
      * @param in parcel data.
      */
     private Cast(Parcel in) {
+        id = in.readString();
         name = in.readString();
         character = in.readString();
         imagePath = in.readString();
@@ -73,6 +89,7 @@ public class Cast implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeString(id);
         parcel.writeString(name);
         parcel.writeString(character);
         parcel.writeString(imagePath);
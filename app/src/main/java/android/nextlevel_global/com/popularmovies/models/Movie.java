@@ -10,6 +10,11 @@ import java.util.ArrayList;
  */
 public class Movie implements Parcelable {
 
+    /**
+     * Release date of the movie which is not known yet (upcoming movies may not have one).
+     */
+    public static final long UNKNOWN_RELEASE_DATE = Long.MIN_VALUE;
+
     /**
      * ID of the movie in themoviedb.org.
      */
@@ -36,14 +41,14 @@ public class Movie implements Parcelable {
     private String backdropUrl;
 
     /**
-     * Rating value of the movie.
+     * Rating value of the movie, from 0 to 10.
      */
-    private String userRating;
+    private double userRating;
 
     /**
-     * Release date of the movie.
+     * Release date of the movie, in days since 1970-01-01.
      */
-    private String releaseDate;
+    private long releaseDate = UNKNOWN_RELEASE_DATE;
 
     /**
      * Runtime of the movie.
@@ -86,8 +91,9 @@ public class Movie implements Parcelable {
         title = in.readString();
         overview = in.readString();
         posterUrl = in.readString();
-        userRating = in.readString();
-        releaseDate = in.readString();
+        backdropUrl = in.readString();
+        userRating = in.readDouble();
+        releaseDate = in.readLong();
         runtime = in.readInt();
         isFavorite = in.readByte() != 0;
         castList = in.createTypedArrayList(Cast.CREATOR);
@@ -188,9 +194,9 @@ public class Movie implements Parcelable {
     /**
      * Gets the user rating for the movie.
      *
-     * @return user rating for the movie.
+     * @return user rating for the movie, from 0 to 10.
      */
-    public String getUserRating() {
+    public double getUserRating() {
         return userRating;
     }
 
@@ -201,30 +207,33 @@ public class Movie implements Parcelable {
      * @return rating suited for the widget with a five star rating.
      */
     public float getUserRatingScore() {
-        float scorePercent = Float.valueOf(userRating) * 10;
-
-        return ((5 * scorePercent) / 100);
+        return (float) (userRating / 2);
     }
 
     /**
      * Sets the user rating for the movie.
      *
-     * @param userRating value for the movie.
+     * @param userRating value for the movie, from 0 to 10.
      */
-    public void setUserRating(String userRating) {
+    public void setUserRating(double userRating) {
         this.userRating = userRating;
     }
 
     /**
      * Sets the release date for the movie.
      *
-     * @param releaseDate of the movie
+     * @param releaseDate of the movie in days since 1970-01-01, or {@link #UNKNOWN_RELEASE_DATE}
      */
-    public void setReleaseDate(String releaseDate) {
+    public void setReleaseDate(long releaseDate) {
         this.releaseDate = releaseDate;
     }
 
-    public String getReleaseDate() {
+    /**
+     * Gets the release date of the movie.
+     *
+     * @return days since 1970-01-01, or {@link #UNKNOWN_RELEASE_DATE}
+     */
+    public long getReleaseDate() {
         return releaseDate;
     }
 
@@ -339,8 +348,9 @@ public class Movie implements Parcelable {
         parcel.writeString(title);
         parcel.writeString(overview);
         parcel.writeString(posterUrl);
-        parcel.writeString(userRating);
-        parcel.writeString(releaseDate);
+        parcel.writeString(backdropUrl);
+        parcel.writeDouble(userRating);
+        parcel.writeLong(releaseDate);
         parcel.writeInt(runtime);
         parcel.writeByte((byte) (isFavorite ? 1 : 0));
         parcel.writeTypedList(castList);
@@ -0,0 +1,127 @@
+package android.nextlevel_global.com.popularmovies.tasks;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.nextlevel_global.com.popularmovies.data.FavoritesRefresher;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job which refreshes the stale favorite movies with {@link FavoritesRefresher}. It runs
+ * periodically, only on an unmetered network or while the device is charging. Job scheduler
+ * can't combine these conditions with "or", so there are two jobs with the same work.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class FavoritesRefreshJobService extends JobService {
+
+    private static final String LOG_TAG = FavoritesRefreshJobService.class.getSimpleName();
+
+    /**
+     * Ids of the jobs, unique in the application.
+     */
+    private static final int UNMETERED_JOB_ID = 1;
+    private static final int CHARGING_JOB_ID = 2;
+
+    /**
+     * How often the jobs look for the stale favorites.
+     */
+    private static final long REFRESH_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    /**
+     * Refreshes which are running, keyed by the job id.
+     */
+    private final SparseArray<FavoritesRefresher> mRefreshers = new SparseArray<>();
+
+    /**
+     * Schedules the refresh jobs, unless they are already scheduled. Rescheduling would
+     * restart their periods, so it is safe to call this every time the application starts.
+     *
+     * @param context of the application
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        boolean isUnmeteredJobScheduled = false;
+        boolean isChargingJobScheduled = false;
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            isUnmeteredJobScheduled |= job.getId() == UNMETERED_JOB_ID;
+            isChargingJobScheduled |= job.getId() == CHARGING_JOB_ID;
+        }
+
+        ComponentName service = new ComponentName(context, FavoritesRefreshJobService.class);
+        if (!isUnmeteredJobScheduled) {
+            scheduler.schedule(new JobInfo.Builder(UNMETERED_JOB_ID, service)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                    .setPeriodic(REFRESH_PERIOD_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+        if (!isChargingJobScheduled) {
+            scheduler.schedule(new JobInfo.Builder(CHARGING_JOB_ID, service)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .setRequiresCharging(true)
+                    .setPeriodic(REFRESH_PERIOD_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final FavoritesRefresher refresher = new FavoritesRefresher(this);
+        synchronized (mRefreshers) {
+            mRefreshers.put(params.getJobId(), refresher);
+        }
+
+        // Jobs are started on the main thread, the refresh waits for the network. It waits
+        // for its fetches in the maintenance lane, so it doesn't take a thread of the lanes.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean isComplete;
+                try {
+                    isComplete = refresher.refreshStaleFavorites();
+                } catch (RuntimeException e) {
+                    // Job which is not finished keeps its wake lock until the system stops it,
+                    // so the failed refresh is finished and retried with the backoff.
+                    Log.e(LOG_TAG, "Refresh of the favorites has failed", e);
+                    isComplete = false;
+                }
+
+                synchronized (mRefreshers) {
+                    // Stopped job is rescheduled by onStopJob and must not be finished.
+                    if (mRefreshers.get(params.getJobId()) != refresher) {
+                        return;
+                    }
+                    mRefreshers.remove(params.getJobId());
+                }
+                jobFinished(params, !isComplete);
+            }
+        }).start();
+
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        synchronized (mRefreshers) {
+            FavoritesRefresher refresher = mRefreshers.get(params.getJobId());
+            if (refresher != null) {
+                refresher.stop();
+                mRefreshers.remove(params.getJobId());
+            }
+        }
+
+        // Favorites which have not been refreshed are still stale, the next run resumes them.
+        return true;
+    }
+}
@@ -6,27 +6,56 @@ import android.net.Uri;
 import android.nextlevel_global.com.popularmovies.MoviesFragment;
 import android.nextlevel_global.com.popularmovies.R;
 import android.nextlevel_global.com.popularmovies.data.MovieContract;
+import android.nextlevel_global.com.popularmovies.data.MoviesSyncEngine;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
 import android.os.Bundle;
-import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.ContentResolverCompat;
+import android.support.v4.os.CancellationSignal;
 import android.util.Log;
 
 /**
  * Async task for loading movies for MoviesFragment.
  * It will load top rated, most popular or favorite movies from content provider.
+ * Movies are reloaded when the provider notifies about a change, e.g. when a cached page has
+ * been refreshed in the background. Load of the list the user has left (e.g. after a change
+ * of the sort order) is cancelled together with its page fetch and query.
+ * <p>
+ * Loader reads only the pages from {@link MoviesFragment#EXTRAS_FIRST_PAGE} up to
+ * {@link MoviesFragment#EXTRAS_PAGE}, so the next page of the infinite scroll doesn't read
+ * the whole list again.
+ * <p>
+ * Page which could not be fetched is delivered as null, and the loader watches its list
+ * category, so it is loaded when the sync engine stores the page with a later attempt.
  */
-public class MoviesLoader extends AsyncTaskLoader<Cursor> {
+public class MoviesLoader extends TaskLoader<Cursor> {
 
     private static final String LOG_TAG = MoviesLoader.class.getSimpleName();
     private final Bundle args;
     private final MoviesFragment fragment;
 
+    // Reloads the movies when the provider notifies about a change (e.g. background refresh)
+    private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+
+    // Cursor delivered to the fragment
+    private Cursor lastCursor;
+
+    // List category watched by the observer after a failed fetch, guarded by this
+    private boolean isWatchingCategory;
+
     // Loader constructor
     public MoviesLoader(Context context, Bundle args, MoviesFragment fragment) {
-        super(context);
+        super(context, TaskScheduler.LANE_PAGING);
         this.args = args;
         this.fragment = fragment;
     }
 
+    /**
+     * @return first of the pages read by the loader, 1 when it reads the whole list
+     */
+    public int getFirstPage() {
+        return args == null ? 1 : args.getInt(MoviesFragment.EXTRAS_FIRST_PAGE, 1);
+    }
+
     @Override
     protected void onStartLoading() {
         // If no arguments were passed, we don't have to query an API or DB.
@@ -38,10 +67,18 @@ public class MoviesLoader extends AsyncTaskLoader<Cursor> {
             return;
         }
 
-        String loadPage = args.getString(MoviesFragment.EXTRAS_PAGE);
-        if (loadPage != null && loadPage.equals("1")) {
-            // Show loading indicator for the user.
-            fragment.showLoadingIndicator();
+        // Deliver the movies we already have, they are reloaded only when they have changed.
+        if (lastCursor != null) {
+            deliverResult(lastCursor);
+            if (!takeContentChanged()) {
+                return;
+            }
+        } else {
+            String loadPage = args.getString(MoviesFragment.EXTRAS_PAGE);
+            if (loadPage != null && loadPage.equals("1")) {
+                // Show loading indicator for the user.
+                fragment.showLoadingIndicator();
+            }
         }
 
         // Initialize load.
@@ -49,7 +86,53 @@ public class MoviesLoader extends AsyncTaskLoader<Cursor> {
     }
 
     @Override
-    public Cursor loadInBackground() {
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+
+        Cursor oldCursor = lastCursor;
+        lastCursor = cursor;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        // Old cursor is not used by the fragment anymore.
+        if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
+            oldCursor.close();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        stopWatchingCategory();
+
+        if (lastCursor != null && !lastCursor.isClosed()) {
+            lastCursor.close();
+        }
+        lastCursor = null;
+    }
+
+    @Override
+    public Cursor loadInBackground(CancellationSignal cancellationSignal) {
         String page = args.getString(MoviesFragment.EXTRAS_PAGE);
         String sortOrder = args.getString(MoviesFragment.EXTRAS_SORT_ORDER);
         if (page == null || sortOrder == null) {
@@ -58,29 +141,99 @@ public class MoviesLoader extends AsyncTaskLoader<Cursor> {
 
         try {
             Uri uri;
+            String[] projection;
             String _sortOrder = "";
 
-            if (sortOrder.equals(getContext().getString(R.string.preferences_sort_order_popular))) {
-                uri = MovieContract.CacheEntry.buildPopularMoviesUriWithPage(page);
-            } else if (sortOrder.equals(getContext().getString(R.string.preferences_sort_order_top_rated))) {
-                uri = MovieContract.CacheEntry.buildTopRatedMoviesUriWithPage(page);
-            } else if (sortOrder.equals(getContext().getString(R.string.preferences_sort_order_favorites))) {
+            if (sortOrder.equals(getContext().getString(R.string.preferences_sort_order_favorites))) {
                 uri = MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI;
-                _sortOrder = MovieContract.MovieEntry._ID + " DESC";
+                projection = MovieContract.CacheEntry.MOVIE_LIST_PROJECTION;
+                _sortOrder = MovieContract.MovieEntry.NEWEST_FIRST_SORT_ORDER;
             } else {
-                throw new RuntimeException("Unsupported sort order!");
+                Uri pageUri = buildPageUri(getContext(), sortOrder, page);
+                if (pageUri == null) {
+                    throw new RuntimeException("Unsupported sort order!");
+                }
+
+                // Provider reads only the cache, the missing page has to be fetched first.
+                // Sync engine keeps retrying the failed fetch, the stored page is loaded then.
+                if (!MoviesSyncEngine.getInstance(getContext())
+                        .syncPage(pageUri, cancellationSignal)) {
+                    if (!cancellationSignal.isCanceled()) {
+                        watchCategory(MovieContract.CacheEntry.getCategoryUri(pageUri));
+                    }
+                    return null;
+                }
+
+                // Only the pages which are not in the list yet are read, usually the last one.
+                uri = MovieContract.CacheEntry.buildPageRangeUri(pageUri, getFirstPage());
+                projection = MovieContract.CacheEntry.MOVIE_PAGE_PROJECTION;
             }
 
             Log.i(LOG_TAG, "Fetch content: " + uri.toString());
-            return getContext().getContentResolver().query(
+            Cursor cursor = ContentResolverCompat.query(
+                    getContext().getContentResolver(),
                     uri,
-                    MovieContract.CacheEntry.MOVIE_LIST_PROJECTION,
+                    projection,
                     null,
                     null,
-                    _sortOrder);
+                    _sortOrder,
+                    cancellationSignal);
+
+            if (cursor != null) {
+                try {
+                    // Fill the cursor window in the background and watch for changes.
+                    cursor.getCount();
+                    stopWatchingCategory();
+                    cursor.registerContentObserver(observer);
+                } catch (RuntimeException e) {
+                    cursor.close();
+                    throw e;
+                }
+            }
+
+            return cursor;
         } catch (Exception e) {
             return null;
         }
     }
 
+    /**
+     * Reloads the movies when the pages of the list category change.
+     *
+     * @param categoryUri of the list
+     */
+    private synchronized void watchCategory(Uri categoryUri) {
+        if (!isWatchingCategory && !isReset()) {
+            getContext().getContentResolver().registerContentObserver(categoryUri, true, observer);
+            isWatchingCategory = true;
+        }
+    }
+
+    /**
+     * Stops watching the list category, the loaded cursor watches its pages.
+     */
+    private synchronized void stopWatchingCategory() {
+        if (isWatchingCategory) {
+            getContext().getContentResolver().unregisterContentObserver(observer);
+            isWatchingCategory = false;
+        }
+    }
+
+    /**
+     * Builds the URI of the cached list page.
+     *
+     * @param context   of the application
+     * @param sortOrder of the list, popular or top rated
+     * @param page      number
+     * @return Uri of the page or null if the list is not paged (e.g. favorites)
+     */
+    public static Uri buildPageUri(Context context, String sortOrder, String page) {
+        if (sortOrder.equals(context.getString(R.string.preferences_sort_order_popular))) {
+            return MovieContract.CacheEntry.buildPopularMoviesUriWithPage(page);
+        } else if (sortOrder.equals(context.getString(R.string.preferences_sort_order_top_rated))) {
+            return MovieContract.CacheEntry.buildTopRatedMoviesUriWithPage(page);
+        }
+
+        return null;
+    }
 }
@@ -0,0 +1,159 @@
+package android.nextlevel_global.com.popularmovies.tasks;
+
+import android.content.Context;
+import android.net.Uri;
+import android.nextlevel_global.com.popularmovies.data.MoviesSyncEngine;
+import android.nextlevel_global.com.popularmovies.utilities.EndpointLatencyInterceptor;
+import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the next pages of popular or top rated movies in the background, as soon as the
+ * current page is displayed. Pages are synced by {@link MoviesSyncEngine}, so they are stored
+ * in the cached pages and when the infinite scroll asks for the next page it is read from
+ * the database. Page which is still being fetched is awaited by the scroll, not fetched again.
+ */
+public class PagePrefetcher {
+
+    /**
+     * Number of movies on the single API page.
+     */
+    private static final int PAGE_SIZE = 20;
+
+    /**
+     * Maximum number of pages fetched ahead of the displayed one.
+     */
+    private static final int MAX_DEPTH = 3;
+
+    /**
+     * Assumed page latency until the first page call is measured.
+     */
+    private static final long DEFAULT_PAGE_LATENCY_MILLIS = 500;
+
+    private final Context mContext;
+
+    /**
+     * Prefetches which have been scheduled and have not finished yet. Prefetches check the
+     * cached pages in the prefetch lane of the task scheduler and request the syncs with the
+     * background request priority, so they don't compete with the user visible work.
+     */
+    private final List<Future<?>> mPrefetches = new ArrayList<>();
+
+    private boolean mIsShutdown;
+
+    /**
+     * Sort order of the prefetched pages.
+     */
+    private String mSortOrder;
+
+    /**
+     * The last page which has been scheduled for prefetch.
+     */
+    private int mLastPrefetchedPage;
+
+    public PagePrefetcher(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Schedules prefetch of the pages following the displayed one. Number of the prefetched
+     * pages depends on the scroll velocity and on the measured page latency: the faster
+     * the user scrolls or the slower the network is, the more pages are fetched ahead.
+     *
+     * @param sortOrder      of the displayed movies
+     * @param page           which has been displayed
+     * @param itemsPerSecond current scroll velocity
+     */
+    public void onPageShown(String sortOrder, int page, float itemsPerSecond) {
+        if (!sortOrder.equals(mSortOrder) || page == 1) {
+            mSortOrder = sortOrder;
+            mLastPrefetchedPage = page;
+        }
+
+        if (!NetworkUtils.checkInternetConnection(mContext)) {
+            return;
+        }
+
+        int depth = computeDepth(sortOrder, itemsPerSecond);
+        for (int nextPage = Math.max(page, mLastPrefetchedPage) + 1;
+             nextPage <= page + depth; nextPage++) {
+            schedule(sortOrder, nextPage);
+            mLastPrefetchedPage = nextPage;
+        }
+    }
+
+    /**
+     * Stops the prefetcher. Scheduled prefetches are dropped.
+     */
+    public void shutdown() {
+        mIsShutdown = true;
+        for (Future<?> prefetch : mPrefetches) {
+            prefetch.cancel(true);
+        }
+        mPrefetches.clear();
+    }
+
+    /**
+     * Computes how many pages should be fetched ahead.
+     *
+     * @param sortOrder      of the displayed movies (it is also the API endpoint name)
+     * @param itemsPerSecond current scroll velocity
+     * @return number of pages to prefetch
+     */
+    private int computeDepth(String sortOrder, float itemsPerSecond) {
+        if (itemsPerSecond <= 0) {
+            return 1;
+        }
+
+        long pageLatencyMillis = DEFAULT_PAGE_LATENCY_MILLIS;
+        EndpointLatencyInterceptor.Stats stats = NetworkUtils.getLatencyStats().get(sortOrder);
+        if (stats != null && stats.getCount() > 0) {
+            pageLatencyMillis = stats.getAverageMillis();
+        }
+
+        // Time in which the user scrolls through the single page.
+        float pageConsumeMillis = PAGE_SIZE * 1000f / itemsPerSecond;
+
+        int depth = 1 + (int) (pageLatencyMillis / pageConsumeMillis);
+        return Math.min(MAX_DEPTH, depth);
+    }
+
+    /**
+     * Schedules the single page prefetch.
+     *
+     * @param sortOrder of the movies
+     * @param page      to prefetch
+     */
+    private void schedule(final String sortOrder, final int page) {
+        if (mIsShutdown) {
+            return;
+        }
+
+        // Forget the prefetches which have finished.
+        Iterator<Future<?>> iterator = mPrefetches.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
+        }
+
+        Runnable prefetch = new Runnable() {
+            @Override
+            public void run() {
+                Uri pageUri = MoviesLoader.buildPageUri(mContext, sortOrder,
+                        String.valueOf(page));
+                if (pageUri != null) {
+                    // Prefetch is only an optimization, failed page is fetched on demand.
+                    MoviesSyncEngine.getInstance(mContext).prefetchPage(pageUri);
+                }
+            }
+        };
+
+        mPrefetches.add(TaskScheduler.getInstance().submit(TaskScheduler.LANE_PREFETCH, prefetch));
+    }
+}
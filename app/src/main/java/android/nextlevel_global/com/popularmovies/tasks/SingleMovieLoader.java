@@ -1,30 +1,34 @@
 package android.nextlevel_global.com.popularmovies.tasks;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.database.Cursor;
 import android.nextlevel_global.com.popularmovies.MovieDetailsFragment;
+import android.nextlevel_global.com.popularmovies.data.FavoriteExtras;
+import android.nextlevel_global.com.popularmovies.data.FavoritesWriter;
 import android.nextlevel_global.com.popularmovies.data.MovieContract;
 import android.nextlevel_global.com.popularmovies.models.Cast;
 import android.nextlevel_global.com.popularmovies.models.Movie;
 import android.nextlevel_global.com.popularmovies.models.Review;
 import android.nextlevel_global.com.popularmovies.models.Trailer;
+import android.nextlevel_global.com.popularmovies.utilities.MovieDetailsFetcher;
 import android.nextlevel_global.com.popularmovies.utilities.NetworkUtils;
-import android.nextlevel_global.com.popularmovies.utilities.TheMoviesDbJsonUtils;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
 import android.os.Bundle;
-import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.util.Log;
 
-import org.json.JSONException;
-
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
 
 /**
  * Async task for lading data about single movie for MovieDetailsFragment.
+ * <p>
+ * Favorite toggle which has not been stored yet wins over the state read from the provider.
+ * It is checked before and after the query, so the write which has been stored in between
+ * isn't lost.
  */
-public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
+public class SingleMovieLoader extends TaskLoader<Movie> {
 
     // Log tag.
     private final static String LOG_TAG = SingleMovieLoader.class.getSimpleName();
@@ -34,7 +38,7 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
     private final MovieDetailsFragment fragment;
 
     public SingleMovieLoader(Context context, Movie movie, Bundle args, MovieDetailsFragment host) {
-        super(context);
+        super(context, TaskScheduler.LANE_INTERACTIVE);
         this.args = args;
         this.mMovie = movie;
         this.fragment = host;
@@ -62,7 +66,7 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
     }
 
     @Override
-    public Movie loadInBackground() {
+    public Movie loadInBackground(CancellationSignal cancellationSignal) {
         // Extract movie ID from the args using defined constant
         String movieId = args.getString(MovieDetailsFragment.EXTRA_MOVIE_ID);
 
@@ -74,6 +78,10 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
         // Movie object.
         Movie movie = null;
 
+        // Write which is in flight during the query may be done before the query returns.
+        FavoritesWriter favoritesWriter = FavoritesWriter.getInstance(getContext());
+        Boolean pendingFavorite = favoritesWriter.getPendingFavorite(movieId);
+
         // Let's check if the movie belongs to favorite movies.
         Cursor retCursor = getContext().getContentResolver().query(
                 MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
@@ -86,31 +94,13 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
         // In case we are online, fetch fresh data and update stored
         boolean isOnline = NetworkUtils.checkInternetConnection(getContext());
         if (isOnline) {
-            // Prepare the URL using passed movieId and perform API call.
+            // Fetch the movie with its cast, reviews and trailers in a single API call.
             try {
-                URL endpointUrl = NetworkUtils.buildMovieUrl(movieId);
-                String jsonResponse = NetworkUtils.getResponseFromUrl(endpointUrl);
-                movie = TheMoviesDbJsonUtils.getMovieFromJson(jsonResponse);
-
-                // Fetch movie cast
-                endpointUrl = NetworkUtils.buildCastMembersUrl(movieId);
-                jsonResponse = NetworkUtils.getResponseFromUrl(endpointUrl);
-                movie.setCastList(
-                        TheMoviesDbJsonUtils.getCastMembersFromJson(jsonResponse));
-
-                // Fetch movie reviews.
-                endpointUrl = NetworkUtils.buildReviewsUrl(movieId);
-                jsonResponse = NetworkUtils.getResponseFromUrl(endpointUrl);
-                movie.setReviewsList(
-                        TheMoviesDbJsonUtils.getReviewsFromJson(jsonResponse));
-
-                // Fetch movie trailers.
-                endpointUrl = NetworkUtils.buildTrailersUrl(movieId);
-                jsonResponse = NetworkUtils.getResponseFromUrl(endpointUrl);
-                movie.setTrailers(
-                        TheMoviesDbJsonUtils.getTrailersFromJson(jsonResponse));
-
-            } catch (JSONException | IOException e) {
+                movie = MovieDetailsFetcher.fetchMovie(movieId, cancellationSignal);
+            } catch (IOException | OperationCanceledException e) {
+                if (retCursor != null) {
+                    retCursor.close();
+                }
                 return null;
             }
         }
@@ -121,8 +111,10 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
             if (isOnline) {
                 // If movie is in favorites and we are in online mode, then update its data.
                 // Lets update rating, reviews and trailer lists - cast members shouldn't
-                // change ;)
-                refreshStoredMovieData(movie);
+                // change ;) Movie the user has already left is not stored.
+                if (!cancellationSignal.isCanceled()) {
+                    refreshStoredMovieData(movie);
+                }
             } else {
                 // Fetch offline data.
                 movie = new Movie();
@@ -141,8 +133,10 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
                 movie.setOverview(retCursor.getString(movieOverviewIndex));
                 movie.setPosterUrl(retCursor.getString(moviePosterUrlIndex));
                 movie.setBackdropUrl(retCursor.getString(movieBackdropIndex));
-                movie.setUserRating(retCursor.getString(movieRatingIndex));
-                movie.setReleaseDate(retCursor.getString(movieReleaseDateIndex));
+                movie.setUserRating(retCursor.getDouble(movieRatingIndex));
+                movie.setReleaseDate(retCursor.isNull(movieReleaseDateIndex)
+                        ? Movie.UNKNOWN_RELEASE_DATE
+                        : retCursor.getLong(movieReleaseDateIndex));
                 movie.setRuntime(retCursor.getInt(movieRuntimeIndex));
 
                 // Kids remember...
@@ -161,15 +155,17 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
                 if (retCursor != null && retCursor.moveToFirst()) {
 
                     do {
+                        int personIdIndex = retCursor.getColumnIndex(MovieContract.CastEntry.COLUMN_PERSON_ID);
                         int nameIndex = retCursor.getColumnIndex(MovieContract.CastEntry.COLUMN_NAME);
                         int characterIndex = retCursor.getColumnIndex(MovieContract.CastEntry.COLUMN_CHARACTER);
                         int imagePathIndex = retCursor.getColumnIndex(MovieContract.CastEntry.COLUMN_AVATAR_PATH);
 
+                        String personId = retCursor.getString(personIdIndex);
                         String name = retCursor.getString(nameIndex);
                         String character = retCursor.getString(characterIndex);
                         String imagePath = retCursor.getString(imagePathIndex);
 
-                        castList.add(new Cast(name, character, imagePath));
+                        castList.add(new Cast(personId, name, character, imagePath));
                     } while (retCursor.moveToNext());
                     // And if you forget close your cursor... one unicorn will die ;(
                     retCursor.close();
@@ -233,82 +229,35 @@ public class SingleMovieLoader extends AsyncTaskLoader<Movie> {
             movie.setFavorite(true);
         }
 
+        // Toggle which has not been stored yet wins over the stored state.
+        if (movie != null) {
+            Boolean lastPendingFavorite = favoritesWriter.getPendingFavorite(movieId);
+            if (lastPendingFavorite != null) {
+                pendingFavorite = lastPendingFavorite;
+            }
+            if (pendingFavorite != null) {
+                movie.setFavorite(pendingFavorite);
+            }
+        }
+
         return movie;
     }
 
     /**
      * Refresh favorite movie data when user is in online mode.
-     * For favorite movie we can update its rating, poster, backdrop image,
-     * reviews and trailers list.
+     * Provider compares the fetched movie with the stored one and writes only what has
+     * changed, so opening an up to date favorite doesn't write anything.
      *
      * @param movie recent fetched from API.
      */
     private void refreshStoredMovieData(Movie movie) {
-        // Lets do this in batch operation
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-
-        // Movie details
-        ops.add(ContentProviderOperation
-                .newUpdate(MovieContract.MovieEntry.buildFavoriteMovieUriWithId(movie.getId()))
-                .withSelection(MovieContract.MovieEntry.COLUMN_MOVIE_ID + "=?",
-                        new String[]{movie.getId()})
-
-                .withValue(MovieContract.MovieEntry.COLUMN_POSTER_URL, movie.getPosterUrl())
-                .withValue(MovieContract.MovieEntry.COLUMN_BACKDROP_URL, movie.getBackdropUrl())
-                .withValue(MovieContract.MovieEntry.COLUMN_USER_RATING, movie.getUserRating())
-                .build());
-
-        // Lets remove old reviews and insert more current ones. Old reviews could change or can
-        // be modified.
-        ops.add(ContentProviderOperation
-                .newDelete(MovieContract.ReviewEntry
-                        .buildFavoriteMovieReviewsUriWithId(movie.getId()))
-                .build());
-
-        // Reviews
-        for (Review review : movie.getReviewsList()) {
-            ops.add(ContentProviderOperation
-                    .newInsert(MovieContract.ReviewEntry
-                            .buildFavoriteMovieReviewsUriWithId(movie.getId()))
-
-                    .withValue(MovieContract.ReviewEntry.COLUMN_MOVIE_ID,
-                            movie.getId())
-                    .withValue(MovieContract.ReviewEntry.COLUMN_AUTHOR,
-                            review.getAuthor())
-                    .withValue(MovieContract.ReviewEntry.COLUMN_CONTENT,
-                            review.getContent())
-
-                    .build());
-        }
-
-        // And do the same with trailers.
-        ops.add(ContentProviderOperation
-                .newDelete(MovieContract.TrailerEntry
-                        .buildFavoriteMovieTrailersUriWithId(movie.getId()))
-                .build());
-
-        // Trailers
-        for (Trailer trailer : movie.getTrailers()) {
-            ops.add(ContentProviderOperation
-                    .newInsert(MovieContract.TrailerEntry
-                            .buildFavoriteMovieTrailersUriWithId(movie.getId()))
-
-                    .withValue(MovieContract.TrailerEntry.COLUMN_MOVIE_ID,
-                            movie.getId())
-                    .withValue(MovieContract.TrailerEntry.COLUMN_TITLE,
-                            trailer.getTitle())
-                    .withValue(MovieContract.TrailerEntry.COLUMN_VIDEO_ID,
-                            trailer.getVideoId())
-
-                    .build());
-        }
-
         try {
-            // Do batch request.
-            getContext().getContentResolver()
-                    .applyBatch(MovieContract.CONTENT_AUTHORITY, ops);
+            getContext().getContentResolver().call(
+                    MovieContract.MovieEntry.FAVORITE_MOVIES_CONTENT_URI,
+                    MovieContract.METHOD_REFRESH_FAVORITE, null,
+                    FavoriteExtras.fromMovie(movie));
         } catch (Exception e) {
             // Do nothing
         }
     }
-}
\ No newline at end of file
+}
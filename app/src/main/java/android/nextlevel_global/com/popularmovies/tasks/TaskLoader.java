@@ -0,0 +1,157 @@
+package android.nextlevel_global.com.popularmovies.tasks;
+
+import android.content.Context;
+import android.nextlevel_global.com.popularmovies.utilities.TaskScheduler;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.Loader;
+import android.support.v4.os.CancellationSignal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loader which loads its data in a lane of {@link TaskScheduler}, instead of the shared
+ * executor of AsyncTaskLoader, so the data the user is waiting for goes before the
+ * background work. It has the same life cycle as AsyncTaskLoader: the result is delivered
+ * on the main thread, and the result of a cancelled load is passed to
+ * {@link #onCanceled(Object)}. Cancellation of the running load is delivered when it comes
+ * back, the load which has not started yet is cancelled at once.
+ * <p>
+ * Every load gets a cancellation signal, which is cancelled together with the load. Loader
+ * passes it to the network and provider calls, so the load the user has left stops early.
+ *
+ * @param <D> type of the loaded data
+ */
+public abstract class TaskLoader<D> extends Loader<D> {
+
+    private final int mLane;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Load which is running or waiting for a thread, null if there is none.
+     */
+    private LoadTask mTask;
+
+    /**
+     * @param context of the loader
+     * @param lane    of the scheduler, one of the TaskScheduler.LANE_* constants
+     */
+    protected TaskLoader(Context context, int lane) {
+        super(context);
+        mLane = lane;
+    }
+
+    /**
+     * Loads the data. It is called on the thread of the scheduler.
+     *
+     * @param cancellationSignal cancelled together with the load
+     * @return the loaded data
+     */
+    public abstract D loadInBackground(CancellationSignal cancellationSignal);
+
+    /**
+     * Releases the data of the cancelled load. It is called on the main thread.
+     *
+     * @param data which has been loaded, may be null
+     */
+    public void onCanceled(D data) {
+    }
+
+    @Override
+    protected void onForceLoad() {
+        super.onForceLoad();
+        cancelLoad();
+
+        mTask = new LoadTask();
+        mTask.mFuture = TaskScheduler.getInstance().submit(mLane, mTask);
+    }
+
+    @Override
+    protected boolean onCancelLoad() {
+        if (mTask == null) {
+            return false;
+        }
+
+        LoadTask task = mTask;
+        mTask = null;
+        task.mIsCancelled = true;
+        task.mFuture.cancel(false);
+        task.mCancellationSignal.cancel();
+
+        // Load which has not started never comes back to the main thread, so it is cancelled
+        // right away and there is no cancellation to wait for.
+        if (task.mIsStarted.compareAndSet(false, true)) {
+            rollbackContentChanged();
+            return false;
+        }
+
+        // Load which is already running stops as soon as it notices the signal, its result
+        // is passed to onCanceled and the cancellation is delivered then.
+        task.mIsCancelledWhileRunning = true;
+        return true;
+    }
+
+    /**
+     * Delivers the result of the load on the main thread.
+     *
+     * @param task which has finished
+     * @param data which has been loaded
+     */
+    private void dispatchOnLoadComplete(LoadTask task, D data) {
+        if (task != mTask || task.mIsCancelled) {
+            rollbackContentChanged();
+            onCanceled(data);
+            if (task.mIsCancelledWhileRunning) {
+                deliverCancellation();
+            }
+            return;
+        }
+
+        mTask = null;
+        if (isAbandoned()) {
+            onCanceled(data);
+            return;
+        }
+
+        commitContentChanged();
+        deliverResult(data);
+    }
+
+    /**
+     * Single load of the data.
+     */
+    private class LoadTask implements Callable<Void> {
+        private Future<Void> mFuture;
+        private volatile boolean mIsCancelled;
+
+        /* Whether onCancelLoad has promised the cancellation, used on the main thread */
+        private boolean mIsCancelledWhileRunning;
+        private final AtomicBoolean mIsStarted = new AtomicBoolean();
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        @Override
+        public Void call() {
+            if (!mIsStarted.compareAndSet(false, true)) {
+                return null;
+            }
+
+            D data = null;
+            try {
+                data = loadInBackground(mCancellationSignal);
+            } finally {
+                // Failed load delivers null, so the loader doesn't wait for it forever.
+                final D result = data;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchOnLoadComplete(LoadTask.this, result);
+                    }
+                });
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * OkHttp interceptor which counts how the responses were served by the HTTP disk cache.
+ */
+public class CacheStatsInterceptor implements Interceptor {
+
+    /**
+     * Responses served from the disk cache without touching the network.
+     */
+    private final AtomicInteger mHitCount = new AtomicInteger();
+
+    /**
+     * Responses fully downloaded from the network.
+     */
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    /**
+     * Cached responses revalidated with a conditional request.
+     */
+    private final AtomicInteger mRevalidationCount = new AtomicInteger();
+
+    /**
+     * Revalidations which ended with 304 Not Modified, so no body has been downloaded.
+     */
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Response response = chain.proceed(chain.request());
+
+        Response cacheResponse = response.cacheResponse();
+        Response networkResponse = response.networkResponse();
+
+        if (cacheResponse != null && networkResponse == null) {
+            mHitCount.incrementAndGet();
+        } else if (cacheResponse != null) {
+            mRevalidationCount.incrementAndGet();
+            if (networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mNotModifiedCount.incrementAndGet();
+            }
+        } else {
+            mMissCount.incrementAndGet();
+        }
+
+        return response;
+    }
+
+    /**
+     * @return number of responses served from the disk cache without touching the network
+     */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return number of responses fully downloaded from the network
+     */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return number of cached responses revalidated with a conditional request
+     */
+    public int getRevalidationCount() {
+        return mRevalidationCount.get();
+    }
+
+    /**
+     * @return number of revalidations answered with 304 Not Modified
+     */
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", revalidations=" + getRevalidationCount()
+                + " (not modified=" + getNotModifiedCount() + ")";
+    }
+}
@@ -0,0 +1,179 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * OkHttp interceptor which measures how long each call takes, grouped by the API endpoint.
+ * With the shared connection pool the first call to a host pays for the TCP and TLS handshakes
+ * and the following ones should be noticeably faster - these numbers show the difference.
+ */
+public class EndpointLatencyInterceptor implements Interceptor {
+
+    /**
+     * Tag for log information.
+     */
+    private static final String TAG = EndpointLatencyInterceptor.class.getSimpleName();
+
+    /**
+     * Host which serves posters, backdrops and avatars.
+     */
+    private static final String TMDB_IMAGES_HOST = "image.tmdb.org";
+
+    /**
+     * Endpoint name for single movie calls (path contains only movie ID).
+     */
+    private static final String MOVIE_ENDPOINT = "movie";
+
+    /**
+     * Endpoint name used for all of the image downloads.
+     */
+    private static final String IMAGES_ENDPOINT = "images";
+
+    /**
+     * Collected statistics, keyed by the endpoint name.
+     */
+    private final Map<String, Stats> mStats = new HashMap<>();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        String endpoint = resolveEndpoint(chain.request().url());
+
+        long startTime = SystemClock.elapsedRealtime();
+        Response response = chain.proceed(chain.request());
+        long tookMillis = SystemClock.elapsedRealtime() - startTime;
+
+        Stats stats;
+        synchronized (mStats) {
+            stats = mStats.get(endpoint);
+            if (stats == null) {
+                stats = new Stats();
+                mStats.put(endpoint, stats);
+            }
+            stats.record(tookMillis);
+        }
+
+        Log.v(TAG, endpoint + " took " + tookMillis + "ms (" + stats + ")");
+        return response;
+    }
+
+    /**
+     * Gets a snapshot of the collected statistics.
+     *
+     * @return statistics keyed by the endpoint name
+     */
+    public Map<String, Stats> getStats() {
+        Map<String, Stats> snapshot = new HashMap<>();
+        synchronized (mStats) {
+            for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Maps the URL onto the endpoint name. Movie IDs are dropped from the path, so all of the
+     * movie detail calls are counted together, e.g. /3/movie/550/casts becomes "movie/casts".
+     *
+     * @param url of the request
+     * @return endpoint name
+     */
+    static String resolveEndpoint(HttpUrl url) {
+        if (TMDB_IMAGES_HOST.equals(url.host())) {
+            return IMAGES_ENDPOINT;
+        }
+
+        List<String> segments = url.pathSegments();
+        int movieIndex = segments.indexOf(MOVIE_ENDPOINT);
+        if (movieIndex == -1 || movieIndex == segments.size() - 1) {
+            return url.host();
+        }
+
+        String next = segments.get(movieIndex + 1);
+        if (!TextUtils.isDigitsOnly(next)) {
+            // List endpoints like popular or top_rated.
+            return next;
+        }
+
+        if (movieIndex + 2 < segments.size()) {
+            return MOVIE_ENDPOINT + "/" + segments.get(movieIndex + 2);
+        }
+
+        return MOVIE_ENDPOINT;
+    }
+
+    /**
+     * Latency statistics of the single endpoint.
+     */
+    public static class Stats {
+        private int count;
+        private long totalMillis;
+        private long firstMillis;
+        private long maxMillis;
+
+        private void record(long tookMillis) {
+            if (count == 0) {
+                firstMillis = tookMillis;
+            }
+
+            count++;
+            totalMillis += tookMillis;
+            maxMillis = Math.max(maxMillis, tookMillis);
+        }
+
+        private Stats copy() {
+            Stats copy = new Stats();
+            copy.count = count;
+            copy.totalMillis = totalMillis;
+            copy.firstMillis = firstMillis;
+            copy.maxMillis = maxMillis;
+            return copy;
+        }
+
+        /**
+         * @return number of recorded calls
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return duration of the first (cold connection) call in milliseconds
+         */
+        public long getFirstMillis() {
+            return firstMillis;
+        }
+
+        /**
+         * @return average duration of the call in milliseconds
+         */
+        public long getAverageMillis() {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+
+        /**
+         * @return the longest call in milliseconds
+         */
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + count + ", first=" + firstMillis + "ms, avg="
+                    + getAverageMillis() + "ms, max=" + maxMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.nextlevel_global.com.popularmovies.models.Cast;
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.nextlevel_global.com.popularmovies.models.Review;
+import android.nextlevel_global.com.popularmovies.models.Trailer;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches full information about the movie (details, cast, reviews and trailers) from
+ * themoviedb.org API. Requests have the interactive priority, because the user is waiting
+ * for the details on the screen.
+ */
+public class MovieDetailsFetcher {
+
+    /**
+     * Maximum number of detail requests running at the same time in the fallback mode.
+     */
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+
+    /**
+     * How long an idle fallback thread is kept alive.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Bounded executor for the fallback mode, when the sub-resources are fetched separately.
+     * The fetch waits for them in a thread of {@link TaskScheduler}, so they run outside of it.
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_REQUESTS, MAX_PARALLEL_REQUESTS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Coalesces concurrent fetches of the same movie, e.g. after a double tap on the poster.
+     */
+    private static final SingleFlight sSingleFlight = new SingleFlight();
+
+    /**
+     * Fetches the movie with its cast, reviews and trailers in a single round trip using
+     * append_to_response. If any of the sub-resources was not appended by the API, the
+     * missing ones are fetched in parallel.
+     * <p>
+     * Concurrent fetches of the same movie share one request and each of them receives its own
+     * copy of the movie.
+     *
+     * @param movieId of the movie in themoviedb.org
+     * @return movie with cast, reviews and trailers lists
+     * @throws IOException Related to network and stream reading.
+     */
+    public static Movie fetchMovie(String movieId) throws IOException {
+        return fetchMovie(movieId, null);
+    }
+
+    /**
+     * Fetches the movie like {@link #fetchMovie(String)}, but the combined request can be
+     * cancelled. Fallback requests of the missing sub-resources are not started after the
+     * signal has been cancelled.
+     * <p>
+     * Shared fetch is cancelled by the signal of the caller which has started it. Callers
+     * which have joined it and have not been cancelled repeat the fetch.
+     *
+     * @param movieId            of the movie in themoviedb.org
+     * @param cancellationSignal of the caller, may be null
+     * @return movie with cast, reviews and trailers lists
+     * @throws IOException                Related to network and stream reading.
+     * @throws OperationCanceledException when the signal has been cancelled.
+     */
+    public static Movie fetchMovie(final String movieId,
+                                   final CancellationSignal cancellationSignal)
+            throws IOException {
+        while (true) {
+            try {
+                return sSingleFlight.execute(movieId, new Callable<Movie>() {
+                    @Override
+                    public Movie call() throws IOException {
+                        return fetchCombined(movieId, cancellationSignal);
+                    }
+                });
+            } catch (OperationCanceledException e) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    throw e;
+                }
+                // Fetch has been cancelled by another caller, this one still wants the movie.
+            }
+        }
+    }
+
+    /**
+     * Fetches the movie with its cast, reviews and trailers in exactly one request using
+     * append_to_response, with the background priority. Sub-resources missing in the response
+     * are not fetched separately and their lists are left null.
+     *
+     * @param movieId of the movie in themoviedb.org
+     * @return movie with the appended lists
+     * @throws IOException Related to network and stream reading.
+     */
+    public static Movie fetchMovieInBackground(String movieId) throws IOException {
+        return NetworkUtils.getParsedResponseFromUrl(NetworkUtils.buildMovieDetailsUrl(movieId),
+                TheMoviesDbJsonUtils.MOVIE_PARSER, 0, RequestScheduler.PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * Fetches the movie using append_to_response and completes missing sub-resources.
+     *
+     * @param movieId            of the movie in themoviedb.org
+     * @param cancellationSignal of the caller, may be null
+     * @return movie with cast, reviews and trailers lists
+     * @throws IOException Related to network and stream reading.
+     */
+    private static Movie fetchCombined(String movieId, CancellationSignal cancellationSignal)
+            throws IOException {
+        Movie movie = NetworkUtils.getParsedResponseFromUrl(
+                NetworkUtils.buildMovieDetailsUrl(movieId), TheMoviesDbJsonUtils.MOVIE_PARSER,
+                0, RequestScheduler.PRIORITY_INTERACTIVE, cancellationSignal);
+
+        // Missing sub-resources of the cancelled fetch are not requested.
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        Future<ArrayList<Cast>> cast = null;
+        Future<ArrayList<Review>> reviews = null;
+        Future<ArrayList<Trailer>> trailers = null;
+
+        if (movie.getCastList() == null) {
+            cast = submit(NetworkUtils.buildCastMembersUrl(movieId),
+                    TheMoviesDbJsonUtils.CAST_PARSER);
+        }
+        if (movie.getReviewsList() == null) {
+            reviews = submit(NetworkUtils.buildReviewsUrl(movieId),
+                    TheMoviesDbJsonUtils.REVIEWS_PARSER);
+        }
+        if (movie.getTrailers() == null) {
+            trailers = submit(NetworkUtils.buildTrailersUrl(movieId),
+                    TheMoviesDbJsonUtils.TRAILERS_PARSER);
+        }
+
+        if (cast != null) {
+            movie.setCastList(await(cast));
+        }
+        if (reviews != null) {
+            movie.setReviewsList(await(reviews));
+        }
+        if (trailers != null) {
+            movie.setTrailers(await(trailers));
+        }
+
+        return movie;
+    }
+
+    /**
+     * Submits the request to the bounded executor.
+     *
+     * @param url    of the request
+     * @param parser for the response
+     * @param <T>    type of the parsed result
+     * @return future with the parsed response
+     */
+    private static <T> Future<T> submit(final URL url, final NetworkUtils.ResponseParser<T> parser) {
+        return sExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                return NetworkUtils.getParsedResponseFromUrl(url, parser, 0,
+                        RequestScheduler.PRIORITY_INTERACTIVE);
+            }
+        });
+    }
+
+    /**
+     * Waits for the result of the submitted request.
+     *
+     * @param future of the request
+     * @param <T>    type of the parsed result
+     * @return parsed response
+     * @throws IOException thrown by the request or when waiting has been interrupted
+     */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching movie details");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to fetch movie details", e.getCause());
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package android.nextlevel_global.com.popularmovies.utilities;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.nextlevel_global.com.popularmovies.BuildConfig;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.JsonReader;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 
 /**
  * Utilities used to communicate with the themoviedb.org servers.
@@ -54,6 +64,18 @@ public class NetworkUtils {
      */
     private static final String MOVIE_TRAILERS_ENDPOINT = "trailers";
 
+    /**
+     * Sub-resources appended to the single movie response, so the movie details, cast, reviews
+     * and trailers are fetched within a single request.
+     */
+    private static final String MOVIE_DETAILS_APPENDED_ENDPOINTS =
+            MOVIE_CASTS_ENDPOINT + "," + MOVIE_REVIEWS_ENDPOINT + "," + MOVIE_TRAILERS_ENDPOINT;
+
+    /**
+     * Query param key name used to append sub-resources to the response.
+     */
+    private final static String APPEND_TO_RESPONSE_PARAM = "append_to_response";
+
     /**
      * API key query param key name.
      */
@@ -64,6 +86,169 @@ public class NetworkUtils {
      */
     private final static String PAGE_PARAM = "page";
 
+    /**
+     * Maximum number of idle connections kept in the pool. API and image traffic share it.
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 6;
+
+    /**
+     * How long an idle connection is kept alive in the pool.
+     */
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+
+    /**
+     * Connect and read timeout for the single call.
+     */
+    private static final long TIMEOUT_SECONDS = 15;
+
+    /**
+     * Name of the HTTP cache directory (inside application cache directory).
+     */
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+
+    /**
+     * Maximum size of the HTTP disk cache. It is shared by API responses and Picasso images,
+     * least recently used entries are evicted first.
+     */
+    private static final long HTTP_CACHE_SIZE_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Latency measurements for all of the calls made by the shared client.
+     */
+    private static final EndpointLatencyInterceptor sLatencyInterceptor =
+            new EndpointLatencyInterceptor();
+
+    /**
+     * HTTP disk cache counters.
+     */
+    private static final CacheStatsInterceptor sCacheStatsInterceptor =
+            new CacheStatsInterceptor();
+
+    /**
+     * Coalesces concurrent requests for the same URL.
+     */
+    private static final SingleFlight sSingleFlight = new SingleFlight();
+
+    /**
+     * Keeps the API calls within the rate limit and retries the failed ones.
+     */
+    private static final RequestScheduler sRequestScheduler = new RequestScheduler();
+
+    /**
+     * HTTP disk cache. It is null until {@link #init(Context)} is called.
+     */
+    private static Cache sHttpCache;
+
+    /**
+     * HTTP client shared by the whole application.
+     */
+    private static OkHttpClient sHttpClient;
+
+    /**
+     * Transport which executes the API calls. It is the shared HTTP client, unless it has been
+     * replaced with {@link #setTransport(Transport)}.
+     */
+    private static Transport sTransport;
+
+    /**
+     * Initializes the HTTP disk cache. It has to be called before the first use of the shared
+     * HTTP client, otherwise the client will work without the cache.
+     *
+     * @param context of the application.
+     */
+    public static synchronized void init(Context context) {
+        if (sHttpCache == null) {
+            File cacheDirectory = new File(context.getCacheDir(), HTTP_CACHE_DIRECTORY);
+            sHttpCache = new Cache(cacheDirectory, HTTP_CACHE_SIZE_BYTES);
+        }
+    }
+
+    /**
+     * Gets the HTTP disk cache counters.
+     *
+     * @return hit, miss and revalidation counters
+     */
+    public static CacheStatsInterceptor getCacheStats() {
+        return sCacheStatsInterceptor;
+    }
+
+    /**
+     * Parser which reads the model straight from the response stream.
+     *
+     * @param <T> type of the parsed result
+     */
+    public interface ResponseParser<T> {
+        T parse(JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Gets the HTTP client shared by the API calls and Picasso image downloads.
+     * Connections are kept alive in a bounded pool, so subsequent calls to the same host reuse
+     * the socket and the TLS session instead of doing a new handshake. The gzip compression is
+     * negotiated and decoded transparently by the client.
+     * <p>
+     * Responses are stored in the disk cache honouring Cache-Control headers. Stale responses
+     * are revalidated with If-None-Match/If-Modified-Since, so an unchanged resource comes
+     * back as 304 and its body is served from the disk.
+     * <p>
+     * API calls are rate limited by the {@link RequestScheduler}, which also retries the calls
+     * failed due to the rate limit, server or network errors.
+     *
+     * @return shared HTTP client
+     */
+    public static synchronized OkHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            sHttpClient = new OkHttpClient.Builder()
+                    .cache(sHttpCache)
+                    .connectionPool(new ConnectionPool(
+                            MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .addInterceptor(sLatencyInterceptor)
+                    .addInterceptor(sCacheStatsInterceptor)
+                    .addInterceptor(sRequestScheduler.getRetryInterceptor())
+                    .build();
+        }
+
+        return sHttpClient;
+    }
+
+    /**
+     * Replaces the transport of the API calls, e.g. with the replay transport of the tests to
+     * measure the pipelines without the network. Picasso image downloads are not affected.
+     * Failures and rate limit of the previous transport are forgotten, so they don't affect
+     * the calls of the new one.
+     *
+     * @param transport to use, null to restore the shared HTTP client
+     */
+    @VisibleForTesting
+    public static synchronized void setTransport(Transport transport) {
+        sTransport = transport;
+        sRequestScheduler.reset();
+    }
+
+    /**
+     * Gets the transport of the API calls.
+     *
+     * @return current transport
+     */
+    private static synchronized Transport getTransport() {
+        if (sTransport == null) {
+            sTransport = new OkHttpTransport(getHttpClient());
+        }
+
+        return sTransport;
+    }
+
+    /**
+     * Gets the latency statistics of the calls made by the shared client.
+     *
+     * @return statistics keyed by the endpoint name (e.g. popular, movie, movie/casts, images)
+     */
+    public static Map<String, EndpointLatencyInterceptor.Stats> getLatencyStats() {
+        return sLatencyInterceptor.getStats();
+    }
+
     /**
      * Builds the URL used to get the movies ordered by most popular ones.
      *
@@ -117,6 +302,26 @@ public class NetworkUtils {
         return new URL(uri.toString());
     }
 
+    /**
+     * Builds the URL used to get selected movie together with its cast members, reviews and
+     * trailers from themoviedb.org API.
+     *
+     * @param movieId of the selected movie.
+     * @return The URL to use to query the themoviedb.org API.
+     * @throws MalformedURLException
+     */
+    public static URL buildMovieDetailsUrl(String movieId) throws MalformedURLException {
+        Uri uri = Uri.parse(THEMOVIEDB_API_URL)
+                .buildUpon()
+                .appendPath(movieId)
+                .appendQueryParameter(APPEND_TO_RESPONSE_PARAM, MOVIE_DETAILS_APPENDED_ENDPOINTS)
+                .appendQueryParameter(NetworkUtils.API_PARAM, BuildConfig.THE_MOVIE_DB_API_KEY)
+                .build();
+
+        Log.v(TAG, "Fetch movie details from: " + uri.toString());
+        return new URL(uri.toString());
+    }
+
     /**
      * Builds the URL used to get a cast members for the selected movie from themoviedb.org API.
      *
@@ -182,24 +387,199 @@ public class NetworkUtils {
      * @throws IOException Related to network and stream reading.
      */
     public static String getResponseFromUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        Response response = execute(url, 0, RequestScheduler.PRIORITY_NORMAL, null);
         try {
-            InputStream in = urlConnection.getInputStream();
+            String body = response.body().string();
+            return body.isEmpty() ? null : body;
+        } finally {
+            // Closing the response releases the connection back to the pool.
+            response.close();
+        }
+    }
+
+    /**
+     * Method parses the API response directly from the response stream, without reading it into
+     * the intermediate string.
+     * <p>
+     * Concurrent calls for the same URL and parser are coalesced: only the first one hits the
+     * network and the rest wait for it and receive their own copy of the parsed result.
+     *
+     * @param url    The URL containing data.
+     * @param parser used to read the model from the response.
+     * @param <T>    type of the parsed result
+     * @return The parsed contents of the API response.
+     * @throws IOException Related to network, stream reading or malformed response.
+     */
+    public static <T> T getParsedResponseFromUrl(URL url, ResponseParser<T> parser)
+            throws IOException {
+        return getParsedResponseFromUrl(url, parser, 0);
+    }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+    /**
+     * Method parses the API response like {@link #getParsedResponseFromUrl(URL, ResponseParser)},
+     * but it accepts a cached response which is stale for up to the given number of seconds.
+     * It lets pages which are still in the HTTP cache be synced again without the network.
+     *
+     * @param url             The URL containing data.
+     * @param parser          used to read the model from the response.
+     * @param maxStaleSeconds how long the cached response may be stale, 0 for none.
+     * @param <T>             type of the parsed result
+     * @return The parsed contents of the API response.
+     * @throws IOException Related to network, stream reading or malformed response.
+     */
+    public static <T> T getParsedResponseFromUrl(URL url, ResponseParser<T> parser,
+                                                 int maxStaleSeconds) throws IOException {
+        return getParsedResponseFromUrl(url, parser, maxStaleSeconds,
+                RequestScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Method parses the API response like {@link #getParsedResponseFromUrl(URL, ResponseParser, int)}
+     * with the given request priority. When the rate limit is close, requests with the lower
+     * priority wait, so the ones the user is looking at go first.
+     *
+     * @param url             The URL containing data.
+     * @param parser          used to read the model from the response.
+     * @param maxStaleSeconds how long the cached response may be stale, 0 for none.
+     * @param priority        of the request, one of RequestScheduler.PRIORITY_* constants.
+     * @param <T>             type of the parsed result
+     * @return The parsed contents of the API response.
+     * @throws IOException Related to network, stream reading or malformed response.
+     */
+    public static <T> T getParsedResponseFromUrl(URL url, ResponseParser<T> parser,
+                                                 int maxStaleSeconds, int priority)
+            throws IOException {
+        return getParsedResponseFromUrl(url, parser, maxStaleSeconds, priority, null);
+    }
 
-            boolean hasInput = scanner.hasNext();
-            if (hasInput) {
-                return scanner.next();
-            } else {
-                return null;
+    /**
+     * Method parses the API response like
+     * {@link #getParsedResponseFromUrl(URL, ResponseParser, int, int)}, but the request can be
+     * cancelled. Cancelled signal aborts the call and the read of its response, so the caller
+     * doesn't wait for the response it is not interested in anymore.
+     * <p>
+     * Only the calls with the same staleness and priority are coalesced, so the call the user
+     * is waiting for never waits behind the rate limit reserve of a background one.
+     * Coalesced call is cancelled by the signal of the caller which executes it. Callers which
+     * have joined it and have not been cancelled repeat the call.
+     *
+     * @param url                The URL containing data.
+     * @param parser             used to read the model from the response.
+     * @param maxStaleSeconds    how long the cached response may be stale, 0 for none.
+     * @param priority           of the request, one of RequestScheduler.PRIORITY_* constants.
+     * @param cancellationSignal of the caller, may be null
+     * @param <T>                type of the parsed result
+     * @return The parsed contents of the API response.
+     * @throws IOException                Related to network, stream reading or malformed
+     *                                    response.
+     * @throws OperationCanceledException when the signal has been cancelled.
+     */
+    public static <T> T getParsedResponseFromUrl(final URL url, final ResponseParser<T> parser,
+                                                 final int maxStaleSeconds, final int priority,
+                                                 final CancellationSignal cancellationSignal)
+            throws IOException {
+        String key = url.toString() + "#" + parser.getClass().getName() + "#" +
+                maxStaleSeconds + "#" + priority;
+
+        while (true) {
+            try {
+                return sSingleFlight.execute(key, new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return fetchAndParse(url, parser, maxStaleSeconds, priority,
+                                cancellationSignal);
+                    }
+                });
+            } catch (OperationCanceledException e) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    throw e;
+                }
+                // Call has been cancelled by another caller, this one still wants the result.
             }
+        }
+    }
+
+    /**
+     * Performs the call and parses the response stream.
+     *
+     * @param url                The URL containing data.
+     * @param parser             used to read the model from the response.
+     * @param maxStaleSeconds    how long the cached response may be stale, 0 for none.
+     * @param priority           of the request.
+     * @param cancellationSignal of the caller, may be null
+     * @param <T>                type of the parsed result
+     * @return The parsed contents of the API response.
+     * @throws IOException                Related to network, stream reading or malformed
+     *                                    response.
+     * @throws OperationCanceledException when the signal has been cancelled.
+     */
+    private static <T> T fetchAndParse(URL url, ResponseParser<T> parser, int maxStaleSeconds,
+                                       int priority, CancellationSignal cancellationSignal)
+            throws IOException {
+        try {
+            Response response = execute(url, maxStaleSeconds, priority, cancellationSignal);
+            try {
+                JsonReader reader = new JsonReader(response.body().charStream());
+                try {
+                    return parser.parse(reader);
+                } catch (IllegalStateException | NumberFormatException e) {
+                    // Response has a different structure than expected.
+                    throw new IOException("Unable to parse response from " + url, e);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                // Closing the response releases the connection back to the pool.
+                response.close();
+            }
+        } catch (IOException e) {
+            // Cancelled call fails on its socket, it is not a network error.
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                throw new OperationCanceledException("Request for " + url + " cancelled");
+            }
+            throw e;
         } finally {
-            urlConnection.disconnect();
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
         }
     }
 
+    /**
+     * Executes the call with the current transport. Response must be closed by the caller.
+     *
+     * @param url                The URL containing data.
+     * @param maxStaleSeconds    how long the cached response may be stale, 0 for none.
+     * @param priority           of the request, it is passed to the scheduler in the request
+     *                           tag.
+     * @param cancellationSignal of the caller, may be null. It is passed to the scheduler in
+     *                           the request tag too, so the cancelled call is not retried.
+     * @return successful response
+     * @throws IOException Related to network or unsuccessful response code.
+     */
+    private static Response execute(URL url, int maxStaleSeconds, int priority,
+                                    CancellationSignal cancellationSignal) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .tag(new RequestScheduler.RequestTag(priority, cancellationSignal));
+
+        if (maxStaleSeconds > 0) {
+            builder.cacheControl(new CacheControl.Builder()
+                    .maxStale(maxStaleSeconds, TimeUnit.SECONDS)
+                    .build());
+        }
+
+        Request request = builder.build();
+
+        Response response = getTransport().execute(request, cancellationSignal);
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("Unexpected response code " + response.code() + " for " + url);
+        }
+
+        return response;
+    }
+
     /**
      * Check current internet connection status.
      *
@@ -207,10 +587,6 @@ public class NetworkUtils {
      * @return status of the internet connection
      */
     public static boolean checkInternetConnection(Context context) {
-        ConnectivityManager connectivityManager =
-                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-
-        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
-        return networkInfo != null && networkInfo.isConnectedOrConnecting();
+        return getTransport().isConnected(context);
     }
 }
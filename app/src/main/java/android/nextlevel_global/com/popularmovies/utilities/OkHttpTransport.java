@@ -0,0 +1,67 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.v4.os.CancellationSignal;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Transport which executes requests with the HTTP client over the network.
+ */
+public class OkHttpTransport implements Transport {
+
+    private final OkHttpClient mClient;
+
+    /**
+     * @param client used to execute requests
+     */
+    public OkHttpTransport(OkHttpClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public Response execute(Request request, CancellationSignal cancellationSignal)
+            throws IOException {
+        return execute(mClient.newCall(request), cancellationSignal);
+    }
+
+    @Override
+    public boolean isConnected(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnectedOrConnecting();
+    }
+
+    /**
+     * Executes the call, which is cancelled together with the signal. Cancelled call closes
+     * its socket, so the blocked read fails at once.
+     *
+     * @param call               to execute
+     * @param cancellationSignal of the caller, may be null
+     * @return response of any status code
+     * @throws IOException Related to network or the cancelled call.
+     */
+    static Response execute(final Call call, CancellationSignal cancellationSignal)
+            throws IOException {
+        if (cancellationSignal != null) {
+            // Listener is called at once if the signal has already been cancelled.
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    call.cancel();
+                }
+            });
+        }
+
+        return call.execute();
+    }
+}
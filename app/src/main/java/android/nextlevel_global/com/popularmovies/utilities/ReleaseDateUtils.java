@@ -0,0 +1,68 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.nextlevel_global.com.popularmovies.models.Movie;
+import android.text.TextUtils;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions of the release dates. Dates are stored as the number of days since
+ * 1970-01-01 (epoch day), so they can be sorted and filtered as numbers.
+ */
+public class ReleaseDateUtils {
+
+    /**
+     * Format of the release dates in themoviedb.org API.
+     */
+    private static final String API_DATE_FORMAT = "yyyy-MM-dd";
+
+    /**
+     * Converts the release date from the API to the epoch day.
+     *
+     * @param date in the yyyy-MM-dd format
+     * @return epoch day, or {@link Movie#UNKNOWN_RELEASE_DATE} if the date is missing or invalid
+     */
+    public static long parseEpochDay(String date) {
+        if (TextUtils.isEmpty(date)) {
+            return Movie.UNKNOWN_RELEASE_DATE;
+        }
+
+        try {
+            return TimeUnit.MILLISECONDS.toDays(createDateFormat().parse(date).getTime());
+        } catch (ParseException e) {
+            return Movie.UNKNOWN_RELEASE_DATE;
+        }
+    }
+
+    /**
+     * Converts the epoch day to the release date in the API format.
+     *
+     * @param epochDay of the release
+     * @return date in the yyyy-MM-dd format, empty if the date is unknown
+     */
+    public static String formatEpochDay(long epochDay) {
+        if (epochDay == Movie.UNKNOWN_RELEASE_DATE) {
+            return "";
+        }
+
+        return createDateFormat().format(new Date(TimeUnit.DAYS.toMillis(epochDay)));
+    }
+
+    /**
+     * Date format is not thread safe, so every conversion has its own.
+     *
+     * @return format of the API dates in UTC
+     */
+    private static DateFormat createDateFormat() {
+        DateFormat format = new SimpleDateFormat(API_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+}
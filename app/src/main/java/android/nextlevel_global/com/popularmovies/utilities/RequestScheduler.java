@@ -0,0 +1,525 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Schedules requests to themoviedb.org API, so heavy users don't exceed the API rate limit.
+ * <p>
+ * It is an application interceptor. It limits the request rate with a token bucket (cache hits
+ * don't use tokens). The token is taken before the call gets a connection, so a request
+ * waiting for the rate limit doesn't hold a pooled connection. Requests with a lower priority
+ * leave a reserve of tokens for the higher ones, so visible details go ahead of the background
+ * prefetches. It retries rate limited (429) requests after Retry-After, retries server and I/O
+ * errors with exponential backoff with jitter, and stops calling a failing host with a circuit
+ * breaker.
+ * <p>
+ * Cancelled call fails like the broken connection, so the request carries the cancellation
+ * signal of its caller in its {@link RequestTag}. Failure of the cancelled call is not counted
+ * by the circuit breaker and the call is not retried.
+ */
+public class RequestScheduler {
+
+    private static final String TAG = RequestScheduler.class.getSimpleName();
+
+    /**
+     * Request priority for the data the user is waiting for on the screen (e.g. movie details).
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+
+    /**
+     * Request priority for the regular data loads (e.g. list pages).
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Request priority for speculative work (e.g. prefetches).
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    /**
+     * Tokens which have to be left in the bucket for the higher priorities, indexed by priority.
+     */
+    private static final int[] TOKEN_RESERVE = {0, 1, 3};
+
+    /**
+     * Host of the rate limited API.
+     */
+    private static final String API_HOST = "api.themoviedb.org";
+
+    /**
+     * Size of the token bucket (maximum burst of the requests).
+     */
+    private static final double BUCKET_CAPACITY = 10;
+
+    /**
+     * Number of tokens added to the bucket per second (sustained request rate).
+     */
+    private static final double TOKENS_PER_SECOND = 4;
+
+    /**
+     * HTTP status code returned when the rate limit is exceeded.
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * HTTP status code returned by the cache when it can't answer an only-if-cached request.
+     */
+    private static final int HTTP_GATEWAY_TIMEOUT = 504;
+
+    /**
+     * Maximum number of retries of a single request.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Base delay of the exponential backoff.
+     */
+    private static final long BACKOFF_BASE_MILLIS = 500;
+
+    /**
+     * The longest delay before a retry (also caps the Retry-After value).
+     */
+    private static final long MAX_RETRY_DELAY_MILLIS = 10000;
+
+    /**
+     * Number of consecutive failures which opens the circuit of the host.
+     */
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * How long the open circuit rejects requests before a trial request is let through.
+     */
+    private static final long CIRCUIT_OPEN_MILLIS = 30000;
+
+    /**
+     * How often the retry delay checks whether the call has been cancelled.
+     */
+    private static final long CANCEL_POLL_MILLIS = 100;
+
+    private final Random mRandom = new Random();
+
+    /**
+     * Lock and state of the token bucket.
+     */
+    private final Object mBucketLock = new Object();
+    private double mTokens = BUCKET_CAPACITY;
+    private long mLastRefillTime = SystemClock.elapsedRealtime();
+
+    /**
+     * Circuit breakers keyed by the host name.
+     */
+    private final Map<String, CircuitBreaker> mCircuitBreakers = new HashMap<>();
+
+    /**
+     * Interceptor which limits the request rate, retries failed requests and guards hosts with
+     * the circuit breaker. It has to be added as an application interceptor.
+     */
+    private final Interceptor mRetryInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            return proceedWithRetries(chain);
+        }
+    };
+
+    /**
+     * @return interceptor to add with OkHttpClient.Builder#addInterceptor
+     */
+    public Interceptor getRetryInterceptor() {
+        return mRetryInterceptor;
+    }
+
+    /**
+     * Forgets the failures of the hosts and refills the token bucket.
+     */
+    void reset() {
+        synchronized (mCircuitBreakers) {
+            mCircuitBreakers.clear();
+        }
+        synchronized (mBucketLock) {
+            mTokens = BUCKET_CAPACITY;
+            mLastRefillTime = SystemClock.elapsedRealtime();
+            mBucketLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the priority of the request. It is passed as the request tag.
+     *
+     * @param request to check
+     * @return priority of the request, normal if it is not set
+     */
+    private static int getPriority(Request request) {
+        Object tag = request.tag();
+        if (tag instanceof RequestTag) {
+            tag = ((RequestTag) tag).mPriority;
+        }
+        if (tag instanceof Integer) {
+            int priority = (Integer) tag;
+            if (priority >= PRIORITY_INTERACTIVE && priority <= PRIORITY_BACKGROUND) {
+                return priority;
+            }
+        }
+
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * Checks whether the caller of the request has cancelled it.
+     *
+     * @param request to check
+     * @return true if the cancellation signal in the request tag has been cancelled
+     */
+    static boolean isCanceled(Request request) {
+        Object tag = request.tag();
+        if (tag instanceof RequestTag) {
+            CancellationSignal cancellationSignal = ((RequestTag) tag).mCancellationSignal;
+            return cancellationSignal != null && cancellationSignal.isCanceled();
+        }
+
+        return false;
+    }
+
+    /**
+     * Fails the cancelled request the same way as the cancelled call does.
+     *
+     * @param request to check
+     * @throws IOException when the request has been cancelled
+     */
+    private static void throwIfCanceled(Request request) throws IOException {
+        if (isCanceled(request)) {
+            throw new IOException("Canceled");
+        }
+    }
+
+    /**
+     * Proceeds the request, retrying it on rate limit, server errors and I/O errors.
+     *
+     * @param chain of the interceptors
+     * @return response
+     * @throws IOException when request fails after all retries or the circuit is open
+     */
+    private Response proceedWithRetries(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        boolean isRateLimited = API_HOST.equals(request.url().host());
+
+        if (isRateLimited) {
+            // Cache hits don't use tokens and don't depend on the state of the host.
+            Response cachedResponse = proceedFromCache(chain, request);
+            if (cachedResponse != null) {
+                return cachedResponse;
+            }
+        }
+
+        CircuitBreaker circuitBreaker = getCircuitBreaker(request.url().host());
+        for (int attempt = 0; ; attempt++) {
+            // Cancelled request must not take the trial of the open circuit.
+            throwIfCanceled(request);
+            if (!circuitBreaker.allowRequest()) {
+                throw new IOException("Circuit open for " + request.url().host());
+            }
+
+            Response response;
+            boolean isRecorded = false;
+            try {
+                if (isRateLimited) {
+                    acquireToken(getPriority(request));
+                    throwIfCanceled(request);
+                }
+                try {
+                    response = chain.proceed(request);
+                } catch (SocketTimeoutException e) {
+                    if (isCanceled(request)) {
+                        throw e;
+                    }
+                    circuitBreaker.onFailure();
+                    isRecorded = true;
+                    if (attempt >= MAX_RETRIES) {
+                        throw e;
+                    }
+
+                    Log.v(TAG, "Retrying " + request.url().encodedPath() + " after timeout");
+                    sleep(request, backoffDelay(attempt));
+                    continue;
+                } catch (InterruptedIOException e) {
+                    // The call has been interrupted, it is not a failure of the host.
+                    throw e;
+                } catch (IOException e) {
+                    // Cancelled call fails on its closed socket, it is not a failure of the host.
+                    if (isCanceled(request)) {
+                        throw e;
+                    }
+                    circuitBreaker.onFailure();
+                    isRecorded = true;
+                    if (attempt >= MAX_RETRIES) {
+                        throw e;
+                    }
+
+                    Log.v(TAG, "Retrying " + request.url().encodedPath() + " after: " +
+                            e.getMessage());
+                    sleep(request, backoffDelay(attempt));
+                    continue;
+                }
+
+                int code = response.code();
+                boolean isTooManyRequests = code == HTTP_TOO_MANY_REQUESTS;
+                boolean isServerError = code >= 500;
+                if (!isTooManyRequests && !isServerError) {
+                    circuitBreaker.onSuccess();
+                    isRecorded = true;
+                    return response;
+                }
+
+                circuitBreaker.onFailure();
+                isRecorded = true;
+                if (attempt >= MAX_RETRIES || isCanceled(request)) {
+                    return response;
+                }
+
+                long delay = backoffDelay(attempt);
+                if (isTooManyRequests) {
+                    delay = Math.max(delay, retryAfterDelay(response));
+                }
+                response.close();
+
+                Log.v(TAG, "Retrying " + request.url().encodedPath() + " after HTTP " + code
+                        + " in " + delay + "ms");
+                sleep(request, delay);
+            } finally {
+                // Attempt which has neither failed nor succeeded must not keep the trial.
+                if (!isRecorded) {
+                    circuitBreaker.onAbandoned();
+                }
+            }
+        }
+    }
+
+    /**
+     * Proceeds the request only if it can be answered by the HTTP cache.
+     *
+     * @param chain   of the interceptors
+     * @param request to proceed
+     * @return cached response or null if the request has to go to the network
+     * @throws IOException when the cache can't be read
+     */
+    private static Response proceedFromCache(Interceptor.Chain chain, Request request)
+            throws IOException {
+        CacheControl cacheControl = request.cacheControl();
+        if (cacheControl.noCache() || cacheControl.noStore()) {
+            return null;
+        }
+
+        CacheControl.Builder builder = new CacheControl.Builder().onlyIfCached();
+        if (cacheControl.maxStaleSeconds() != -1) {
+            builder.maxStale(cacheControl.maxStaleSeconds(), TimeUnit.SECONDS);
+        }
+
+        Response response = chain.proceed(request.newBuilder()
+                .cacheControl(builder.build())
+                .build());
+        if (response.code() == HTTP_GATEWAY_TIMEOUT) {
+            // The cache has no usable response.
+            response.close();
+            return null;
+        }
+
+        return response;
+    }
+
+    /**
+     * Takes a token from the bucket, waiting until it is available for the given priority.
+     *
+     * @param priority of the request
+     * @throws IOException when waiting has been interrupted
+     */
+    private void acquireToken(int priority) throws IOException {
+        double required = 1 + TOKEN_RESERVE[priority];
+
+        synchronized (mBucketLock) {
+            while (true) {
+                refillTokens();
+                if (mTokens >= required) {
+                    mTokens -= 1;
+                    return;
+                }
+
+                long waitMillis = (long) Math.ceil((required - mTokens) * 1000 / TOKENS_PER_SECOND);
+                try {
+                    mBucketLock.wait(Math.max(1, waitMillis));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for rate limit");
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds tokens for the time elapsed since the last refill. Must hold the bucket lock.
+     */
+    private void refillTokens() {
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min(BUCKET_CAPACITY,
+                mTokens + (now - mLastRefillTime) * TOKENS_PER_SECOND / 1000);
+        mLastRefillTime = now;
+    }
+
+    /**
+     * Computes exponential backoff delay with full jitter.
+     *
+     * @param attempt number of the failed attempt (starting from 0)
+     * @return delay in milliseconds
+     */
+    private long backoffDelay(int attempt) {
+        long maxDelay = Math.min(MAX_RETRY_DELAY_MILLIS, BACKOFF_BASE_MILLIS << attempt);
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * maxDelay);
+        }
+    }
+
+    /**
+     * Reads the delay from Retry-After header (in seconds).
+     *
+     * @param response with 429 status code
+     * @return delay in milliseconds, 0 if the header is missing or malformed
+     */
+    private static long retryAfterDelay(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+
+        try {
+            return Math.min(MAX_RETRY_DELAY_MILLIS, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sleeps before the retry. Sleeping ends early when the request is cancelled.
+     *
+     * @param request to retry
+     * @param millis  to sleep
+     * @throws IOException when sleeping has been interrupted or the request cancelled
+     */
+    private static void sleep(Request request, long millis) throws IOException {
+        long end = SystemClock.elapsedRealtime() + millis;
+        try {
+            for (long left = millis; left > 0; left = end - SystemClock.elapsedRealtime()) {
+                throwIfCanceled(request);
+                Thread.sleep(Math.min(left, CANCEL_POLL_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for retry");
+        }
+    }
+
+    /**
+     * Gets the circuit breaker of the host.
+     *
+     * @param host name
+     * @return circuit breaker
+     */
+    private CircuitBreaker getCircuitBreaker(String host) {
+        synchronized (mCircuitBreakers) {
+            CircuitBreaker circuitBreaker = mCircuitBreakers.get(host);
+            if (circuitBreaker == null) {
+                circuitBreaker = new CircuitBreaker();
+                mCircuitBreakers.put(host, circuitBreaker);
+            }
+            return circuitBreaker;
+        }
+    }
+
+    /**
+     * Tag of the API request. It carries the priority of the request and the cancellation
+     * signal of its caller.
+     */
+    public static class RequestTag {
+        private final int mPriority;
+        private final CancellationSignal mCancellationSignal;
+
+        /**
+         * @param priority           of the request, one of PRIORITY_* constants
+         * @param cancellationSignal of the caller, may be null
+         */
+        public RequestTag(int priority, CancellationSignal cancellationSignal) {
+            mPriority = priority;
+            mCancellationSignal = cancellationSignal;
+        }
+    }
+
+    /**
+     * Circuit breaker of the single host. After a series of failures it rejects requests for
+     * a while, then it lets one trial request through and closes again if it succeeds.
+     */
+    private static class CircuitBreaker {
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean isOpen;
+        private boolean isTrialInFlight;
+
+        /**
+         * Thread which makes the trial request. Requests run on the thread of their caller.
+         */
+        private Thread trialThread;
+
+        synchronized boolean allowRequest() {
+            if (!isOpen) {
+                return true;
+            }
+
+            if (!isTrialInFlight && SystemClock.elapsedRealtime() - openedAt >= CIRCUIT_OPEN_MILLIS) {
+                isTrialInFlight = true;
+                trialThread = Thread.currentThread();
+                return true;
+            }
+
+            return false;
+        }
+
+        synchronized void onSuccess() {
+            consecutiveFailures = 0;
+            isOpen = false;
+            isTrialInFlight = false;
+            trialThread = null;
+        }
+
+        synchronized void onFailure() {
+            consecutiveFailures++;
+            if (isTrialInFlight || consecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+                isOpen = true;
+                isTrialInFlight = false;
+                trialThread = null;
+                openedAt = SystemClock.elapsedRealtime();
+            }
+        }
+
+        /**
+         * Called when the request has ended without a result, e.g. it has been interrupted.
+         * If it was the trial, the next request may be the trial instead.
+         */
+        synchronized void onAbandoned() {
+            if (isTrialInFlight && trialThread == Thread.currentThread()) {
+                isTrialInFlight = false;
+                trialThread = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.os.Parcel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same resource. The first caller executes the call in its
+ * own thread and every caller which arrives while the call is still in flight waits for it and
+ * receives its own copy of the result (or the same exception), so the callers can change
+ * their results without affecting each other.
+ * <p>
+ * Results are copied through a parcel, so they have to be strings, models or lists of them.
+ */
+class SingleFlight {
+
+    /**
+     * Calls currently in flight, keyed by the resource key.
+     */
+    private final Map<String, Flight<?>> mInFlight = new HashMap<>();
+
+    /**
+     * Executes the call or joins the one which is already in flight for the same key.
+     *
+     * @param key      of the resource, e.g. request URL
+     * @param callable which fetches the resource
+     * @param <T>      type of the result
+     * @return result of the call, copied if other callers have joined it
+     * @throws IOException thrown by the call or when waiting has been interrupted
+     */
+    @SuppressWarnings("unchecked")
+    <T> T execute(String key, Callable<T> callable) throws IOException {
+        Flight<T> flight;
+        boolean isOwner = false;
+
+        synchronized (mInFlight) {
+            flight = (Flight<T>) mInFlight.get(key);
+            if (flight == null) {
+                flight = new Flight<>(callable);
+                mInFlight.put(key, flight);
+                isOwner = true;
+            } else {
+                flight.mIsJoined = true;
+            }
+        }
+
+        boolean isShared = true;
+        if (isOwner) {
+            try {
+                flight.mTask.run();
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(key);
+                    isShared = flight.mIsJoined;
+                }
+            }
+        }
+
+        try {
+            // Shared result stays untouched, so every caller can copy it at any time.
+            T result = flight.mTask.get();
+            return isShared ? copy(result) : result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Call for " + key + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Copies the shared result for the caller.
+     *
+     * @param result of the call
+     * @param <T>    type of the result
+     * @return copy of the result
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T result) {
+        if (result == null || result instanceof String) {
+            return result;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeValue(result);
+            parcel.setDataPosition(0);
+            return (T) parcel.readValue(SingleFlight.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @return number of calls currently in flight
+     */
+    int getInFlightCount() {
+        synchronized (mInFlight) {
+            return mInFlight.size();
+        }
+    }
+
+    /**
+     * Call in flight.
+     *
+     * @param <T> type of the result
+     */
+    private static class Flight<T> {
+        private final FutureTask<T> mTask;
+
+        /**
+         * True when another caller has joined the call, guarded by the map of the calls.
+         */
+        private boolean mIsJoined;
+
+        Flight(Callable<T> callable) {
+            mTask = new FutureTask<>(callable);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application wide scheduler of the background work, with a fixed number of threads and
+ * priority lanes. When a thread is free it takes the oldest task of the most important lane
+ * which has not reached its limit of the running tasks. Tasks are not preempted, so the less
+ * important lanes may use only a part of the threads and a few of them are always left
+ * for the work the user is waiting for.
+ * <p>
+ * Lanes correspond to the request priorities of {@link RequestScheduler}.
+ * <p>
+ * Work which a scheduled task blocks on must not be submitted to the scheduler, because
+ * the waiting tasks could hold all of the threads it needs. Such work keeps its own small
+ * executor: the page syncs of MoviesSyncEngine, the fallback requests of
+ * {@link MovieDetailsFetcher} and the thread of the favorites refresh job, which waits for
+ * the fetches in the maintenance lane.
+ */
+public class TaskScheduler {
+
+    private static final String TAG = TaskScheduler.class.getSimpleName();
+
+    /**
+     * Details of the movie the user has opened, and the changes of the favorites.
+     */
+    public static final int LANE_INTERACTIVE = 0;
+
+    /**
+     * Pages of the movie list the user scrolls to.
+     */
+    public static final int LANE_PAGING = 1;
+
+    /**
+     * Pages fetched ahead of the displayed one.
+     */
+    public static final int LANE_PREFETCH = 2;
+
+    /**
+     * Background refresh of the stored data.
+     */
+    public static final int LANE_MAINTENANCE = 3;
+
+    /**
+     * Names of the lanes in the metrics.
+     */
+    private static final String[] LANE_NAMES = {
+            "interactive", "paging", "prefetch", "maintenance"};
+
+    /**
+     * Number of the worker threads.
+     */
+    private static final int POOL_SIZE = 4;
+
+    /**
+     * Maximum number of the running tasks of each lane. Paging leaves one thread for the
+     * details, prefetch and maintenance together leave one for the user visible work.
+     */
+    private static final int[] LANE_LIMITS = {POOL_SIZE, POOL_SIZE - 1, 1, 2};
+
+    /**
+     * Number of the threads which only the interactive lane may use, whatever the other
+     * lanes run together.
+     */
+    private static final int RESERVED_INTERACTIVE_THREADS = 1;
+
+    /**
+     * How long an idle thread is kept alive.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final TaskScheduler sInstance = new TaskScheduler();
+
+    /**
+     * Runs the dispatched tasks. Tasks are dispatched only when a thread is free, so its
+     * queue stays empty.
+     */
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Waiting tasks of every lane, guarded by this.
+     */
+    private final ArrayDeque<LaneTask<?>>[] mQueues;
+
+    /**
+     * Number of the running tasks of every lane, guarded by this.
+     */
+    private final int[] mRunning = new int[LANE_NAMES.length];
+
+    /**
+     * Collected statistics of every lane, guarded by this.
+     */
+    private final LaneStats[] mStats = new LaneStats[LANE_NAMES.length];
+
+    /**
+     * @return the scheduler of the application
+     */
+    public static TaskScheduler getInstance() {
+        return sInstance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TaskScheduler() {
+        mQueues = new ArrayDeque[LANE_NAMES.length];
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            mQueues[i] = new ArrayDeque<>();
+            mStats[i] = new LaneStats();
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        // Background work must not slow down the main thread.
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, TAG + " #" + threadCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits the task to the lane.
+     *
+     * @param lane     one of the LANE_* constants
+     * @param callable the task
+     * @param <T>      type of the result
+     * @return future with the result of the task
+     */
+    public <T> Future<T> submit(int lane, Callable<T> callable) {
+        LaneTask<T> task = new LaneTask<>(lane, callable);
+        synchronized (this) {
+            mQueues[lane].add(task);
+        }
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Submits the task to the lane.
+     *
+     * @param lane     one of the LANE_* constants
+     * @param runnable the task
+     * @return future which completes with null when the task has finished
+     */
+    public Future<?> submit(int lane, Runnable runnable) {
+        LaneTask<Object> task = new LaneTask<>(lane, runnable);
+        synchronized (this) {
+            mQueues[lane].add(task);
+        }
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Gets a snapshot of the lane metrics.
+     *
+     * @return statistics keyed by the lane name
+     */
+    public synchronized Map<String, LaneStats> getStats() {
+        Map<String, LaneStats> snapshot = new HashMap<>();
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            LaneStats stats = mStats[i].copy();
+            stats.queueDepth = mQueues[i].size();
+            stats.running = mRunning[i];
+            snapshot.put(LANE_NAMES[i], stats);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Starts the waiting tasks while there are free threads.
+     */
+    private void dispatch() {
+        while (true) {
+            LaneTask<?> task = null;
+            synchronized (this) {
+                int runningTotal = 0;
+                for (int running : mRunning) {
+                    runningTotal += running;
+                }
+                if (runningTotal >= POOL_SIZE) {
+                    return;
+                }
+
+                boolean isThreadReserved = runningTotal - mRunning[LANE_INTERACTIVE] >=
+                        POOL_SIZE - RESERVED_INTERACTIVE_THREADS;
+                for (int lane = 0; lane < LANE_NAMES.length && task == null; lane++) {
+                    if (mRunning[lane] < LANE_LIMITS[lane]
+                            && (lane == LANE_INTERACTIVE || !isThreadReserved)) {
+                        task = mQueues[lane].poll();
+                    }
+                }
+                if (task == null) {
+                    return;
+                }
+                mRunning[task.mLane]++;
+            }
+
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Records the task which has been started.
+     *
+     * @param task which has been taken by the thread
+     */
+    private void onStarted(LaneTask<?> task) {
+        long waitMillis = SystemClock.elapsedRealtime() - task.mSubmittedAt;
+        synchronized (this) {
+            mStats[task.mLane].record(waitMillis);
+        }
+
+        if (waitMillis > 0) {
+            Log.v(TAG, LANE_NAMES[task.mLane] + " task waited " + waitMillis + "ms");
+        }
+    }
+
+    /**
+     * Frees the thread of the finished task for the waiting ones.
+     *
+     * @param task which has finished
+     */
+    private void onFinished(LaneTask<?> task) {
+        synchronized (this) {
+            mRunning[task.mLane]--;
+        }
+        dispatch();
+    }
+
+    /**
+     * Task of the lane.
+     *
+     * @param <T> type of the result
+     */
+    private class LaneTask<T> extends FutureTask<T> {
+        private final int mLane;
+        private final long mSubmittedAt = SystemClock.elapsedRealtime();
+
+        LaneTask(int lane, Callable<T> callable) {
+            super(callable);
+            mLane = lane;
+        }
+
+        LaneTask(int lane, Runnable runnable) {
+            super(runnable, null);
+            mLane = lane;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Task which has been cancelled while waiting finishes at once.
+                if (!isDone()) {
+                    onStarted(this);
+                    super.run();
+                }
+            } finally {
+                onFinished(this);
+            }
+        }
+    }
+
+    /**
+     * Statistics of the single lane.
+     */
+    public static class LaneStats {
+        private int queueDepth;
+        private int running;
+        private int count;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+
+        private void record(long waitMillis) {
+            count++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+        }
+
+        private LaneStats copy() {
+            LaneStats copy = new LaneStats();
+            copy.count = count;
+            copy.totalWaitMillis = totalWaitMillis;
+            copy.maxWaitMillis = maxWaitMillis;
+            return copy;
+        }
+
+        /**
+         * @return number of the tasks waiting for a thread
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return number of the running tasks
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * @return number of the started tasks
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return average time from the submission to the start of the task in milliseconds
+         */
+        public long getAverageWaitMillis() {
+            return count == 0 ? 0 : totalWaitMillis / count;
+        }
+
+        /**
+         * @return the longest wait for a thread in milliseconds
+         */
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queueDepth + ", running=" + running + ", started=" + count +
+                    ", avgWait=" + getAverageWaitMillis() + "ms, maxWait=" + maxWaitMillis + "ms";
+        }
+    }
+}
@@ -5,11 +5,14 @@ import android.nextlevel_global.com.popularmovies.models.Cast;
 import android.nextlevel_global.com.popularmovies.models.Movie;
 import android.nextlevel_global.com.popularmovies.models.Review;
 import android.nextlevel_global.com.popularmovies.models.Trailer;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 
 /**
@@ -98,11 +101,31 @@ public class TheMoviesDbJsonUtils {
      */
     private static final String TMDB_MOVIE_RELEASE_DATE = "release_date";
 
+    /**
+     * JSON key name of the appended credits object in the movie details response.
+     */
+    private static final String TMDB_APPENDED_CASTS = "casts";
+
+    /**
+     * JSON key name of the appended reviews object in the movie details response.
+     */
+    private static final String TMDB_APPENDED_REVIEWS = "reviews";
+
+    /**
+     * JSON key name of the appended trailers object in the movie details response.
+     */
+    private static final String TMDB_APPENDED_TRAILERS = "trailers";
+
     /**
      * JSON key name for the results containing multiple cast members.
      */
     private static final String TMDB_CAST = "cast";
 
+    /**
+     * JSON key name which contains an ID of the cast member (the same in every movie).
+     */
+    private static final String TMDB_CAST_ID = "id";
+
     /**
      * JSON key name which contains a name of the cast member.
      */
@@ -148,6 +171,67 @@ public class TheMoviesDbJsonUtils {
      */
     private static final String TMDB_TRAILERS_SOURCE = "source";
 
+    /**
+     * Value returned for JSON null values. It is the same as in {@link JSONObject#getString},
+     * so both parsing paths produce identical models.
+     */
+    private static final String JSON_NULL = "null";
+
+    /**
+     * Streaming parser for the single movie response.
+     */
+    public static final NetworkUtils.ResponseParser<Movie> MOVIE_PARSER =
+            new NetworkUtils.ResponseParser<Movie>() {
+                @Override
+                public Movie parse(JsonReader reader) throws IOException {
+                    return readMovie(reader);
+                }
+            };
+
+    /**
+     * Streaming parser for the movies list response.
+     */
+    public static final NetworkUtils.ResponseParser<ArrayList<Movie>> MOVIES_PARSER =
+            new NetworkUtils.ResponseParser<ArrayList<Movie>>() {
+                @Override
+                public ArrayList<Movie> parse(JsonReader reader) throws IOException {
+                    return readMovies(reader);
+                }
+            };
+
+    /**
+     * Streaming parser for the cast members response.
+     */
+    public static final NetworkUtils.ResponseParser<ArrayList<Cast>> CAST_PARSER =
+            new NetworkUtils.ResponseParser<ArrayList<Cast>>() {
+                @Override
+                public ArrayList<Cast> parse(JsonReader reader) throws IOException {
+                    return readCastMembers(reader);
+                }
+            };
+
+    /**
+     * Streaming parser for the reviews response.
+     */
+    public static final NetworkUtils.ResponseParser<ArrayList<Review>> REVIEWS_PARSER =
+            new NetworkUtils.ResponseParser<ArrayList<Review>>() {
+                @Override
+                public ArrayList<Review> parse(JsonReader reader) throws IOException {
+                    return readReviews(reader);
+                }
+            };
+
+    /**
+     * Streaming parser for the trailers response.
+     */
+    public static final NetworkUtils.ResponseParser<ArrayList<Trailer>> TRAILERS_PARSER =
+            new NetworkUtils.ResponseParser<ArrayList<Trailer>>() {
+                @Override
+                public ArrayList<Trailer> parse(JsonReader reader) throws IOException {
+                    return readTrailers(reader);
+                }
+            };
+
     /**
      * Gets full information about movie from JSON movie object.
      *
@@ -156,22 +240,7 @@ public class TheMoviesDbJsonUtils {
      * @throws JSONException
      */
     public static Movie getMovieFromJson(String jsonString) throws JSONException {
-        Movie movie = new Movie();
-        JSONObject movieObject = new JSONObject(jsonString);
-
-        String posterPath = movieObject.getString(TMDB_POSTER_PATH);
-        String backdropPath = movieObject.getString(TMDB_BACKDROP_PATH);
-
-        movie.setId(movieObject.getString(TMDB_MOVIE_ID));
-        movie.setTitle(movieObject.getString(TMDB_MOVIE_TITLE));
-        movie.setRuntime(movieObject.getInt(TMDB_MOVIE_RUNTIME));
-        movie.setOverview(movieObject.getString(TMDB_MOVIE_OVERVIEW));
-        movie.setUserRating(movieObject.getString(TMDB_MOVIE_USER_RATING));
-        movie.setReleaseDate(movieObject.getString(TMDB_MOVIE_RELEASE_DATE));
-        movie.setPosterUrl(buildPosterUrl(posterPath));
-        movie.setBackdropUrl(buildBackdropUrl(backdropPath));
-
-        return movie;
+        return parseJsonString(jsonString, MOVIE_PARSER);
     }
 
     /**
@@ -182,111 +251,378 @@ public class TheMoviesDbJsonUtils {
      * @throws JSONException
      */
     public static ArrayList<Movie> getMoviesFromJson(String jsonString) throws JSONException {
-        JSONObject moviesJson = new JSONObject(jsonString);
+        return parseJsonString(jsonString, MOVIES_PARSER);
+    }
 
-        JSONArray moviesArray = moviesJson.getJSONArray(TMDB_MOVIES);
-        ArrayList<Movie> movies = new ArrayList<>();
+    /**
+     * Get the list of the cast members from JSON response.
+     *
+     * @param jsonString containing JSON response from API
+     * @return List of the cast members.
+     * @throws JSONException
+     */
+    public static ArrayList<Cast> getCastMembersFromJson(String jsonString) throws JSONException {
+        return parseJsonString(jsonString, CAST_PARSER);
+    }
 
-        for (int i = 0; i < moviesArray.length(); i++) {
-            Movie movie = new Movie();
-            JSONObject movieJsonObject = moviesArray.getJSONObject(i);
+    /**
+     * Get the list of the reviews from JSON response.
+     *
+     * @param jsonString containing JSON response from API.
+     * @return List of reviews
+     * @throws JSONException
+     */
+    public static ArrayList<Review> getReviewsFromJson(String jsonString) throws JSONException {
+        return parseJsonString(jsonString, REVIEWS_PARSER);
+    }
 
-            String movieId = movieJsonObject.getString(TMDB_MOVIE_ID);
-            String title = movieJsonObject.getString(TMDB_MOVIE_TITLE);
-            String posterPath = movieJsonObject.getString(TMDB_POSTER_PATH);
-            String userRating = movieJsonObject.getString(TMDB_MOVIE_USER_RATING);
+    /**
+     * Get the list of the trailers from JSON response.
+     *
+     * @param jsonString containing JSON response from API
+     * @return List of trailers
+     * @throws JSONException
+     */
+    public static ArrayList<Trailer> getTrailersFromJson(String jsonString) throws JSONException {
+        return parseJsonString(jsonString, TRAILERS_PARSER);
+    }
 
-            movie.setId(movieId);
-            movie.setTitle(title);
-            movie.setUserRating(userRating);
-            movie.setPosterUrl(buildPosterUrl(posterPath));
+    /**
+     * Reads full information about the movie from the JSON movie object. If the response
+     * contains appended cast, reviews or trailers objects (append_to_response), they are read
+     * in the same pass. Lists which were not appended are left null.
+     *
+     * @param reader positioned at the movie object
+     * @return Movie object
+     * @throws IOException
+     */
+    public static Movie readMovie(JsonReader reader) throws IOException {
+        Movie movie = new Movie();
 
-            movies.add(movie);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case TMDB_MOVIE_ID:
+                    movie.setId(nextString(reader));
+                    break;
+                case TMDB_MOVIE_TITLE:
+                    movie.setTitle(nextString(reader));
+                    break;
+                case TMDB_MOVIE_RUNTIME:
+                    movie.setRuntime(nextInt(reader));
+                    break;
+                case TMDB_MOVIE_OVERVIEW:
+                    movie.setOverview(nextString(reader));
+                    break;
+                case TMDB_MOVIE_USER_RATING:
+                    movie.setUserRating(nextDouble(reader));
+                    break;
+                case TMDB_MOVIE_RELEASE_DATE:
+                    movie.setReleaseDate(ReleaseDateUtils.parseEpochDay(nextString(reader)));
+                    break;
+                case TMDB_POSTER_PATH:
+                    movie.setPosterUrl(buildPosterUrl(nextString(reader)));
+                    break;
+                case TMDB_BACKDROP_PATH:
+                    movie.setBackdropUrl(buildBackdropUrl(nextString(reader)));
+                    break;
+                case TMDB_APPENDED_CASTS:
+                    movie.setCastList(readCastMembers(reader));
+                    break;
+                case TMDB_APPENDED_REVIEWS:
+                    movie.setReviewsList(readReviews(reader));
+                    break;
+                case TMDB_APPENDED_TRAILERS:
+                    movie.setTrailers(readTrailers(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
         }
+        reader.endObject();
 
-        return movies;
+        return movie;
     }
 
     /**
-     * Get the list of the cast members from JSON response.
+     * Reads all movies from the JSON movies list response. Only fields displayed on the movies
+     * grid are read, the rest (overview, genre_ids etc.) is skipped.
      *
-     * @param jsonString containing JSON response from API
-     * @return List of the cast members.
-     * @throws JSONException
+     * @param reader positioned at the response object
+     * @return List of the movies.
+     * @throws IOException
      */
-    public static ArrayList<Cast> getCastMembersFromJson(String jsonString) throws JSONException {
-        JSONObject castJson = new JSONObject(jsonString);
+    public static ArrayList<Movie> readMovies(JsonReader reader) throws IOException {
+        ArrayList<Movie> movies = new ArrayList<>();
 
-        ArrayList<Cast> cast = new ArrayList<>();
-        JSONArray castArray = castJson.getJSONArray(TMDB_CAST);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals(TMDB_MOVIES)) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Movie movie = new Movie();
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case TMDB_MOVIE_ID:
+                            movie.setId(nextString(reader));
+                            break;
+                        case TMDB_MOVIE_TITLE:
+                            movie.setTitle(nextString(reader));
+                            break;
+                        case TMDB_POSTER_PATH:
+                            movie.setPosterUrl(buildPosterUrl(nextString(reader)));
+                            break;
+                        case TMDB_MOVIE_USER_RATING:
+                            movie.setUserRating(nextDouble(reader));
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                movies.add(movie);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
 
-        for (int i = 0; i < castArray.length(); i++) {
-            // Fetch data from JSON
-            JSONObject castJsonObject = castArray.getJSONObject(i);
+        return movies;
+    }
 
-            String name = castJsonObject.getString(TMDB_CAST_NAME);
-            String character = castJsonObject.getString(TMDB_CAST_CHARACTER);
-            String pathToAvatar = castJsonObject.getString(TMDB_CAST_AVATAR_PATH);
+    /**
+     * Reads the list of the cast members from the JSON credits object.
+     *
+     * @param reader positioned at the credits object
+     * @return List of the cast members.
+     * @throws IOException
+     */
+    public static ArrayList<Cast> readCastMembers(JsonReader reader) throws IOException {
+        ArrayList<Cast> cast = new ArrayList<>();
 
-            // Add a new cast member to the list.
-            cast.add(new Cast(name, character, buildActorAvatarUrl(pathToAvatar)));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            // Crew members are not displayed, so skip them.
+            if (!reader.nextName().equals(TMDB_CAST)) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String id = null;
+                String name = null;
+                String character = null;
+                String pathToAvatar = null;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case TMDB_CAST_ID:
+                            id = nextString(reader);
+                            break;
+                        case TMDB_CAST_NAME:
+                            name = nextString(reader);
+                            break;
+                        case TMDB_CAST_CHARACTER:
+                            character = nextString(reader);
+                            break;
+                        case TMDB_CAST_AVATAR_PATH:
+                            pathToAvatar = nextString(reader);
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                // Add a new cast member to the list.
+                cast.add(new Cast(id, name, character, buildActorAvatarUrl(pathToAvatar)));
+            }
+            reader.endArray();
         }
+        reader.endObject();
 
         return cast;
     }
 
     /**
-     * Get the list of the reviews from JSON response.
+     * Reads the list of the reviews from the JSON reviews object.
      *
-     * @param jsonString containing JSON response from API.
+     * @param reader positioned at the reviews object
      * @return List of reviews
-     * @throws JSONException
+     * @throws IOException
      */
-    public static ArrayList<Review> getReviewsFromJson(String jsonString) throws JSONException {
-        JSONObject reviewsJson = new JSONObject(jsonString);
-
+    public static ArrayList<Review> readReviews(JsonReader reader) throws IOException {
         ArrayList<Review> reviews = new ArrayList<>();
-        JSONArray reviewsArray = reviewsJson.getJSONArray(TMDB_REVIEWS_RESULTS);
-
-        for (int i = 0; i < reviewsArray.length(); i++) {
-            // Fetch data from JSON
-            JSONObject reviewsJsonObject = reviewsArray.getJSONObject(i);
-
-            String author = reviewsJsonObject.getString(TMDB_REVIEWS_AUTHOR);
-            String content = reviewsJsonObject.getString(TMDB_REVIEWS_CONTENT);
 
-            // Add a new review to the list.
-            reviews.add(new Review(author, content));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals(TMDB_REVIEWS_RESULTS)) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String author = null;
+                String content = null;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case TMDB_REVIEWS_AUTHOR:
+                            author = nextString(reader);
+                            break;
+                        case TMDB_REVIEWS_CONTENT:
+                            content = nextString(reader);
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                // Add a new review to the list.
+                reviews.add(new Review(author, content));
+            }
+            reader.endArray();
         }
+        reader.endObject();
 
         return reviews;
     }
 
     /**
-     * Get the list of the trailers from JSON response.
+     * Reads the list of the trailers from the JSON trailers object.
      *
-     * @param jsonString containing JSON response from API
+     * @param reader positioned at the trailers object
      * @return List of trailers
-     * @throws JSONException
+     * @throws IOException
      */
-    public static ArrayList<Trailer> getTrailersFromJson(String jsonString) throws JSONException {
-        JSONObject json = new JSONObject(jsonString);
-
+    public static ArrayList<Trailer> readTrailers(JsonReader reader) throws IOException {
         ArrayList<Trailer> trailers = new ArrayList<>();
-        JSONArray trailersArray = json.getJSONArray(TMDB_TRAILERS_RESULTS);
 
-        for (int i = 0; i < trailersArray.length(); i++) {
-            // Fetch data from JSON
-            JSONObject trailerJsonObject = trailersArray.getJSONObject(i);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            // Only YouTube trailers are supported.
+            if (!reader.nextName().equals(TMDB_TRAILERS_RESULTS)) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = null;
+                String videoId = null;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case TMDB_TRAILERS_NAME:
+                            name = nextString(reader);
+                            break;
+                        case TMDB_TRAILERS_SOURCE:
+                            videoId = nextString(reader);
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                // Add a new trailer to the list.
+                trailers.add(new Trailer(name, videoId));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return trailers;
+    }
 
-            String name = trailerJsonObject.getString(TMDB_TRAILERS_NAME);
-            String videoId = trailerJsonObject.getString(TMDB_TRAILERS_SOURCE);
+    /**
+     * Parses JSON string with the streaming parser. It is used by the getXxxFromJson methods,
+     * which are kept for callers which already have the whole response in memory.
+     *
+     * @param jsonString containing JSON response from API
+     * @param parser     used to read the model
+     * @param <T>        type of the parsed result
+     * @return parsed model
+     * @throws JSONException when JSON is malformed or has a different structure
+     */
+    private static <T> T parseJsonString(String jsonString, NetworkUtils.ResponseParser<T> parser)
+            throws JSONException {
+        if (jsonString == null) {
+            throw new JSONException("Empty response");
+        }
 
-            // Add a new trailer to the list.
-            trailers.add(new Trailer(name, videoId));
+        JsonReader reader = new JsonReader(new StringReader(jsonString));
+        try {
+            return parser.parse(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing to do, it is an in-memory reader.
+            }
         }
+    }
 
-        return trailers;
+    /**
+     * Reads next string value. JSON null is returned as "null" string.
+     *
+     * @param reader JSON reader
+     * @return string value
+     * @throws IOException
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return JSON_NULL;
+        }
+
+        return reader.nextString();
+    }
+
+    /**
+     * Reads next integer value. JSON null is returned as 0.
+     *
+     * @param reader JSON reader
+     * @return integer value
+     * @throws IOException
+     */
+    private static int nextInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+
+        return reader.nextInt();
+    }
+
+    /**
+     * Reads next double value. JSON null is returned as 0.
+     *
+     * @param reader JSON reader
+     * @return double value
+     * @throws IOException
+     */
+    private static double nextDouble(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+
+        return reader.nextDouble();
     }
 
     /**
@@ -0,0 +1,36 @@
+package android.nextlevel_global.com.popularmovies.utilities;
+
+import android.content.Context;
+import android.support.v4.os.CancellationSignal;
+
+import java.io.IOException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Executes HTTP requests for {@link NetworkUtils}. The application uses the real HTTP client,
+ * tests and benchmarks may replace it with the recorded responses to work without the network.
+ */
+public interface Transport {
+
+    /**
+     * Executes the request. Response must be closed by the caller. Cancelled signal aborts
+     * the call, also while its response body is being read, until the caller removes its
+     * listener.
+     *
+     * @param request            to execute
+     * @param cancellationSignal of the caller, may be null
+     * @return response of any status code
+     * @throws IOException Related to network or the cancelled call.
+     */
+    Response execute(Request request, CancellationSignal cancellationSignal) throws IOException;
+
+    /**
+     * Checks if the transport can execute requests right now.
+     *
+     * @param context of the application
+     * @return true if requests can be executed
+     */
+    boolean isConnected(Context context);
+}